@@ -0,0 +1,112 @@
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AdmissionQueue - Bounded work queue for the NameServer's worker threads
+ *
+ * An unbounded queue turns an upstream slowdown into a backlog that
+ * answers clients long after they gave up, and keeps growing. This one
+ * holds at most capacity tasks and orders them cache hits first, then
+ * first come first served. Each Task has a deadline:
+ * - If the queue is full, the task is shed at once. Use it as the
+ *   executor's RejectedExecutionHandler.
+ * - If the task is still waiting when its deadline passes, it is shed
+ *   when a worker picks it up, instead of being run.
+ * A shed task calls its Shed callback, which can answer SERVFAIL or
+ * simply drop the query.
+ *
+ * The capacity check isn't atomic with the insert, so threads offering at
+ * the same moment can overshoot it by one each.
+ */
+class AdmissionQueue extends PriorityBlockingQueue<Runnable> implements RejectedExecutionHandler {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int HIT = 0;
+    static final int MISS = 1;
+
+    /** Told why a task didn't run: expired in the queue, or never queued. */
+    interface Shed {
+        void shed(boolean expired);
+    }
+
+    private volatile int capacity;
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    AdmissionQueue(int capacity) {
+        super(64, Comparator.comparingInt((Runnable r) -> ((Task) r).priority)
+                .thenComparingLong(r -> ((Task) r).sequence));
+        this.capacity = capacity;
+    }
+
+    void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /** Tasks turned away because the queue was full */
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    /** Tasks dropped because they waited past their deadline */
+    long getExpired() {
+        return expired.sum();
+    }
+
+    /** A task for the executor; deadline is a System.nanoTime() value. */
+    Task task(int priority, long deadline, Runnable work, Shed shed) {
+        return new Task(priority, sequence.getAndIncrement(), deadline, work, shed);
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        return size() < capacity && super.offer(task);
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Math.max(capacity - size(), 0);
+    }
+
+    @Override
+    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+        rejected.increment();
+        ((Task) task).shed.shed(false);
+    }
+
+    final class Task implements Runnable {
+        final int priority;
+        final long sequence;
+        final long deadline;
+        final Runnable work;
+        final Shed shed;
+
+        private Task(int priority, long sequence, long deadline, Runnable work, Shed shed) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.deadline = deadline;
+            this.work = work;
+            this.shed = shed;
+        }
+
+        @Override
+        public void run() {
+            if (System.nanoTime() - deadline > 0) {
+                expired.increment();
+                shed.shed(true);
+                return;
+            }
+            work.run();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AsyncLog - Logging that stays off the DNS hot paths
+ *
+ * System.out is synchronized and writes straight to the terminal, so a
+ * println per query caps the server at a few thousand qps. Here a log
+ * call only checks the level and, if it is enabled, drops the message
+ * template and its arguments into a preallocated slot of a lock-free ring
+ * buffer. A background thread builds the strings and hands them to the
+ * Sink, System.out or System.err by default.
+ *
+ * - Messages use {} placeholders, filled in on the log thread, so call
+ *   sites never concatenate. Arguments must not change after the call.
+ * - Below the level a call is one volatile read and allocates nothing.
+ * - When the ring is full the message is dropped and counted rather
+ *   than blocking the caller.
+ *
+ * Set the level with -Dnameserver.log=debug|info|warn|error|off
+ * (default info) or setLevel.
+ */
+final class AsyncLog {
+
+    enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    /** Where formatted lines end up. Called on the log thread only. */
+    interface Sink {
+        void write(Level level, String line);
+    }
+
+    static final Sink CONSOLE = (level, line) -> {
+        if (level.compareTo(Level.WARN) >= 0) {
+            System.err.println(line);
+        } else {
+            System.out.println(line);
+        }
+    };
+
+    // Stands in for an argument the call didn't pass, so null can be logged
+    private static final Object NONE = new Object();
+
+    // A power of two. 64K slots hold about a second of per-query logging at
+    // full load, so a burst waits for the log thread instead of being lost.
+    private static final int CAPACITY = 65536;
+    private static final int MASK = CAPACITY - 1;
+    // The log thread is woken each time this many slots fill, rather than
+    // sleeping out its park while the ring fills up
+    private static final int WAKE_EVERY = CAPACITY / 8;
+
+    private static volatile int threshold =
+            Level.valueOf(System.getProperty("nameserver.log", "info").toUpperCase()).ordinal();
+    private static volatile Sink sink = CONSOLE;
+
+    // Bounded multi-producer ring as described by Dmitry Vyukov: slot i is
+    // free for the producer claiming position p when sequences[i] == p, and
+    // holds a message for the consumer at p when sequences[i] == p + 1
+    private static final Level[] levels = new Level[CAPACITY];
+    private static final String[] messages = new String[CAPACITY];
+    private static final Object[] firstArgs = new Object[CAPACITY];
+    private static final Object[] secondArgs = new Object[CAPACITY];
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head; // log thread only
+    private static final LongAdder dropped = new LongAdder();
+    private static final Thread drainer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        drainer = new Thread(AsyncLog::drainLoop, "dns-log");
+        drainer.setDaemon(true);
+        drainer.start();
+        // Don't lose what is still queued when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncLog::flush, "dns-log-flush"));
+    }
+
+    private AsyncLog() {
+    }
+
+    static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    static void setSink(Sink newSink) {
+        sink = newSink;
+    }
+
+    static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    /** Messages lost because the ring was full */
+    static long getDropped() {
+        return dropped.sum();
+    }
+
+    static void debug(String message) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, message, NONE, NONE);
+        }
+    }
+
+    static void debug(String message, Object arg) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, message, arg, NONE);
+        }
+    }
+
+    static void debug(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, message, arg1, arg2);
+        }
+    }
+
+    static void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(Level.INFO, message, NONE, NONE);
+        }
+    }
+
+    static void info(String message, Object arg) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(Level.INFO, message, arg, NONE);
+        }
+    }
+
+    static void info(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(Level.INFO, message, arg1, arg2);
+        }
+    }
+
+    static void warn(String message, Object arg) {
+        if (isEnabled(Level.WARN)) {
+            enqueue(Level.WARN, message, arg, NONE);
+        }
+    }
+
+    static void warn(String message, Object arg1, Object arg2) {
+        if (isEnabled(Level.WARN)) {
+            enqueue(Level.WARN, message, arg1, arg2);
+        }
+    }
+
+    static void error(String message, Object arg) {
+        if (isEnabled(Level.ERROR)) {
+            enqueue(Level.ERROR, message, arg, NONE);
+        }
+    }
+
+    private static void enqueue(Level level, String message, Object arg1, Object arg2) {
+        long position = tail.get();
+        while (true) {
+            int slot = (int) position & MASK;
+            long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                dropped.increment(); // full, the log thread is a lap behind
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        int slot = (int) position & MASK;
+        levels[slot] = level;
+        messages[slot] = message;
+        firstArgs[slot] = arg1;
+        secondArgs[slot] = arg2;
+        sequences.set(slot, position + 1); // publishes the fields above
+        if ((position & (WAKE_EVERY - 1)) == 0) {
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    /** Writes out everything queued so far; for tests and shutdown. */
+    static synchronized void flush() {
+        drainOnce();
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            if (!drainOnce()) {
+                LockSupport.parkNanos(1_000_000L);
+            }
+        }
+    }
+
+    // Returns whether there was anything to write
+    private static synchronized boolean drainOnce() {
+        StringBuilder line = new StringBuilder(128);
+        boolean any = false;
+        while (true) {
+            int slot = (int) head & MASK;
+            if (sequences.get(slot) != head + 1) {
+                return any;
+            }
+            line.setLength(0);
+            format(line, messages[slot], firstArgs[slot], secondArgs[slot]);
+            Level level = levels[slot];
+            messages[slot] = null;
+            firstArgs[slot] = null;
+            secondArgs[slot] = null;
+            sequences.set(slot, head + CAPACITY); // free for the next lap
+            head++;
+            any = true;
+            try {
+                sink.write(level, line.toString());
+            } catch (RuntimeException e) {
+                System.err.println("Log sink failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Fills {} from the arguments given; extra placeholders are left as is
+    static void format(StringBuilder out, String message, Object arg1, Object arg2) {
+        int from = appendArg(out, message, 0, arg1);
+        from = appendArg(out, message, from, arg2);
+        out.append(message, from, message.length());
+    }
+
+    // Appends up to and including the next {} filled with arg, returns where to carry on
+    private static int appendArg(StringBuilder out, String message, int from, Object arg) {
+        int at = arg == NONE ? -1 : message.indexOf("{}", from);
+        if (at < 0) {
+            return from;
+        }
+        out.append(message, from, at).append(arg);
+        return at + 2;
+    }
+}
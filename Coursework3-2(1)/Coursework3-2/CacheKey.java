@@ -0,0 +1,229 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * CacheKey - NameServer cache key made from the question's QNAME and QTYPE
+ *
+ * Only class IN is cached, so QCLASS isn't part of the key: wrap() turns
+ * down any other class and the NameServer refuses those queries.
+ *
+ * The name is kept in wire format (length-prefixed labels, ending in a
+ * zero byte) and compared and hashed ignoring ASCII case, so
+ * "WWW.Example.com" and "www.example.com" are the same key.
+ *
+ * A probe key is a flyweight: wrap() points it at the question inside a
+ * received packet without copying anything, so a cache hit needs no
+ * String, no byte[] and no new key. Probes are mutable and owned by one
+ * thread. Anything that outlives the lookup (a cache entry, an in-flight
+ * resolution) must use copy(), which makes an immutable lower-cased key.
+ * A probe can also be moved up the name with parent(), to look up the
+ * names above the question.
+ */
+final class CacheKey {
+
+    static final int CLASS_IN = 1;
+
+    private byte[] name;
+    private int offset;
+    private int length; // bytes of the wire-format name, including the final zero
+    private int qtype;
+    private int hash;
+    private final boolean probe;
+    // Second probe for walking up this one's name, made on first use
+    private CacheKey scratch;
+
+    private CacheKey(boolean probe) {
+        this.probe = probe;
+    }
+
+    /** A reusable key for lookups; see wrap. */
+    static CacheKey probe() {
+        return new CacheKey(true);
+    }
+
+    /** Key for a wire-format name, which must already be lower case. */
+    static CacheKey of(byte[] wireName, int qtype) {
+        CacheKey key = new CacheKey(false);
+        key.set(wireName, 0, wireName.length, qtype);
+        return key;
+    }
+
+    /**
+     * Key for a dotted name such as "www.example.com.". Labels are UTF-8,
+     * as NameServer.parseQuery decodes them, so a parsed name gets the
+     * same key as the packet it came from.
+     */
+    static CacheKey of(String qname, int qtype) {
+        String[] labels = qname.isEmpty() || qname.equals(".") ? new String[0] : qname.split("\\.");
+        byte[][] encoded = new byte[labels.length][];
+        int size = 1;
+        for (int i = 0; i < labels.length; i++) {
+            encoded[i] = labels[i].getBytes(StandardCharsets.UTF_8);
+            size += 1 + encoded[i].length;
+        }
+        byte[] wire = new byte[size];
+        int pos = 0;
+        for (byte[] label : encoded) {
+            wire[pos++] = (byte) label.length;
+            for (byte b : label) {
+                wire[pos++] = toLower(b);
+            }
+        }
+        return of(wire, qtype);
+    }
+
+    /**
+     * Points this probe at the question of a DNS message. Returns false if
+     * the question isn't a plain uncompressed name followed by QTYPE and
+     * QCLASS IN within length bytes; the key is then unusable.
+     */
+    boolean wrap(byte[] packet, int length) {
+        if (!probe) {
+            throw new IllegalStateException("Only probe keys can be re-pointed");
+        }
+        int pos = 12;
+        while (pos < length) {
+            int label = packet[pos] & 0xFF;
+            if (label == 0) {
+                if (pos + 5 > length) {
+                    return false;
+                }
+                int qtype = (packet[pos + 1] & 0xFF) << 8 | (packet[pos + 2] & 0xFF);
+                int qclass = (packet[pos + 3] & 0xFF) << 8 | (packet[pos + 4] & 0xFF);
+                if (qclass != CLASS_IN) {
+                    return false;
+                }
+                set(packet, 12, pos + 1 - 12, qtype);
+                return true;
+            }
+            if ((label & 0xC0) != 0) {
+                return false;
+            }
+            pos += 1 + label;
+        }
+        return false;
+    }
+
+    /**
+     * A probe for looking at the names above this key without moving it.
+     * A probe keeps the same one, which belongs to its thread; an
+     * immutable key hands out a new one each time.
+     */
+    CacheKey scratch() {
+        if (!probe) {
+            return probe();
+        }
+        if (scratch == null) {
+            scratch = probe();
+        }
+        return scratch;
+    }
+
+    /** Points this probe at key's name, with another QTYPE. */
+    void wrap(CacheKey key, int qtype) {
+        if (!probe) {
+            throw new IllegalStateException("Only probe keys can be re-pointed");
+        }
+        set(key.name, key.offset, key.length, qtype);
+    }
+
+    /** Points this probe at its name's parent. Returns false at the root. */
+    boolean parent() {
+        if (!probe) {
+            throw new IllegalStateException("Only probe keys can be re-pointed");
+        }
+        int label = name[offset] & 0xFF;
+        if (label == 0) {
+            return false;
+        }
+        set(name, offset + 1 + label, length - 1 - label, qtype);
+        return true;
+    }
+
+    /** This key if it is already immutable, else a lower-cased copy of it. */
+    CacheKey copy() {
+        if (!probe) {
+            return this;
+        }
+        byte[] wire = new byte[length];
+        for (int i = 0; i < length; i++) {
+            wire[i] = toLower(name[offset + i]);
+        }
+        CacheKey key = new CacheKey(false);
+        key.name = wire;
+        key.length = length;
+        key.qtype = qtype;
+        key.hash = hash;
+        return key;
+    }
+
+    int qtype() {
+        return qtype;
+    }
+
+    int nameLength() {
+        return length;
+    }
+
+    /** Byte i of the wire-format name, lower-cased. */
+    byte nameAt(int i) {
+        return toLower(name[offset + i]);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey other = (CacheKey) o;
+        if (hash != other.hash || qtype != other.qtype || length != other.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (toLower(name[offset + i]) != toLower(other.name[other.offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Dotted form for logs, e.g. "www.example.com.|1"
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int pos = 0;
+        while (pos < length - 1) {
+            int label = name[offset + pos] & 0xFF;
+            for (int i = 1; i <= label; i++) {
+                sb.append((char) nameAt(pos + i));
+            }
+            sb.append('.');
+            pos += 1 + label;
+        }
+        return sb.append('|').append(qtype).toString();
+    }
+
+    private void set(byte[] name, int offset, int length, int qtype) {
+        this.name = name;
+        this.offset = offset;
+        this.length = length;
+        this.qtype = qtype;
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + toLower(name[offset + i]);
+        }
+        this.hash = 31 * h + qtype;
+    }
+
+    // Length bytes are below 64, so only letters in labels are changed
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+    }
+}
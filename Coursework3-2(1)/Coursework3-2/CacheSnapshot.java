@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * CacheSnapshot - Saves the NameServer caches to a file and loads them back
+ *
+ * The file is written and read through a memory-mapped FileChannel, so a
+ * load is a sequential scan of the page cache with no read() calls or
+ * stream buffering. Expiries are stored as absolute times: after a
+ * restart an entry has the TTL left that it would have had anyway, and
+ * anything that expired while the server was down is skipped.
+ *
+ * Layout, big-endian:
+ *   int magic, int version, int entry count
+ *   per entry: byte negative, long expires, int originalTtl, int type,
+ *              int rcode, short qtype, short name length,
+ *              name (wire format, lower case),
+ *              short data length (0xFFFF for none), data (the RRset),
+ *              short response length (0xFFFF for none), response template,
+ *              short authority length (0xFFFF for none), a negative answer's SOA
+ * Lengths are unsigned. An entry with a section of 0xFFFF bytes or more
+ * isn't saved.
+ */
+class CacheSnapshot {
+
+    private static final int MAGIC = 0x4E534331; // "NSC1"
+    private static final int VERSION = 4;
+    private static final int HEADER = 12;
+    // Length written for a section that is null, so no section can be this long
+    private static final int NONE = 0xFFFF;
+    private static final int ENTRY_HEADER = 1 + 8 + 4 + 4 + 4 + 2 + 2 + 2 + 2 + 2;
+
+    interface Loader {
+        void load(CacheKey key, NameServer.CachedRecord record, boolean negative);
+    }
+
+    private static final class Entry {
+        final CacheKey key;
+        final NameServer.CachedRecord record;
+        final boolean negative;
+
+        Entry(CacheKey key, NameServer.CachedRecord record, boolean negative) {
+            this.key = key;
+            this.record = record;
+            this.negative = negative;
+        }
+    }
+
+    /**
+     * Writes every live entry in the shards to file. A key cached by more
+     * than one shard is written once. The file is built next to the target
+     * and moved over it, so a crash mid-write leaves the old snapshot.
+     *
+     * @return the number of entries written
+     */
+    static int write(Path file, List<NameServer.CacheShard> shards) throws IOException {
+        long now = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<>();
+        Set<CacheKey> seen = new HashSet<>();
+        long[] size = {HEADER};
+
+        for (NameServer.CacheShard shard : shards) {
+            for (int negative = 0; negative < 2; negative++) {
+                boolean isNegative = negative == 1;
+                RecordCache<CacheKey, NameServer.CachedRecord> cache = isNegative ? shard.negativeCache : shard.cache;
+                cache.forEach((key, record) -> {
+                    if (record.expires <= now || !fits(record.data) || !fits(record.responseTemplate())
+                            || !fits(record.authority) || !seen.add(key)) {
+                        return;
+                    }
+                    entries.add(new Entry(key, record, isNegative));
+                    size[0] += ENTRY_HEADER + key.nameLength() + length(record.data)
+                            + length(record.responseTemplate()) + length(record.authority);
+                });
+            }
+        }
+        if (size[0] > Integer.MAX_VALUE) {
+            throw new IOException("Cache snapshot would be larger than 2GB");
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size[0]);
+            out.putInt(MAGIC).putInt(VERSION).putInt(entries.size());
+            for (Entry entry : entries) {
+                NameServer.CachedRecord record = entry.record;
+                out.put((byte) (entry.negative ? 1 : 0));
+                out.putLong(record.expires);
+                out.putInt(record.originalTtl);
+                out.putInt(record.type);
+                out.putInt(record.rcode);
+                out.putShort((short) entry.key.qtype());
+                out.putShort((short) entry.key.nameLength());
+                for (int i = 0; i < entry.key.nameLength(); i++) {
+                    out.put(entry.key.nameAt(i));
+                }
+                putBytes(out, record.data);
+                putBytes(out, record.responseTemplate());
+                putBytes(out, record.authority);
+            }
+            out.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return entries.size();
+    }
+
+    /**
+     * Hands every entry that hasn't expired yet to loader. A missing file is
+     * an empty snapshot; a file that isn't one of ours is an IOException.
+     *
+     * @return the number of entries loaded
+     */
+    static int load(Path file, Loader loader) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < HEADER || in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IOException("Not a cache snapshot: " + file);
+            }
+
+            long now = System.currentTimeMillis();
+            int count = in.getInt();
+            int loaded = 0;
+            for (int i = 0; i < count; i++) {
+                boolean negative = in.get() == 1;
+                long expires = in.getLong();
+                int originalTtl = in.getInt();
+                int type = in.getInt();
+                int rcode = in.getInt();
+                int qtype = in.getShort() & 0xFFFF;
+                byte[] name = new byte[in.getShort() & 0xFFFF];
+                in.get(name);
+                byte[] data = getBytes(in);
+                byte[] wire = getBytes(in);
+                byte[] authority = getBytes(in);
+                if (expires <= now) {
+                    continue;
+                }
+
+                NameServer.CachedRecord record = new NameServer.CachedRecord(data, expires, originalTtl, type, rcode);
+                if (wire != null) {
+                    record.setResponseTemplate(wire);
+                }
+                record.authority = authority;
+                loader.load(CacheKey.of(name, qtype), record, negative);
+                loaded++;
+            }
+            return loaded;
+        } catch (RuntimeException e) {
+            // A truncated or corrupt file runs off the end of the buffer
+            throw new IOException("Corrupt cache snapshot: " + file, e);
+        }
+    }
+
+    private static boolean fits(byte[] bytes) {
+        return bytes == null || bytes.length < NONE;
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes != null ? bytes.length : 0;
+    }
+
+    private static void putBytes(MappedByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.putShort((short) NONE);
+        } else {
+            out.putShort((short) bytes.length).put(bytes);
+        }
+    }
+
+    private static byte[] getBytes(MappedByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length == NONE) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CacheWarmer - Resolves a list of names into the cache before clients ask
+ *
+ * The list has one "name qtype" pair per line, for example
+ * "www.example.com A" or "example.com 15". QTYPE is a number or one of
+ * A, NS, CNAME, MX and TXT, and "#" starts a comment. Lines that can't be
+ * read are reported and skipped, so one bad line doesn't lose the rest.
+ *
+ * At most parallelism pairs are resolved at once, so a long list doesn't
+ * flood the upstream. Progress is logged every 10%, and the total at the
+ * end.
+ */
+class CacheWarmer {
+
+    /** Resolves one pair into the cache, throwing if it can't. */
+    interface Resolve {
+        void resolve(String name, int qtype) throws Exception;
+    }
+
+    static final class Entry {
+        final String name;
+        final int qtype;
+
+        Entry(String name, int qtype) {
+            this.name = name;
+            this.qtype = qtype;
+        }
+    }
+
+    private final String source;
+    private final List<Entry> entries;
+    private final int parallelism;
+    private final LongAdder warmed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile long millis = -1;
+
+    CacheWarmer(String source, List<Entry> entries, int parallelism) {
+        this.source = source;
+        this.entries = entries;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    static CacheWarmer read(Path file, int parallelism) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int comment = line.indexOf('#');
+            String[] fields = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+            if (fields[0].isEmpty()) {
+                continue;
+            }
+            int qtype = fields.length == 2 ? qtype(fields[1]) : -1;
+            if (qtype < 0) {
+                AsyncLog.warn("Skipping {}:{}: expected a name and a QTYPE", file, i + 1);
+                continue;
+            }
+            entries.add(new Entry(fields[0], qtype));
+        }
+        return new CacheWarmer(file.toString(), entries, parallelism);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getWarmed() {
+        return warmed.sum();
+    }
+
+    long getFailed() {
+        return failed.sum();
+    }
+
+    /** How long the run took, or -1 until it is over */
+    long getMillis() {
+        return millis;
+    }
+
+    boolean isDone() {
+        return millis >= 0;
+    }
+
+    /** Resolves every entry and returns when all are done. */
+    void run(Resolve resolve) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        AtomicInteger done = new AtomicInteger();
+        int total = entries.size();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "cache-warm");
+            t.setDaemon(true);
+            return t;
+        });
+        for (Entry entry : entries) {
+            pool.execute(() -> {
+                try {
+                    resolve.resolve(entry.name, entry.qtype);
+                    warmed.increment();
+                } catch (Exception e) {
+                    failed.increment();
+                    AsyncLog.debug("Warming {} failed: {}", entry.name, e.getMessage());
+                }
+                int finished = done.incrementAndGet();
+                if (finished * 10 / total != (finished - 1) * 10 / total) {
+                    AsyncLog.info("Warming cache: {} of {} names", finished, total);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        millis = System.currentTimeMillis() - start;
+        System.out.println("Warmed " + getWarmed() + " of " + total + " names from " + source
+                + " in " + millis + " ms (" + getFailed() + " failed)");
+    }
+
+    private static int qtype(String field) {
+        switch (field.toUpperCase(Locale.ROOT)) {
+            case "A": return 1;
+            case "NS": return 2;
+            case "CNAME": return 5;
+            case "MX": return 15;
+            case "TXT": return 16;
+            default:
+                return field.chars().allMatch(Character::isDigit) && field.length() <= 5
+                        && Integer.parseInt(field) <= 0xFFFF ? Integer.parseInt(field) : -1;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ClientRateLimiter - Per-client token buckets for the NameServer
+ *
+ * Each client gets a bucket of burst tokens that refills at qps tokens a
+ * second, and a query is only answered if it can take a token. Buckets
+ * live in a fixed-size open-addressing table of longs, keyed by the IPv4
+ * address as an int (IPv6 clients by their /64), so the per-packet path
+ * takes no lock and allocates nothing, and a flood of spoofed sources
+ * can't make it grow.
+ *
+ * A new client takes a free slot near its hash. If there is none it
+ * takes over the slot of the neighbour with the most tokens: an idle
+ * client's bucket is full anyway, so forgetting it changes nothing, and
+ * under a flood the slots churn instead of the table growing.
+ *
+ * ResponseRateLimiter keeps its buckets in the same kind of table, with
+ * a hash of (network, QNAME, RCODE) as the key.
+ *
+ * Each slot is two longs: the key, and the bucket state packed as
+ * last refill time (ms since the limiter was made) << 24 | milli-tokens.
+ * Both are updated with compare-and-set.
+ */
+class ClientRateLimiter {
+
+    private static final int PROBES = 8;
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long ONE_TOKEN = 1000;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final long refillPerMilli; // milli-tokens per ms, which is tokens per second
+    private final long capacity;       // milli-tokens
+    private final long start = System.currentTimeMillis();
+
+    /**
+     * @param qps     sustained queries per second allowed per client
+     * @param burst   queries a quiet client may send at once
+     * @param clients clients to track, rounded up to a power of two
+     */
+    ClientRateLimiter(int qps, int burst, int clients) {
+        if (qps < 1 || burst < 1 || burst >= (TOKEN_MASK + 1) / ONE_TOKEN) {
+            throw new IllegalArgumentException("Bad rate limit: qps=" + qps + " burst=" + burst);
+        }
+        int size = Integer.highestOneBit(Math.max(PROBES, clients - 1)) << 1;
+        slots = new AtomicLongArray(size * 2);
+        mask = size - 1;
+        refillPerMilli = qps;
+        capacity = burst * ONE_TOKEN;
+    }
+
+    /** True if the client may send this query now. */
+    boolean tryAcquire(InetAddress client) {
+        return tryAcquire(key(client));
+    }
+
+    /** Same for a bucket with some other key, which must not be 0. */
+    boolean tryAcquire(long key) {
+        return tryAcquire(key, System.currentTimeMillis() - start);
+    }
+
+    // now is ms since start; split out so tests can drive the clock
+    boolean tryAcquire(long key, long now) {
+        int slot = slotFor(key, now);
+        while (true) {
+            long state = slots.get(slot + 1);
+            long tokens = tokens(state, now);
+            if (tokens < ONE_TOKEN) {
+                // Nothing to write: the refill is worked out again next time
+                return false;
+            }
+            long updated = Math.max(now, state >>> TOKEN_BITS) << TOKEN_BITS | (tokens - ONE_TOKEN);
+            if (slots.compareAndSet(slot + 1, state, updated)) {
+                return true;
+            }
+        }
+    }
+
+    /** Number of clients currently holding a slot. */
+    int size() {
+        int used = 0;
+        for (int i = 0; i < slots.length(); i += 2) {
+            used += slots.get(i) != 0 ? 1 : 0;
+        }
+        return used;
+    }
+
+    // Index of the key word of the client's slot, claiming one if needed
+    private int slotFor(long key, long now) {
+        int home = mix(key);
+        while (true) {
+            int quietest = -1;
+            long mostTokens = -1;
+            for (int i = 0; i < PROBES; i++) {
+                int slot = ((home + i) & mask) * 2;
+                long current = slots.get(slot);
+                if (current == key) {
+                    return slot;
+                }
+                if (current == 0) {
+                    if (slots.compareAndSet(slot, 0, key)) {
+                        slots.set(slot + 1, now << TOKEN_BITS | capacity);
+                        return slot;
+                    }
+                    current = slots.get(slot);
+                    if (current == key) {
+                        return slot; // Another packet from the same client got here first
+                    }
+                }
+                long tokens = tokens(slots.get(slot + 1), now);
+                if (tokens > mostTokens) {
+                    mostTokens = tokens;
+                    quietest = slot;
+                }
+            }
+
+            // Table is full around here: take over the quietest neighbour,
+            // the one with the fullest bucket. A client that is being
+            // limited has an empty one, so it can't shake off its limit by
+            // getting evicted.
+            long victim = slots.get(quietest);
+            if (victim != key && slots.compareAndSet(quietest, victim, key)) {
+                slots.set(quietest + 1, now << TOKEN_BITS | capacity);
+                return quietest;
+            }
+        }
+    }
+
+    // Milli-tokens in a bucket once refilled up to now
+    private long tokens(long state, long now) {
+        long elapsed = Math.max(0, now - (state >>> TOKEN_BITS));
+        return Math.min(capacity, (state & TOKEN_MASK) + elapsed * refillPerMilli);
+    }
+
+    // 1 in the top word for IPv4, 2 for IPv6, so neither is ever 0 (empty).
+    // Inet4Address.hashCode() is the address itself, and unlike getAddress()
+    // doesn't allocate.
+    static long key(InetAddress address) {
+        if (address instanceof Inet4Address) {
+            return 1L << 32 | (address.hashCode() & 0xFFFFFFFFL);
+        }
+        byte[] bytes = address.getAddress();
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = prefix << 8 | (bytes[i] & 0xFF);
+        }
+        return 2L << 32 | ((prefix ^ prefix >>> 32) & 0xFFFFFFFFL);
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32);
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DNSPacketParser - Helper class for parsing DNS packets
+ * 
+ * This class handles the complex task of parsing DNS response packets.
+ * DNS packets have a specific structure with multiple sections that need
+ * to be parsed carefully.
+ * 
+ * I learned about DNS packet structure from RFC 1035 and various DNS
+ * documentation. The parsing was tricky to get right, especially
+ * handling name compression and different record types.
+ */
+class DNSPacketParser {
+    public List<DNSResourceRecord> answerRecords = new ArrayList<>();
+    public List<DNSResourceRecord> authorityRecords = new ArrayList<>();
+    public List<DNSResourceRecord> additionalRecords = new ArrayList<>();
+
+    /**
+     * Parses a complete DNS packet into its component parts
+     * This extracts all the records from the different sections
+     */
+    public static DNSPacketParser parseDNSPacket(byte[] packetData) throws IOException {
+        DNSPacketParser parser = new DNSPacketParser();
+        
+        // Extract counts from DNS header
+        int questionCount = ((packetData[4] & 0xff) << 8) | (packetData[5] & 0xff);
+        int answerCount = ((packetData[6] & 0xff) << 8) | (packetData[7] & 0xff);
+        int authorityCount = ((packetData[8] & 0xff) << 8) | (packetData[9] & 0xff);
+        int additionalCount = ((packetData[10] & 0xff) << 8) | (packetData[11] & 0xff);
+
+        int currentOffset = 12; // Start after DNS header
+        
+        // Skip question section (we don't need to parse it)
+        for (int i = 0; i < questionCount; i++) {
+            currentOffset = skipDomainName(packetData, currentOffset);
+            currentOffset += 4; // Skip QTYPE and QCLASS
+        }
+
+        // Parse answer records
+        for (int i = 0; i < answerCount; i++) {
+            DNSResourceRecord record = DNSResourceRecord.parseRecord(packetData, currentOffset);
+            parser.answerRecords.add(record);
+            currentOffset = record.endPosition;
+        }
+        
+        // Parse authority records (NS records for referrals)
+        for (int i = 0; i < authorityCount; i++) {
+            DNSResourceRecord record = DNSResourceRecord.parseRecord(packetData, currentOffset);
+            parser.authorityRecords.add(record);
+            currentOffset = record.endPosition;
+        }
+        
+        // Parse additional records (glue records)
+        for (int i = 0; i < additionalCount; i++) {
+            DNSResourceRecord record = DNSResourceRecord.parseRecord(packetData, currentOffset);
+            parser.additionalRecords.add(record);
+            currentOffset = record.endPosition;
+        }
+        return parser;
+    }
+
+    /**
+     * Creates a DNS query packet
+     * This builds a simple DNS query without EDNS0 for compatibility
+     */
+    public static byte[] createQueryPacket(String domain, int type) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dataStream = new DataOutputStream(outputStream);
+        
+        // DNS Header
+        dataStream.writeShort(0x1234); // Transaction ID
+        dataStream.writeShort(0x0000); // Flags: Standard Query
+
+        dataStream.writeShort(1); // QDCOUNT: 1 question
+        dataStream.writeShort(0); // ANCOUNT: 0 answers
+        dataStream.writeShort(0); // NSCOUNT: 0 authority records
+        dataStream.writeShort(0); // ARCOUNT: 0 additional records
+
+        // Question section: domain name
+        for (String label : domain.split("\\.")) {
+            byte[] labelBytes = label.getBytes();
+            dataStream.writeByte(labelBytes.length);
+            dataStream.write(labelBytes);
+        }
+        dataStream.writeByte(0); // End of domain name
+        dataStream.writeShort(type); // Query type
+        dataStream.writeShort(1); // Class IN
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Skips over a domain name in DNS packet format
+     * Handles both regular labels and compression pointers
+     */
+    public static int skipDomainName(byte[] data, int offset) {
+        while (true) {
+            int length = data[offset] & 0xff;
+            if (length == 0) return offset + 1; // End of name
+            if ((length & 0xC0) == 0xC0) return offset + 2; // Compression pointer
+            offset += 1 + length; // Regular label: length + label bytes
+        }
+    }
+
+    /**
+     * Reads a domain name from DNS packet format
+     * Handles DNS name compression (pointers to earlier names)
+     * This was one of the trickiest parts to implement correctly!
+     */
+    public static String readDomainName(byte[] data, int[] offsetRef) {
+        int currentOffset = offsetRef[0];
+        StringBuilder nameBuilder = new StringBuilder();
+        while (true) {
+            int length = data[currentOffset++] & 0xff;
+            if (length == 0) break; // End of name
+            if ((length & 0xC0) == 0xC0) {
+                // DNS compression: pointer to earlier name
+                int pointer = ((length & 0x3F) << 8) | (data[currentOffset++] & 0xff);
+                offsetRef[0] = currentOffset;
+                String suffix = readDomainName(data, new int[]{pointer});
+                if (nameBuilder.length() > 0 && !suffix.isEmpty()) nameBuilder.append(".");
+                return nameBuilder.append(suffix).toString();
+            }
+            if (nameBuilder.length() > 0) nameBuilder.append(".");
+            nameBuilder.append(new String(data, currentOffset, length));
+            currentOffset += length;
+        }
+        offsetRef[0] = currentOffset;
+        return nameBuilder.toString();
+    }
+}
@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * DNSResourceRecord - Represents a single DNS resource record
+ * 
+ * This class holds all the information from a DNS record including
+ * the domain name, record type, TTL, and the actual data.
+ * 
+ * Different record types store data in different formats:
+ * - A records: 4-byte IPv4 addresses
+ * - CNAME/NS/MX: Domain names (with compression)
+ * - TXT: Length-prefixed text strings
+ */
+class DNSResourceRecord {
+    public String domainName;
+    public int recordType, recordClass, timeToLive, dataLength;
+    public byte[] recordData;
+    public int endPosition;
+    public byte[] completePacket;
+    public int dataStartPosition;
+
+    /**
+     * Parses a single DNS resource record from packet data
+     * This extracts all the fields from a DNS record
+     */
+    public static DNSResourceRecord parseRecord(byte[] packetData, int startOffset) throws IOException {
+        int[] offsetRef = {startOffset};
+        String domainName = DNSPacketParser.readDomainName(packetData, offsetRef);
+        startOffset = offsetRef[0];
+        
+        // Extract record header fields
+        int recordType = ((packetData[startOffset] & 0xff) << 8) | (packetData[startOffset + 1] & 0xff);
+        int recordClass = ((packetData[startOffset + 2] & 0xff) << 8) | (packetData[startOffset + 3] & 0xff);
+        int timeToLive = ((packetData[startOffset + 4] & 0xff) << 24) | ((packetData[startOffset + 5] & 0xff) << 16) |
+                ((packetData[startOffset + 6] & 0xff) << 8) | (packetData[startOffset + 7] & 0xff);
+        int dataLength = ((packetData[startOffset + 8] & 0xff) << 8) | (packetData[startOffset + 9] & 0xff);
+        byte[] recordData = Arrays.copyOfRange(packetData, startOffset + 10, startOffset + 10 + dataLength);
+        
+        // Create and populate the record object
+        DNSResourceRecord record = new DNSResourceRecord();
+        record.domainName = domainName;
+        record.recordType = recordType;
+        record.recordClass = recordClass;
+        record.timeToLive = timeToLive;
+        record.dataLength = dataLength;
+        record.recordData = recordData;
+        record.endPosition = startOffset + 10 + dataLength;
+        record.completePacket = packetData;
+        record.dataStartPosition = startOffset + 10;
+
+        return record;
+    }
+
+    /**
+     * Extracts the record data as a string based on record type
+     * This handles the different data formats for different record types
+     */
+    public String getRecordDataAsString() throws IOException {
+        if (recordType == 1 && recordData.length == 4) {
+            // A record: 4-byte IPv4 address
+            return InetAddress.getByAddress(recordData).getHostAddress();
+        } else if (recordType == 2 || recordType == 5) {
+            // NS records (type 2) and CNAME records (type 5): domain name (with compression)
+            return DNSPacketParser.readDomainName(completePacket, new int[]{dataStartPosition});
+        } else if (recordType == 15) {
+            // MX records (type 15): 2-byte priority + domain name (with compression)
+            int priority = ((recordData[0] & 0xFF) << 8) | (recordData[1] & 0xFF);
+            String domainName = DNSPacketParser.readDomainName(completePacket, new int[]{dataStartPosition + 2});
+            return priority + " " + domainName;
+        } else if (recordType == 16) {
+            // TXT record: length-prefixed text
+            int textLength = recordData[0] & 0xff;
+            return new String(recordData, 1, textLength);
+        } else {
+            return "Unsupported record type";
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * DNSResult - An answer from the iterative resolver plus its TTL
+ *
+ * records is the whole answer RRset, in the order the server sent it, and
+ * data is the first of them as a string. The TTL is the smallest one seen
+ * on the way to the answer, so an answer reached through CNAMEs expires as
+ * soon as any link in the chain would.
+ *
+ * A negative result has no records and data is null. rcode is 3 for
+ * NXDOMAIN, or 0 for NODATA (the name exists without that type). soa is
+ * the SOA record from the authority section, if the server sent one, and
+ * ttl is the negative TTL from RFC 2308: the lower of the SOA's own TTL
+ * and its MINIMUM field. Without an SOA it is 0, as such answers shouldn't
+ * be cached. name is the name the answer is about: the one asked for, or
+ * the end of the CNAME chain it led to.
+ */
+class DNSResult {
+    public final String data;
+    public final int ttl;
+    public final List<DNSResourceRecord> records;
+    public final int rcode;
+    public final DNSResourceRecord soa;
+    public final String name;
+
+    public DNSResult(List<DNSResourceRecord> records, int ttl) throws IOException {
+        this.data = records.get(0).getRecordDataAsString();
+        this.ttl = ttl;
+        this.records = records;
+        this.rcode = 0;
+        this.soa = null;
+        this.name = records.get(0).domainName;
+    }
+
+    private DNSResult(int rcode, String name, DNSResourceRecord soa, int ttl) {
+        this.data = null;
+        this.ttl = ttl;
+        this.records = Collections.emptyList();
+        this.rcode = rcode;
+        this.soa = soa;
+        this.name = name;
+    }
+
+    static DNSResult negative(int rcode, String name, DNSResourceRecord soa, int chainTtl) {
+        int ttl = 0;
+        if (soa != null && soa.recordData.length >= 20) {
+            int minimum = ByteBuffer.wrap(soa.recordData, soa.recordData.length - 4, 4).getInt();
+            ttl = Math.min(chainTtl, Math.max(0, Math.min(soa.timeToLive, minimum)));
+        }
+        return new DNSResult(rcode, name, soa, ttl);
+    }
+
+    public boolean isNegative() {
+        return data == null;
+    }
+}
@@ -0,0 +1,355 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Forwarder - Sends queries on to a set of upstream recursive resolvers
+ *
+ * Each query goes first to the upstream with the lowest score: its
+ * smoothed RTT (SRTT) plus its recent failure rate times the timeout, so
+ * one that fails quickly still ranks behind one that answers.
+ * Upstreams start with no SRTT, so each is tried early on. Every query
+ * also lowers the SRTT of the upstreams it didn't pick by 2%, so a slow or
+ * dead one is retried now and then and can recover. BIND picks servers
+ * the same way.
+ *
+ * If the first upstream hasn't answered within its own p95 latency, the
+ * query is sent to the next one as well (a hedge). The first good answer
+ * wins. An upstream that was still silent when another answered gets the
+ * time it had waited as an RTT sample. An error answer (SERVFAIL,
+ * NOTIMP, REFUSED, a truncated answer or a bad packet) sends the query to
+ * the next upstream straight away. Answers whose ID or question don't
+ * match the query are dropped, as a spoofed answer would be. The whole exchange, failovers and hedges included,
+ * takes at most one timeout.
+ */
+class Forwarder {
+
+    // p95 is only trusted from this many samples; before that, hedge after
+    // a quarter of the timeout
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    private static final double DECAY = 0.98;
+
+    /** One upstream with its running stats */
+    static final class Upstream {
+        final InetSocketAddress address;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder queries = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder hedges = new LongAdder();
+        // Moving averages, changed under the lock and read without it
+        private volatile double srttNanos;
+        private volatile double failureRate;
+        private boolean measured;
+
+        Upstream(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        long getQueries() {
+            return queries.sum();
+        }
+
+        long getErrors() {
+            return errors.sum();
+        }
+
+        long getTimeouts() {
+            return timeouts.sum();
+        }
+
+        /** Queries sent here because the upstream before it was slow */
+        long getHedges() {
+            return hedges.sum();
+        }
+
+        long getSrttNanos() {
+            return (long) srttNanos;
+        }
+
+        double getFailureRate() {
+            return failureRate;
+        }
+
+        LatencyHistogram latency() {
+            return latency;
+        }
+
+        double score(long timeoutNanos) {
+            return srttNanos + failureRate * timeoutNanos;
+        }
+
+        // How long to wait for this one before asking the next as well
+        long hedgeDelayNanos(long timeoutNanos) {
+            long[] snapshot = latency.snapshot();
+            if (LatencyHistogram.count(snapshot) < MIN_HEDGE_SAMPLES) {
+                return timeoutNanos / 4;
+            }
+            return Math.max(TimeUnit.MILLISECONDS.toNanos(1),
+                    Math.min(LatencyHistogram.quantile(snapshot, 0.95), timeoutNanos));
+        }
+
+        synchronized void answered(long rttNanos) {
+            latency.record(rttNanos);
+            sample(rttNanos);
+            failureRate *= 0.9;
+        }
+
+        // Still waiting when another upstream answered, or at the timeout
+        synchronized void waited(long nanos) {
+            sample(nanos);
+        }
+
+        synchronized void failed(long rttNanos) {
+            errors.increment();
+            sample(rttNanos);
+            failureRate = 0.9 * failureRate + 0.1;
+        }
+
+        synchronized void timedOut(long timeoutNanos) {
+            timeouts.increment();
+            sample(timeoutNanos);
+            failureRate = 0.9 * failureRate + 0.1;
+        }
+
+        synchronized void decay() {
+            srttNanos *= DECAY;
+        }
+
+        // SRTT as in TCP (RFC 6298): the first sample, then 7/8 old + 1/8 new
+        private void sample(long nanos) {
+            srttNanos = measured ? srttNanos + (nanos - srttNanos) / 8 : nanos;
+            measured = true;
+        }
+
+        @Override
+        public String toString() {
+            return address.getAddress().getHostAddress() + ":" + address.getPort();
+        }
+    }
+
+    private final List<Upstream> upstreams = new ArrayList<>();
+    private final long timeoutNanos;
+
+    Forwarder(List<InetSocketAddress> addresses, long timeoutMillis) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("No upstreams to forward to");
+        }
+        for (InetSocketAddress address : addresses) {
+            upstreams.add(new Upstream(address));
+        }
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /** Addresses from a list such as "192.0.2.1,192.0.2.2:5353,[2001:db8::1]:53" */
+    static List<InetSocketAddress> addresses(String list) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String part : list.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) {
+                continue;
+            }
+            String host = part;
+            int port = 53;
+            int colon = part.lastIndexOf(':');
+            if (colon > 0 && (part.indexOf(':') == colon || part.charAt(colon - 1) == ']')) {
+                host = part.substring(0, colon);
+                port = Integer.parseInt(part.substring(colon + 1));
+            }
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            addresses.add(new InetSocketAddress(host, port));
+        }
+        return addresses;
+    }
+
+    List<Upstream> upstreams() {
+        return upstreams;
+    }
+
+    /**
+     * Sends query, with recursion desired, and returns the first good
+     * answer. Throws SocketTimeoutException if no upstream gave one within
+     * the timeout.
+     */
+    byte[] exchange(byte[] query) throws IOException {
+        List<Upstream> order = ranked();
+        byte[] request = query.clone();
+        int id = ThreadLocalRandom.current().nextInt(0x10000);
+        request[0] = (byte) (id >> 8);
+        request[1] = (byte) id;
+        request[2] |= 0x01; // RD
+
+        long start = System.nanoTime();
+        long deadline = start + timeoutNanos;
+        long[] sentAt = new long[order.size()];
+        boolean[] waiting = new boolean[order.size()];
+        int sent = 0;
+        long nextSend = start;
+        String lastError = null;
+        byte[] buf = new byte[4096];
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= nextSend && sent < order.size()) {
+                    Upstream upstream = order.get(sent);
+                    socket.send(new DatagramPacket(request, request.length, upstream.address));
+                    upstream.queries.increment();
+                    if (sent > 0 && waitingFor(waiting)) {
+                        upstream.hedges.increment();
+                    }
+                    sentAt[sent] = now;
+                    waiting[sent] = true;
+                    nextSend = now + upstream.hedgeDelayNanos(timeoutNanos);
+                    sent++;
+                }
+                if (!waitingFor(waiting) && sent == order.size()) {
+                    throw new IOException("No upstream could answer: " + lastError);
+                }
+                if (now >= deadline) {
+                    break;
+                }
+
+                long wait = (sent < order.size() ? Math.min(nextSend, deadline) : deadline) - now;
+                socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + 999_999)));
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                int i = indexOf(order, packet.getSocketAddress(), sent);
+                if (i < 0 || !waiting[i] || packet.getLength() < 12
+                        || buf[0] != request[0] || buf[1] != request[1]
+                        || !sameQuestion(request, buf, packet.getLength())) {
+                    continue; // Not an answer to this query
+                }
+                Upstream upstream = order.get(i);
+                waiting[i] = false;
+                int rcode = buf[3] & 0x0F;
+                boolean truncated = (buf[2] & 0x02) != 0;
+                if ((buf[2] & 0x80) == 0 || truncated || rcode == 2 || rcode == 4 || rcode == 5) {
+                    upstream.failed(System.nanoTime() - sentAt[i]);
+                    lastError = upstream + (truncated ? " answered truncated" : " answered rcode " + rcode);
+                    nextSend = System.nanoTime(); // Fail over now
+                    continue;
+                }
+
+                long answeredAt = System.nanoTime();
+                upstream.answered(answeredAt - sentAt[i]);
+                for (int j = 0; j < sent; j++) {
+                    if (waiting[j]) {
+                        order.get(j).waited(answeredAt - sentAt[j]);
+                    }
+                }
+                return Arrays.copyOf(buf, packet.getLength());
+            }
+        }
+
+        for (int j = 0; j < sent; j++) {
+            if (waiting[j]) {
+                order.get(j).timedOut(timeoutNanos);
+            }
+        }
+        throw new SocketTimeoutException("No upstream answered within "
+                + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+    }
+
+    // Upstreams best first; the ones not picked decay towards being retried
+    private List<Upstream> ranked() {
+        List<Upstream> order = new ArrayList<>(upstreams);
+        order.sort(Comparator.comparingDouble(upstream -> upstream.score(timeoutNanos)));
+        for (int i = 1; i < order.size(); i++) {
+            order.get(i).decay();
+        }
+        return order;
+    }
+
+    // The answer repeats the question asked, name in any case (RFC 5452)
+    static boolean sameQuestion(byte[] request, byte[] answer, int length) {
+        if (answer[4] != request[4] || answer[5] != request[5]) {
+            return false;
+        }
+        int end = DNSPacketParser.skipDomainName(request, 12) + 4;
+        if (length < end) {
+            return false;
+        }
+        for (int i = 12; i < end; i++) {
+            byte a = request[i];
+            byte b = answer[i];
+            if (a != b && ((a | 0x20) != (b | 0x20) || (a | 0x20) < 'a' || (a | 0x20) > 'z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean waitingFor(boolean[] waiting) {
+        for (boolean w : waiting) {
+            if (w) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(List<Upstream> order, SocketAddress from, int sent) {
+        for (int i = 0; i < sent; i++) {
+            if (order.get(i).address.equals(from)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Per-upstream counters, SRTT and latency in Prometheus text format. */
+    void write(StringBuilder out) {
+        writeCounters(out, "nameserver_upstream_queries_total", "Queries sent to each upstream.",
+                Upstream::getQueries);
+        writeCounters(out, "nameserver_upstream_errors_total",
+                "Error answers (SERVFAIL, NOTIMP, REFUSED, truncated or malformed) from each upstream.", Upstream::getErrors);
+        writeCounters(out, "nameserver_upstream_timeouts_total",
+                "Queries each upstream hadn't answered when the timeout ran out.", Upstream::getTimeouts);
+        writeCounters(out, "nameserver_upstream_hedges_total",
+                "Queries sent to each upstream because the one before it was slow.", Upstream::getHedges);
+        NameServerMetrics.writeHeader(out, "nameserver_upstream_srtt_seconds", "gauge",
+                "Smoothed round-trip time of each upstream.");
+        for (Upstream upstream : upstreams) {
+            NameServerMetrics.writeSample(out, "nameserver_upstream_srtt_seconds", "upstream", upstream.toString(),
+                    Double.toString(upstream.getSrttNanos() / 1e9));
+        }
+        NameServerMetrics.writeHeader(out, "nameserver_upstream_failure_rate", "gauge",
+                "Moving average of errors and timeouts per query for each upstream.");
+        for (Upstream upstream : upstreams) {
+            NameServerMetrics.writeSample(out, "nameserver_upstream_failure_rate", "upstream", upstream.toString(),
+                    Double.toString(upstream.getFailureRate()));
+        }
+        NameServerMetrics.writeHeader(out, "nameserver_upstream_seconds", "summary",
+                "Time for each upstream to answer.");
+        for (Upstream upstream : upstreams) {
+            NameServerMetrics.writeSummary(out, "nameserver_upstream_seconds", "upstream", upstream.toString(),
+                    upstream.latency);
+        }
+    }
+
+    private void writeCounters(StringBuilder out, String name, String help, ToLongFunction<Upstream> value) {
+        NameServerMetrics.writeHeader(out, name, "counter", help);
+        for (Upstream upstream : upstreams) {
+            NameServerMetrics.writeSample(out, name, "upstream", upstream.toString(),
+                    Long.toString(value.applyAsLong(upstream)));
+        }
+    }
+}
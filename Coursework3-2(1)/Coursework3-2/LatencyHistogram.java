@@ -0,0 +1,92 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram - Lock-free histogram of durations in nanoseconds
+ *
+ * Buckets are log-linear, as in HdrHistogram: every power of two is split
+ * into 16 equal sub-buckets, so any value is placed within about 6% of
+ * its real size, from 1ns up to 2^40ns (about 18 minutes). Each bucket is
+ * a LongAdder, so threads recording at the same time don't contend and
+ * record() never blocks or allocates.
+ *
+ * Quantiles are read from a copy of the counts, so they are consistent
+ * with each other even while other threads keep recording.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    private final LongAdder[] counts = new LongAdder[(MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts[index(value)].increment();
+        sum.add(value);
+    }
+
+    /** Counts at this moment, for quantile() */
+    long[] snapshot() {
+        long[] copy = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            copy[i] = counts[i].sum();
+        }
+        return copy;
+    }
+
+    long sumNanos() {
+        return sum.sum();
+    }
+
+    static long count(long[] snapshot) {
+        long total = 0;
+        for (long c : snapshot) {
+            total += c;
+        }
+        return total;
+    }
+
+    /** Upper bound of the bucket holding quantile q (0 to 1), 0 if empty. */
+    static long quantile(long[] snapshot, double q) {
+        long total = count(snapshot);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return MAX_VALUE;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
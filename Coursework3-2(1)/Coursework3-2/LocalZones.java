@@ -0,0 +1,363 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LocalZones - Zones we are authoritative for, answered without upstream
+ *
+ * The zone files are loaded into a trie of labels, starting from the
+ * root, so "www.shop.test" is found by following "test", "shop" and then
+ * "www". Each node's children are an open-addressing hash table keyed by
+ * the lower-cased label. A lookup hashes and compares the labels straight
+ * out of the request packet. It takes one step per label and allocates
+ * nothing. Each node keeps its answer records ready in wire format, owner
+ * compressed to the question, so an answer is a few array copies.
+ *
+ * Answers are authoritative (AA set):
+ * - the RRset for the name and type, or the name's CNAME
+ * - NODATA when the name exists without that type
+ * - NXDOMAIN when the name doesn't exist in the zone
+ * Both negative answers carry the zone's SOA in the authority section.
+ * A CNAME isn't followed, and names below an NS record other than at the
+ * apex are answered from this zone rather than referred.
+ *
+ * A LocalZones never changes once built. NameServer reloads by building a
+ * new one and swapping the reference.
+ */
+class LocalZones {
+
+    /** write() results besides an rcode */
+    static final int NOT_LOCAL = -1;
+    static final int TOO_BIG = -2;
+
+    private static final int NOERROR = 0;
+    private static final int NXDOMAIN = 3;
+
+    // answer() writes here first, one buffer per thread, so only the copy
+    // it returns is allocated
+    private static final ThreadLocal<ByteBuffer> SCRATCH =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(65535));
+
+    private final Node root;
+    private final int zoneCount;
+    private final int recordCount;
+
+    private LocalZones(Node root, int zoneCount, int recordCount) {
+        this.root = root;
+        this.zoneCount = zoneCount;
+        this.recordCount = recordCount;
+    }
+
+    static LocalZones load(List<Path> files) throws IOException {
+        List<ZoneFile> zones = new ArrayList<>();
+        for (Path file : files) {
+            zones.add(ZoneFile.read(file));
+        }
+        return build(zones);
+    }
+
+    static LocalZones build(List<ZoneFile> zones) throws IOException {
+        Builder root = new Builder(null, "");
+        int records = 0;
+        for (ZoneFile zone : zones) {
+            Builder apex = root.descend(zone.apex);
+            if (apex.zone != null && apex.zone.apex.equals(zone.apex)) {
+                throw new IOException("zone " + zone.apex + " loaded twice");
+            }
+            Zone z = new Zone(zone);
+            apex.zone = z;
+            for (ZoneFile.Record record : zone.records) {
+                root.descend(record.owner).add(record);
+                records++;
+            }
+        }
+        return new LocalZones(root.freeze(null, 0), zones.size(), records);
+    }
+
+    int zoneCount() {
+        return zoneCount;
+    }
+
+    int recordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Writes the answer to req at out's position and returns its rcode.
+     * Returns NOT_LOCAL, writing nothing, when the name is in none of our
+     * zones, the question isn't for class IN or it can't be read without
+     * decompressing it, and
+     * TOO_BIG when the answer doesn't fit in out.
+     */
+    int write(byte[] req, int length, ByteBuffer out) {
+        int labels = countLabels(req, length);
+        if (labels < 0 || (req[2] & 0x78) != 0 || req[4] != 0 || req[5] != 1) {
+            return NOT_LOCAL;
+        }
+        int questionEnd = DNSPacketParser.skipDomainName(req, 12) + 4;
+        if (req[questionEnd - 2] != 0 || req[questionEnd - 1] != CacheKey.CLASS_IN) {
+            return NOT_LOCAL;
+        }
+        Node node = deepest(req, 12, labels);
+        Zone zone = node.zone;
+        if (zone == null) {
+            return NOT_LOCAL;
+        }
+        int qtype = (req[questionEnd - 4] & 0xFF) << 8 | (req[questionEnd - 3] & 0xFF);
+
+        int rcode = NOERROR;
+        byte[] answer = null;
+        int answerCount = 0;
+        if (node.depth != labels) {
+            rcode = NXDOMAIN;
+        } else {
+            int i = node.find(qtype);
+            if (i < 0 && qtype != ZoneFile.CNAME) {
+                i = node.find(ZoneFile.CNAME);
+            }
+            if (i >= 0) {
+                answer = node.answers[i];
+                answerCount = node.counts[i];
+            }
+        }
+        byte[] authority = answer == null ? zone.soa : null;
+        int size = questionEnd + (answer != null ? answer.length : authority.length);
+        if (size > out.remaining()) {
+            return TOO_BIG;
+        }
+
+        out.put(req, 0, 2);
+        // QR, the client's RD, AA and RA
+        out.put((byte) (0x84 | (req[2] & 0x01)));
+        out.put((byte) (0x80 | rcode));
+        out.putShort((short) 1);
+        out.putShort((short) answerCount);
+        out.putShort((short) (authority != null ? 1 : 0));
+        out.putShort((short) 0);
+        out.put(req, 12, questionEnd - 12);
+        out.put(answer != null ? answer : authority);
+        return rcode;
+    }
+
+    /** Whether req asks about a name in one of our zones. */
+    boolean isLocal(byte[] req, int length) {
+        int labels = countLabels(req, length);
+        return labels >= 0 && deepest(req, 12, labels).zone != null;
+    }
+
+    /**
+     * The whole answer to req, or null if it isn't ours. A name outside
+     * our zones allocates nothing.
+     */
+    byte[] answer(byte[] req, int length) {
+        if (!isLocal(req, length)) {
+            return null;
+        }
+        ByteBuffer out = SCRATCH.get().clear();
+        return write(req, length, out) == NOT_LOCAL ? null : Arrays.copyOf(out.array(), out.position());
+    }
+
+    // Labels in the question name, or -1 if it is compressed or runs off the end
+    private static int countLabels(byte[] msg, int length) {
+        int labels = 0;
+        for (int pos = 12; pos < length; labels++) {
+            int len = msg[pos] & 0xFF;
+            if (len == 0) {
+                return pos + 5 <= length ? labels : -1;
+            }
+            if ((len & 0xC0) != 0) {
+                return -1;
+            }
+            pos += 1 + len;
+        }
+        return -1;
+    }
+
+    // The deepest node matching a suffix of the name at pos, which has
+    // labels labels. Recursing finds the last label first without any
+    // scratch space for label offsets.
+    private Node deepest(byte[] msg, int pos, int labels) {
+        if (labels == 0) {
+            return root;
+        }
+        int len = msg[pos];
+        Node parent = deepest(msg, pos + 1 + len, labels - 1);
+        if (parent.depth != labels - 1) {
+            return parent; // A label further right wasn't found
+        }
+        Node child = parent.child(msg, pos + 1, len);
+        return child != null ? child : parent;
+    }
+
+    static int hash(byte[] label, int offset, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + toLower(label[offset + i]);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+    }
+
+    // A zone's apex details shared by every node in it
+    private static final class Zone {
+        final String apex;
+        // SOA record for the authority section, owner name uncompressed and
+        // TTL lowered to the negative TTL
+        final byte[] soa;
+
+        Zone(ZoneFile zone) throws IOException {
+            this.apex = zone.apex;
+            byte[] owner = ZoneFile.toWire(zone.apex);
+            ByteBuffer soa = ByteBuffer.allocate(owner.length + 10 + zone.soa.rdata.length);
+            soa.put(owner).putShort((short) ZoneFile.SOA).putShort((short) 1).putInt(zone.negativeTtl())
+                    .putShort((short) zone.soa.rdata.length).put(zone.soa.rdata);
+            this.soa = soa.array();
+        }
+    }
+
+    private static final class Node {
+        final int depth;
+        final Zone zone;
+        // Children as an open-addressing table, null slots empty
+        final byte[][] labels;
+        final Node[] children;
+        // Answer records by type, owner pointing at the question
+        final int[] types;
+        final byte[][] answers;
+        final int[] counts;
+
+        Node(int depth, Zone zone, byte[][] labels, Node[] children, int[] types, byte[][] answers, int[] counts) {
+            this.depth = depth;
+            this.zone = zone;
+            this.labels = labels;
+            this.children = children;
+            this.types = types;
+            this.answers = answers;
+            this.counts = counts;
+        }
+
+        Node child(byte[] msg, int offset, int length) {
+            if (children.length == 0) {
+                return null;
+            }
+            int mask = children.length - 1;
+            for (int i = hash(msg, offset, length) & mask; labels[i] != null; i = (i + 1) & mask) {
+                if (matches(labels[i], msg, offset, length)) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        int find(int type) {
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == type) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static boolean matches(byte[] label, byte[] msg, int offset, int length) {
+            if (label.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (label[i] != toLower(msg[offset + i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Mutable node used while loading, frozen into a Node when done
+    private static final class Builder {
+        final Builder parent;
+        final String label;
+        final Map<String, Builder> children = new HashMap<>();
+        final Map<Integer, List<ZoneFile.Record>> records = new LinkedHashMap<>();
+        Zone zone;
+
+        Builder(Builder parent, String label) {
+            this.parent = parent;
+            this.label = label;
+        }
+
+        Builder descend(String name) {
+            Builder node = this;
+            if (name.isEmpty()) {
+                return node;
+            }
+            String[] parts = name.split("\\.");
+            for (int i = parts.length - 1; i >= 0; i--) {
+                String part = parts[i];
+                Builder current = node;
+                node = current.children.computeIfAbsent(part, l -> new Builder(current, l));
+            }
+            return node;
+        }
+
+        void add(ZoneFile.Record record) throws IOException {
+            List<ZoneFile.Record> set = records.computeIfAbsent(record.type, t -> new ArrayList<>());
+            boolean cname = records.containsKey(ZoneFile.CNAME);
+            if (cname && records.size() > 1) {
+                throw new IOException(record.owner + " has a CNAME and other records");
+            }
+            set.add(record);
+        }
+
+        Node freeze(Zone enclosing, int depth) {
+            Zone inZone = zone != null ? zone : enclosing;
+
+            int[] types = new int[records.size()];
+            byte[][] answers = new byte[records.size()][];
+            int[] counts = new int[records.size()];
+            int t = 0;
+            for (Map.Entry<Integer, List<ZoneFile.Record>> entry : records.entrySet()) {
+                types[t] = entry.getKey();
+                answers[t] = wire(entry.getValue());
+                counts[t] = entry.getValue().size();
+                t++;
+            }
+
+            int capacity = children.isEmpty() ? 0 : Integer.highestOneBit(children.size() * 2 - 1) * 2;
+            byte[][] labels = new byte[capacity][];
+            Node[] nodes = new Node[capacity];
+            for (Builder child : children.values()) {
+                byte[] label = child.label.getBytes(StandardCharsets.US_ASCII);
+                int i = hash(label, 0, label.length) & (capacity - 1);
+                while (labels[i] != null) {
+                    i = (i + 1) & (capacity - 1);
+                }
+                labels[i] = label;
+                nodes[i] = child.freeze(inZone, depth + 1);
+            }
+            return new Node(depth, inZone, labels, nodes, types, answers, counts);
+        }
+
+        // Every record of an RRset, owner compressed to the question name
+        private static byte[] wire(List<ZoneFile.Record> set) {
+            int size = 0;
+            for (ZoneFile.Record record : set) {
+                size += 12 + record.rdata.length;
+            }
+            ByteBuffer out = ByteBuffer.allocate(size);
+            for (ZoneFile.Record record : set) {
+                out.putShort((short) 0xC00C).putShort((short) record.type).putShort((short) 1)
+                        .putInt(record.ttl).putShort((short) record.rdata.length).put(record.rdata);
+            }
+            return out.array();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * MetricsHttpServer - Serves NameServer metrics for Prometheus to scrape
+ *
+ * A plain one-connection-at-a-time HTTP server like HTTPServer: read the
+ * request line, skip the headers, answer and close. GET /metrics returns
+ * whatever the supplier renders, in Prometheus text format. It runs on
+ * its own daemon thread and is only started if a metrics port is set.
+ */
+class MetricsHttpServer {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final ServerSocket serverSocket;
+    private final Supplier<String> metrics;
+
+    MetricsHttpServer(int port, Supplier<String> metrics) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.metrics = metrics;
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    void start() {
+        Thread t = new Thread(this::run, "metrics-http");
+        t.setDaemon(true);
+        t.start();
+        System.out.println("NameServer metrics on http://localhost:" + getPort() + "/metrics");
+    }
+
+    private void run() {
+        while (true) {
+            try (Socket clientSocket = serverSocket.accept()) {
+                clientSocket.setSoTimeout(5000);
+                handle(clientSocket);
+            } catch (IOException e) {
+                AsyncLog.warn("Error serving metrics: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void handle(Socket clientSocket) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(),
+                StandardCharsets.US_ASCII));
+        OutputStream out = clientSocket.getOutputStream();
+
+        // Read the request line
+        String requestLine = reader.readLine();
+        if (requestLine == null || requestLine.isEmpty()) {
+            return;
+        }
+        String[] requestParts = requestLine.split(" ");
+        if (requestParts.length < 2 || !requestParts[0].equals("GET")) {
+            sendResponse(out, 405, "Method Not Allowed", "Only GET is supported\n");
+            return;
+        }
+
+        // Read and discard the remaining headers (until an empty line is found)
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            // Nothing in them matters here
+        }
+
+        String path = requestParts[1];
+        if (path.equals("/metrics")) {
+            sendResponse(out, 200, "OK", metrics.get());
+        } else {
+            sendResponse(out, 404, "Not Found", "Try /metrics\n");
+        }
+    }
+
+    private static void sendResponse(OutputStream out, int statusCode, String statusText, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII));
+        writer.write("HTTP/1.1 " + statusCode + " " + statusText + "\r\n");
+        writer.write("Content-Type: " + CONTENT_TYPE + "\r\n");
+        writer.write("Content-Length: " + bytes.length + "\r\n");
+        writer.write("Connection: close\r\n");
+        writer.write("\r\n"); // End of headers
+        writer.flush();
+        out.write(bytes);
+        out.flush();
+    }
+}
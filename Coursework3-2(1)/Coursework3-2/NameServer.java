@@ -8,8 +8,16 @@
 
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 // DO NOT EDIT starts
 interface NameServerInterface {
@@ -19,248 +27,1992 @@ interface NameServerInterface {
 // DO NOT EDIT ends
 
 public class NameServer implements NameServerInterface {
+    // BLOCKING is one DatagramSocket feeding every packet to the thread pool.
+    // SELECTOR uses a non-blocking DatagramChannel and answers cache hits on
+    // the I/O thread. REUSEPORT opens several channels on the same port, each
+    // with its own receive loop and cache shard. Pick with setIoMode or
+    // -Dnameserver.io=selector|reuseport.
+    enum IoMode { BLOCKING, SELECTOR, REUSEPORT }
+
+    private IoMode ioMode = IoMode.valueOf(System.getProperty("nameserver.io", "blocking").toUpperCase());
+    private int listeners = Integer.getInteger("nameserver.listeners", Runtime.getRuntime().availableProcessors());
+    private boolean rateLimiting = true;
+    // Response Rate Limiting for UDP: rrlRps identical answers a second per
+    // client network, and one in rrlSlip of the rest sent truncated. 0 rps
+    // turns it off.
+    private int rrlRps = Integer.getInteger("nameserver.rrl.rps", 10);
+    private int rrlSlip = Integer.getInteger("nameserver.rrl.slip", 2);
+    private int rateLimitClients = Integer.getInteger("nameserver.ratelimit.clients", 65536);
+    private ResponseRateLimiter responseRateLimiter = newResponseRateLimiter();
+    // Optional per-client query limit on top: rateLimitQps a second
+    // sustained, bursts of up to rateLimitBurst. Off (0) by default, since
+    // it cuts off everyone behind a busy NAT.
+    private int rateLimitQps = Integer.getInteger("nameserver.ratelimit.qps", 0);
+    private int rateLimitBurst = Integer.getInteger("nameserver.ratelimit.burst", Math.max(rateLimitQps, 1));
+    private ClientRateLimiter rateLimiter = newClientRateLimiter();
+
+    // Upstream TTLs are honoured up to a day, the usual resolver ceiling.
+    // NXDOMAIN and NODATA are cached for the negative TTL from the zone's
+    // SOA (RFC 2308), at most 3 hours as section 5 suggests, and not at all
+    // if upstream sent no SOA. Types we don't resolve get NODATA for
+    // NEGATIVE_TTL.
+    private static final int MAX_TTL = 86400;
+    private static final int MAX_NEGATIVE_TTL = 10800;
+    private static final int NEGATIVE_TTL = 30;
+    // An NXDOMAIN is also cached under its name with QTYPE 0, which is
+    // reserved, so any query at or below that name finds it (RFC 8020)
+    static final int NXDOMAIN_CUT = 0;
+
+    // Refresh-ahead: a record hit in the last tenth of its TTL is resolved
+    // again in the background so popular names never expire. Very short
+    // TTLs are left alone, they would be refreshed on nearly every hit.
+    private static final double PREFETCH_FRACTION = 0.1;
+    private static final int PREFETCH_MIN_TTL = 10;
+
+    // Serve-stale (RFC 8767): expired answers are kept for staleWindowSeconds.
+    // If upstream fails, or hasn't answered within staleDeadlineMillis, the
+    // client gets the stale answer with STALE_TTL while the refresh carries on.
+    private static final int STALE_TTL = 30;
+    private long staleWindowSeconds = Long.getLong("nameserver.stale.window", 86400L);
+    private long staleDeadlineMillis = Long.getLong("nameserver.stale.deadline", 1800L);
+    // Answers bigger than the client can take over UDP go out truncated with
+    // TC set, and the client asks again over TCP on the same port. That is
+    // 512 bytes, or with EDNS0 the size the client advertises, capped at
+    // ednsUdpSize (-Dnameserver.edns.udp, default 1232 as recommended by
+    // DNS Flag Day 2020). A TCP client can have up to TCP_MAX_OUTSTANDING
+    // queries in flight on one connection.
+    private static final int UDP_MAX_SIZE = 512;
+    private int ednsUdpSize = Math.max(UDP_MAX_SIZE, Integer.getInteger("nameserver.edns.udp", 1232));
+    private static final int TCP_MAX_OUTSTANDING = 100;
+    private boolean tcpEnabled = Boolean.parseBoolean(System.getProperty("nameserver.tcp", "true"));
+    private long tcpIdleMillis = Long.getLong("nameserver.tcp.idle", 10_000L);
     private InetAddress upstreamIP;
     private int upstreamPort;
     private Resolver resolver;
-    private final ExecutorService threadPool = Executors.newFixedThreadPool(10);
-    private final Map<String, CachedRecord> cache = Collections.synchronizedMap(new HashMap<>());
-    private final Map<String, CachedRecord> negativeCache = Collections.synchronizedMap(new HashMap<>());
-    private final Map<InetAddress, RequestCounter> requestCounters = new ConcurrentHashMap<>();
+    // Workers take queries from a bounded queue, cache hits ahead of
+    // misses. A query that finds the queue full, or is still waiting
+    // queueDeadlineMillis after it arrived, is shed: UDP clients get
+    // SERVFAIL if it was turned away and nothing if it went stale (they have
+    // retried by then), TCP clients get SERVFAIL either way.
+    private long queueDeadlineMillis = Long.getLong("nameserver.queue.deadline", 2000L);
+    private final AdmissionQueue workQueue = new AdmissionQueue(Integer.getInteger("nameserver.queue.size", 1024));
+    private final ThreadPoolExecutor threadPool = new ThreadPoolExecutor(10, 10, 0L, TimeUnit.MILLISECONDS,
+            workQueue, workQueue);
+    // Cache budget per server: a number of entries, or a memory budget in
+    // bytes when nameserver.cache.bytes is set. A quarter of it goes to the
+    // negative cache, and REUSEPORT splits it evenly between listeners.
+    private long cacheMaxEntries = Long.getLong("nameserver.cache.entries", 100_000L);
+    private long cacheMaxBytes = Long.getLong("nameserver.cache.bytes", 0L);
+    // Where cached records live, -Dnameserver.cache.backend=heap|offheap
+    enum CacheBackend { HEAP, OFFHEAP }
+
+    private CacheBackend cacheBackend =
+            CacheBackend.valueOf(System.getProperty("nameserver.cache.backend", "heap").toUpperCase());
+    private final List<CacheShard> shards = new CopyOnWriteArrayList<>();
+    private CacheShard sharedCache = newShard(1);
+    // Warm restart: with nameserver.snapshot set, the caches are loaded from
+    // that file on startup and written back to it every
+    // nameserver.snapshot.interval seconds and on shutdown
+    private String snapshotFile = System.getProperty("nameserver.snapshot");
+    private long snapshotIntervalSeconds = Long.getLong("nameserver.snapshot.interval", 60L);
+    // Names to resolve at startup (-Dnameserver.warm=file, see CacheWarmer),
+    // warmParallelism at a time, before the listeners start unless
+    // -Dnameserver.warm.background=true
+    private String warmFile = System.getProperty("nameserver.warm");
+    private int warmParallelism = Integer.getInteger("nameserver.warm.parallel", 8);
+    private boolean warmInBackground = Boolean.getBoolean("nameserver.warm.background");
+    private volatile CacheWarmer warmer;
+    private ScheduledExecutorService snapshotWriter;
+    private volatile boolean snapshotLoaded;
+    // Zones answered authoritatively from LocalZones, never sent upstream:
+    // -Dnameserver.zones=file1,file2 or setLocalZones. Loaded at startup;
+    // reloadLocalZones builds a new trie and swaps it in.
+    private List<Path> zoneFiles = zoneFilesFrom(System.getProperty("nameserver.zones", ""));
+    private volatile LocalZones localZones;
+    private final LongAdder localAnswers = new LongAdder();
+    // Forwarding mode: -Dnameserver.forwarders=host[:port],... or
+    // setForwarders sends misses to these recursors, picked by SRTT and
+    // hedged (see Forwarder), instead of iterating down from the root given
+    // to setNameServer. Each query gets forwardTimeoutMillis in all.
+    private List<InetSocketAddress> forwarders = Forwarder.addresses(System.getProperty("nameserver.forwarders", ""));
+    private long forwardTimeoutMillis = Long.getLong("nameserver.forward.timeout", 1500L);
+    private Forwarder forwarder;
+    private final ConcurrentMap<CacheKey, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalescedQueries = new LongAdder();
+    private final LongAdder nxdomainCutHits = new LongAdder();
+    // Per-stage and per-QTYPE latency, served with the counters below over
+    // HTTP on metricsPort (-Dnameserver.metrics.port, 0 for none)
+    private final NameServerMetrics metrics = new NameServerMetrics();
+    private int metricsPort = Integer.getInteger("nameserver.metrics.port", 0);
+    // Background refreshes: refresh-ahead prefetches and serve-stale updates
+    private final ThreadPoolExecutor refreshPool = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(256), new ThreadPoolExecutor.AbortPolicy());
+    // Keys with a refresh-ahead running, mapped to the expiry of the record
+    // being replaced. Kept here rather than on the record because off-heap
+    // reads hand out a new copy every time.
+    private final ConcurrentMap<CacheKey, Long> prefetching = new ConcurrentHashMap<>();
+    private final LongAdder prefetchesIssued = new LongAdder();
+    private final LongAdder prefetchMissesAvoided = new LongAdder();
+    private final LongAdder staleAnswersServed = new LongAdder();
+
+    static class CachedRecord {
+        // The answer RRset as it goes on the wire: RDLENGTH and RDATA of each
+        // record in turn, names uncompressed. null for a negative entry.
+        public final byte[] data;
+        public final long expires;
+        public final int type;
+        public final int rcode;
+        public final int originalTtl;
+
+        // Finished response for this record, built for the query that missed.
+        // Hits copy it and patch in their own ID, RD bit, question and the
+        // remaining TTL instead of encoding the answer again.
+        private byte[] wire;
+        private int questionLength;
+        private int[] ttlOffsets;
+        // Where each answer record starts in wire, plus where the last ends
+        private int[] answerOffsets;
+        // A negative answer's SOA record as it goes in the authority section,
+        // owner name uncompressed, or null. The snapshot and the off-heap
+        // cache store it too, so a rebuilt response still carries the SOA.
+        byte[] authority;
+        // For NXDOMAIN, the name that doesn't exist: the query's, or the end
+        // of its CNAME chain
+        String nxdomain;
+
+        // Hits hand out the answer records starting from a different one each
+        // time. Racy increments only skip or repeat a step, which is harmless.
+        int rotation;
+
+        // A record fetched by refresh-ahead keeps the expiry of the one it
+        // replaced, so the first hit after that time can be counted as a
+        // miss the refresh avoided.
+        private volatile int missAvoidedState;
+        long replacedExpiry;
+        private static final AtomicIntegerFieldUpdater<CachedRecord> MISS_AVOIDED_STATE =
+                AtomicIntegerFieldUpdater.newUpdater(CachedRecord.class, "missAvoidedState");
+
+        public CachedRecord(byte[] data, int ttl, int type, int rcode) {
+            this.data = data;
+            this.originalTtl = ttl;
+            this.expires = System.currentTimeMillis() + (ttl * 1000L);
+            this.type = type;
+            this.rcode = rcode;
+        }
+
+        // Record read back from storage, which already has an absolute expiry
+        CachedRecord(byte[] data, long expires, int originalTtl, int type, int rcode) {
+            this.data = data;
+            this.originalTtl = originalTtl;
+            this.expires = expires;
+            this.type = type;
+            this.rcode = rcode;
+        }
+
+        public static CachedRecord negative(int ttl, int rcode) {
+            return new CachedRecord(null, ttl, -1, rcode);
+        }
+
+        /** The data for an RRset made of these RDATA values, in this order. */
+        static byte[] rrset(byte[]... rdata) {
+            int size = 0;
+            for (byte[] value : rdata) {
+                size += 2 + value.length;
+            }
+            ByteBuffer out = ByteBuffer.allocate(size);
+            for (byte[] value : rdata) {
+                out.putShort((short) value.length).put(value);
+            }
+            return out.array();
+        }
+
+        // Number of records in data
+        int answerCount() {
+            int count = 0;
+            for (int pos = 0; data != null && pos < data.length; count++) {
+                pos += 2 + ((data[pos] & 0xFF) << 8 | (data[pos + 1] & 0xFF));
+            }
+            return count;
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() > expires;
+        }
+
+        boolean isLive() {
+            return !isExpired();
+        }
+
+        // Expired and also past the serve-stale window after that
+        boolean isPastStaleWindow(long staleWindowMillis) {
+            return System.currentTimeMillis() > expires + staleWindowMillis;
+        }
+
+        public int getRemainingTtl() {
+            // Round up so a record answered straight after caching keeps its full TTL
+            return (int) Math.max(0, (expires - System.currentTimeMillis() + 999) / 1000);
+        }
+
+        // In the last part of its TTL, where a hit should refresh it
+        boolean inRefreshWindow() {
+            if (data == null || originalTtl < PREFETCH_MIN_TTL) {
+                return false;
+            }
+            long refreshAt = expires - (long) (originalTtl * 1000L * PREFETCH_FRACTION);
+            return System.currentTimeMillis() >= refreshAt;
+        }
+
+        // True for the first hit after the record this one replaced expired
+        boolean claimMissAvoided() {
+            return replacedExpiry != 0 && missAvoidedState == 0
+                    && System.currentTimeMillis() > replacedExpiry
+                    && MISS_AVOIDED_STATE.compareAndSet(this, 0, 1);
+        }
+
+        byte[] responseTemplate() {
+            return wire;
+        }
+
+        void setResponseTemplate(byte[] response) {
+            questionLength = DNSPacketParser.skipDomainName(response, 12) + 4 - 12;
+            int answers = (response[6] & 0xFF) << 8 | (response[7] & 0xFF);
+            answerOffsets = new int[answers + 1];
+            ttlOffsets = findTtlOffsets(response, 12 + questionLength, answerOffsets);
+            wire = response;
+        }
+
+        /**
+         * Writes the response for req at the buffer's position without
+         * allocating. Returns the length written, or -1 if there is no
+         * template, it doesn't fit, or req's question is laid out differently
+         * (e.g. a compressed QNAME), in which case the caller rebuilds it.
+         */
+        int writeResponse(byte[] req, ByteBuffer out) {
+            return writeResponse(req, out, getRemainingTtl());
+        }
+
+        int writeResponse(byte[] req, ByteBuffer out, int ttl) {
+            if (wire == null) {
+                return -1;
+            }
+            // Answers point back at the question, so only a response without
+            // any can go out with a question of another length, as it does
+            // when an NXDOMAIN answers for the names below it
+            int shift = DNSPacketParser.skipDomainName(req, 12) + 4 - 12 - questionLength;
+            int answers = answerOffsets.length - 1;
+            if (wire.length + shift > out.remaining() || shift != 0 && answers > 0) {
+                return -1;
+            }
+            int start = out.position();
+            int first = answers > 1 ? Math.floorMod(rotation++, answers) : 0;
+            if (first == 0) {
+                out.put(wire, 0, 12);
+                // The client's own question, so its 0x20 case randomisation survives
+                out.put(req, 12, questionLength + shift);
+                out.put(wire, 12 + questionLength, wire.length - 12 - questionLength);
+                for (int offset : ttlOffsets) {
+                    out.putInt(start + offset + shift, ttl);
+                }
+            } else {
+                // Same records, starting from answer number first
+                out.put(wire, 0, answerOffsets[0]);
+                for (int i = 0; i < answers; i++) {
+                    int record = (first + i) % answers;
+                    int from = answerOffsets[record];
+                    int at = out.position();
+                    out.put(wire, from, answerOffsets[record + 1] - from);
+                    out.putInt(at + ttlOffsets[record] - from, ttl);
+                }
+                out.put(wire, answerOffsets[answers], wire.length - answerOffsets[answers]);
+                for (int i = answers; i < ttlOffsets.length; i++) {
+                    out.putInt(start + ttlOffsets[i], ttl);
+                }
+                out.put(start + 12, req, 12, questionLength);
+            }
+            out.put(start, req[0]);
+            out.put(start + 1, req[1]);
+            out.put(start + 2, (byte) ((wire[2] & 0xFE) | (req[2] & 0x01)));
+            return wire.length + shift;
+        }
+
+        byte[] responseFor(byte[] req) {
+            return responseFor(req, getRemainingTtl());
+        }
+
+        byte[] responseFor(byte[] req, int ttl) {
+            if (wire == null) {
+                return null;
+            }
+            byte[] out = new byte[wire.length + DNSPacketParser.skipDomainName(req, 12) + 4 - 12 - questionLength];
+            return writeResponse(req, ByteBuffer.wrap(out), ttl) < 0 ? null : out;
+        }
+
+        // Offsets of the TTL field of every answer and authority record.
+        // The additional section is left alone: an OPT record keeps its
+        // flags where the TTL would be. Fills in answerStarts on the way.
+        private static int[] findTtlOffsets(byte[] response, int offset, int[] answerStarts) {
+            int count = ((response[6] & 0xFF) << 8 | (response[7] & 0xFF))
+                    + ((response[8] & 0xFF) << 8 | (response[9] & 0xFF));
+            int[] offsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                if (i < answerStarts.length) {
+                    answerStarts[i] = offset;
+                }
+                offset = DNSPacketParser.skipDomainName(response, offset);
+                offsets[i] = offset + 4;
+                int rdLength = (response[offset + 8] & 0xFF) << 8 | (response[offset + 9] & 0xFF);
+                offset += 10 + rdLength;
+            }
+            if (count < answerStarts.length) {
+                answerStarts[count] = offset;
+            }
+            return offsets;
+        }
+
+        // Rough heap cost of an entry: the key and its name array, this
+        // object, the data and response arrays and the cache node holding them
+        int estimateSize(CacheKey key) {
+            return 136 + key.nameLength() + (data != null ? data.length : 0)
+                    + (authority != null ? 16 + authority.length : 0)
+                    + (wire != null ? 32 + wire.length + 4 * (ttlOffsets.length + answerOffsets.length) : 0);
+        }
+    }
+
+    // Answer and negative caches for one listener. Every mode except
+    // REUSEPORT uses a single shard shared by all threads.
+    // HEAP shards are bounded TinyLfuCaches: lookups are lock-free, and a
+    // flood of one-off names can't evict the popular ones. OFFHEAP shards
+    // keep the records in direct memory so a large cache adds nothing for
+    // the garbage collector to trace.
+    static class CacheShard {
+        final RecordCache<CacheKey, CachedRecord> cache;
+        final RecordCache<CacheKey, CachedRecord> negativeCache;
+
+        CacheShard(CacheBackend backend, long maxEntries, long maxBytes) {
+            cache = newCache(backend, maxEntries - maxEntries / 4, maxBytes - maxBytes / 4);
+            negativeCache = newCache(backend, maxEntries / 4, maxBytes / 4);
+        }
+
+        private static RecordCache<CacheKey, CachedRecord> newCache(CacheBackend backend, long maxEntries,
+                                                                  long maxBytes) {
+            if (backend == CacheBackend.OFFHEAP) {
+                // Without a byte budget allow a typical 256 bytes per entry
+                long bytes = maxBytes > 0 ? maxBytes : maxEntries * 256;
+                long entries = maxBytes > 0 ? maxBytes / 128 : maxEntries;
+                return new OffHeapRecordCache(bytes, entries);
+            }
+            if (maxBytes > 0) {
+                return new TinyLfuCache<>(maxBytes, maxBytes / 128, (key, record) -> record.estimateSize(key));
+            }
+            return TinyLfuCache.ofEntries(maxEntries);
+        }
+    }
+
+    // An upstream resolution in progress. Misses on the same key wait on it
+    // instead of starting their own.
+    static class InFlight extends CompletableFuture<CachedRecord> {
+        final CacheShard shard;
+
+        InFlight(CacheShard shard) {
+            this.shard = shard;
+        }
+    }
+
+    /**
+     * One TCP client. The selector thread owns the read side; workers that
+     * finish a resolution queue the framed response and hand the connection
+     * back to the selector thread to write.
+     */
+    static class TcpConnection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer lengthPrefix = ByteBuffer.allocate(2);
+        ByteBuffer message; // body being read, null while reading the length
+        final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+        final AtomicInteger outstanding = new AtomicInteger();
+        boolean inputClosed;
+        long lastActivity = System.currentTimeMillis();
+
+        TcpConnection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void send(byte[] response) {
+            ByteBuffer framed = ByteBuffer.allocate(2 + response.length);
+            framed.putShort((short) response.length).put(response).flip();
+            writes.add(framed);
+        }
+
+        boolean isIdle() {
+            return outstanding.get() == 0 && writes.isEmpty();
+        }
+    }
+
+    static class CacheStats {
+        long hits;
+        long misses;
+        long evictions;
+        long entries;
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + " misses=" + misses + " evictions=" + evictions + " entries=" + entries;
+        }
+    }
+
+    // DO NOT EDIT starts
+    @Override
+    public void setNameServer(InetAddress ipAddress, int port) throws Exception {
+        this.upstreamIP = ipAddress;
+        this.upstreamPort = port;
+        resolver = new Resolver();
+        resolver.setNameServer(ipAddress, port);
+    }
+    // DO NOT EDIT ends
+
+    public void setIoMode(IoMode ioMode) {
+        this.ioMode = ioMode;
+    }
+
+    // Largest UDP answer to send an EDNS0 client, and the receive buffer size
+    public void setEdnsUdpSize(int size) {
+        this.ednsUdpSize = Math.max(UDP_MAX_SIZE, size);
+    }
+
+    public void setTcpEnabled(boolean tcpEnabled) {
+        this.tcpEnabled = tcpEnabled;
+    }
+
+    public void setTcpIdleTimeout(long millis) {
+        this.tcpIdleMillis = millis;
+    }
+
+    public void setListeners(int listeners) {
+        this.listeners = listeners;
+    }
+
+    // Changing the budget starts over with empty caches, so call these
+    // before handleIncomingQueries
+    public void setCacheMaxEntries(long maxEntries) {
+        this.cacheMaxEntries = maxEntries;
+        this.cacheMaxBytes = 0;
+        resetCaches();
+    }
+
+    public void setCacheMaxBytes(long maxBytes) {
+        this.cacheMaxBytes = maxBytes;
+        resetCaches();
+    }
+
+    public void setCacheBackend(CacheBackend backend) {
+        this.cacheBackend = backend;
+        resetCaches();
+    }
+
+    public CacheStats answerCacheStats() {
+        CacheStats stats = new CacheStats();
+        for (CacheShard shard : shards) {
+            addStats(stats, shard.cache);
+        }
+        return stats;
+    }
+
+    public CacheStats negativeCacheStats() {
+        CacheStats stats = new CacheStats();
+        for (CacheShard shard : shards) {
+            addStats(stats, shard.negativeCache);
+        }
+        return stats;
+    }
+
+    private static void addStats(CacheStats stats, RecordCache<?, ?> cache) {
+        stats.hits += cache.hitCount();
+        stats.misses += cache.missCount();
+        stats.evictions += cache.evictionCount();
+        stats.entries += cache.size();
+    }
+
+    private CacheShard newShard(int shardCount) {
+        CacheShard shard = new CacheShard(cacheBackend, cacheMaxEntries / shardCount, cacheMaxBytes / shardCount);
+        shards.add(shard);
+        return shard;
+    }
+
+    private void resetCaches() {
+        shards.clear();
+        sharedCache = newShard(1);
+    }
+
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public void setSnapshotInterval(long seconds) {
+        this.snapshotIntervalSeconds = seconds;
+    }
+
+    public void setCacheWarming(String file, int parallelism, boolean inBackground) {
+        this.warmFile = file;
+        this.warmParallelism = parallelism;
+        this.warmInBackground = inBackground;
+    }
+
+    // The startup warming run, or null if there is none
+    CacheWarmer cacheWarmer() {
+        return warmer;
+    }
+
+    /**
+     * Resolves the warm list into the given shards, and returns once that
+     * is done or, in the background, once it has started. A list that
+     * can't be read is reported and the server starts cold.
+     */
+    private void warmCache(List<CacheShard> targets) throws InterruptedException {
+        if (warmFile == null || warmer != null) {
+            return;
+        }
+        try {
+            warmer = CacheWarmer.read(Paths.get(warmFile), warmParallelism);
+        } catch (IOException e) {
+            AsyncLog.warn("Error reading cache warm list: {}", e.getMessage());
+            return;
+        }
+        if (!warmInBackground) {
+            warmer.run((name, qtype) -> warmOne(targets, name, qtype));
+            return;
+        }
+        Thread t = new Thread(() -> {
+            try {
+                warmer.run((name, qtype) -> warmOne(targets, name, qtype));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "cache-warm-main");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Resolves one name into the first shard and copies it to the others
+    private void warmOne(List<CacheShard> targets, String name, int qtype) throws Exception {
+        byte[] req = DNSPacketParser.createQueryPacket(name, qtype);
+        DNSQuery query = parseQuery(req, req.length);
+        CacheKey key = CacheKey.of(query.qname, qtype);
+        CachedRecord record = resolveAndCache(targets.get(0), query, req, key, 0);
+        for (int i = 1; i < targets.size(); i++) {
+            if (record.data != null) {
+                targets.get(i).cache.put(key, record);
+            } else if (record.originalTtl > 0) {
+                cacheNegative(targets.get(i), key, record);
+            }
+        }
+    }
+
+    /**
+     * Loads the snapshot file into the given shards. The file is read once
+     * and every entry goes into every shard, as warmOne does: a REUSEPORT
+     * listener only answers from its own shard, and the kernel picks the
+     * listener by the client's address, not the name asked for. The
+     * listeners see the same popular names, so the snapshot they wrote is
+     * about one shard's worth; whatever doesn't fit a shard's share of the
+     * budget is evicted from it as usual. A snapshot that can't be read is
+     * reported and ignored; the server just starts cold.
+     */
+    private void loadSnapshot(List<CacheShard> targets) {
+        long start = System.currentTimeMillis();
+        try {
+            int loaded = CacheSnapshot.load(Paths.get(snapshotFile), (key, record, negative) -> {
+                for (CacheShard shard : targets) {
+                    (negative ? shard.negativeCache : shard.cache).put(key, record);
+                }
+            });
+            AsyncLog.info("Loaded {} cached records from the snapshot in {} ms", loaded,
+                    System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            AsyncLog.warn("Error loading cache snapshot: {}", e.getMessage());
+        } finally {
+            snapshotLoaded = true;
+        }
+    }
+
+    /** Writes the caches to the snapshot file now. Returns the entries written. */
+    public int saveSnapshot() throws IOException {
+        // Saving a half loaded cache would throw away the rest of the old snapshot
+        if (snapshotFile == null || !snapshotLoaded) {
+            return 0;
+        }
+        return CacheSnapshot.write(Paths.get(snapshotFile), shards);
+    }
+
+    /**
+     * Loads the snapshot into the shards in the background, so the server
+     * can answer whatever has been loaded while the rest comes in, then
+     * saves on the same thread every interval.
+     */
+    private void startSnapshots(List<CacheShard> targets) {
+        if (snapshotFile == null || snapshotWriter != null) {
+            return;
+        }
+        snapshotWriter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cache-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotWriter.execute(() -> loadSnapshot(targets));
+        snapshotWriter.scheduleWithFixedDelay(this::saveSnapshotQuietly,
+                snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveSnapshotQuietly));
+    }
+
+    private void saveSnapshotQuietly() {
+        try {
+            saveSnapshot();
+        } catch (IOException e) {
+            AsyncLog.warn("Error writing cache snapshot: {}", e.getMessage());
+        }
+    }
+
+    // Load tests send everything from one address, so they need to turn this off
+    public void setRateLimiting(boolean rateLimiting) {
+        this.rateLimiting = rateLimiting;
+    }
+
+    // Per-client query limit; qps 0 turns it off
+    public void setRateLimit(int qps, int burst) {
+        this.rateLimitQps = qps;
+        this.rateLimitBurst = burst;
+        this.rateLimiter = newClientRateLimiter();
+    }
+
+    // Response Rate Limiting; rps 0 turns it off
+    public void setResponseRateLimit(int rps, int slip) {
+        this.rrlRps = rps;
+        this.rrlSlip = slip;
+        this.responseRateLimiter = newResponseRateLimiter();
+    }
+
+    private ClientRateLimiter newClientRateLimiter() {
+        return rateLimitQps > 0 ? new ClientRateLimiter(rateLimitQps, rateLimitBurst, rateLimitClients) : null;
+    }
+
+    private ResponseRateLimiter newResponseRateLimiter() {
+        return rrlRps > 0 ? new ResponseRateLimiter(rrlRps, rrlSlip, rateLimitClients) : null;
+    }
+
+    private boolean isRateLimited(InetAddress clientAddr) {
+        ClientRateLimiter limiter = rateLimiter;
+        return rateLimiting && limiter != null && !limiter.tryAcquire(clientAddr);
+    }
+
+    // RRL verdict for a UDP response with rcode to req
+    private int responseRateLimit(InetAddress client, byte[] req, int length, int rcode) {
+        ResponseRateLimiter limiter = responseRateLimiter;
+        return rateLimiting && limiter != null ? limiter.check(client, req, length, rcode) : ResponseRateLimiter.SEND;
+    }
+
+    public long getResponsesDropped() {
+        ResponseRateLimiter limiter = responseRateLimiter;
+        return limiter != null ? limiter.getDropped() : 0;
+    }
+
+    public long getResponsesSlipped() {
+        ResponseRateLimiter limiter = responseRateLimiter;
+        return limiter != null ? limiter.getSlipped() : 0;
+    }
+
+    public void setLocalZones(String... files) {
+        this.zoneFiles = zoneFilesFrom(String.join(",", files));
+    }
+
+    private static List<Path> zoneFilesFrom(String files) {
+        List<Path> paths = new ArrayList<>();
+        for (String file : files.split(",")) {
+            if (!file.isBlank()) {
+                paths.add(Paths.get(file.trim()));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Reads the zone files again into a new trie and swaps it in. Queries
+     * already running finish with the old one. If a file can't be read or
+     * parsed the zones in use are kept and the error is thrown.
+     */
+    public void reloadLocalZones() throws IOException {
+        if (zoneFiles.isEmpty()) {
+            localZones = null;
+            return;
+        }
+        LocalZones zones = LocalZones.load(zoneFiles);
+        localZones = zones;
+        AsyncLog.info("Loaded {} local zones, {} records", zones.zoneCount(), zones.recordCount());
+    }
+
+    public long getLocalAnswers() {
+        return localAnswers.sum();
+    }
+
+    // Our authoritative answer to req, or null if it isn't in a local zone
+    private byte[] localAnswer(byte[] req, int length) {
+        LocalZones zones = localZones;
+        byte[] answer = zones != null ? zones.answer(req, length) : null;
+        if (answer != null) {
+            localAnswers.increment();
+        }
+        return answer;
+    }
+
+    // Forward misses to these "host[:port]" upstreams instead of resolving
+    // iteratively; timeoutMillis bounds each forwarded query
+    public void setForwarders(long timeoutMillis, String... upstreams) {
+        this.forwarders = Forwarder.addresses(String.join(",", upstreams));
+        this.forwardTimeoutMillis = timeoutMillis;
+    }
+
+    // Upstream stats in forwarding mode, else null
+    Forwarder forwarder() {
+        return forwarder;
+    }
+
+    // Work queue size and how long a query may wait in it
+    public void setWorkQueue(int capacity, long deadlineMillis) {
+        workQueue.setCapacity(capacity);
+        this.queueDeadlineMillis = deadlineMillis;
+    }
+
+    public int getQueueDepth() {
+        return workQueue.size();
+    }
+
+    public long getQueriesRejected() {
+        return workQueue.getRejected();
+    }
+
+    public long getQueriesExpired() {
+        return workQueue.getExpired();
+    }
+
+    public void setMetricsPort(int port) {
+        this.metricsPort = port;
+    }
+
+    NameServerMetrics metrics() {
+        return metrics;
+    }
+
+    /** Everything the metrics endpoint serves, in Prometheus text format. */
+    public String renderMetrics() {
+        StringBuilder out = new StringBuilder(16384);
+        metrics.write(out);
+        writeCacheStats(out, "answer", answerCacheStats());
+        writeCacheStats(out, "negative", negativeCacheStats());
+        NameServerMetrics.writeCounter(out, "nameserver_local_answers_total",
+                "Queries answered from local zones.", getLocalAnswers());
+        NameServerMetrics.writeCounter(out, "nameserver_nxdomain_cut_hits_total",
+                "Queries answered by the NXDOMAIN cached for their name or one above it.", getNxdomainCutHits());
+        NameServerMetrics.writeCounter(out, "nameserver_coalesced_queries_total",
+                "Misses that waited on a resolution already in flight.", getCoalescedQueries());
+        NameServerMetrics.writeCounter(out, "nameserver_prefetches_total",
+                "Refresh-ahead resolutions started.", getPrefetchesIssued());
+        NameServerMetrics.writeCounter(out, "nameserver_prefetch_misses_avoided_total",
+                "Hits on records a prefetch had refreshed.", getPrefetchMissesAvoided());
+        NameServerMetrics.writeCounter(out, "nameserver_stale_answers_total",
+                "Expired answers served because upstream failed or was slow.", getStaleAnswersServed());
+        NameServerMetrics.writeCounter(out, "nameserver_rrl_dropped_total",
+                "UDP responses dropped by Response Rate Limiting.", getResponsesDropped());
+        NameServerMetrics.writeCounter(out, "nameserver_rrl_slipped_total",
+                "UDP responses sent truncated by Response Rate Limiting.", getResponsesSlipped());
+        NameServerMetrics.writeGauge(out, "nameserver_queue_depth",
+                "Queries waiting for a worker thread.", getQueueDepth());
+        NameServerMetrics.writeGauge(out, "nameserver_queue_capacity",
+                "Most queries that can wait for a worker thread.", workQueue.getCapacity());
+        NameServerMetrics.writeCounter(out, "nameserver_queries_rejected_total",
+                "Queries shed because the work queue was full.", getQueriesRejected());
+        NameServerMetrics.writeCounter(out, "nameserver_queries_expired_total",
+                "Queries shed because they waited past the queue deadline.", getQueriesExpired());
+        NameServerMetrics.writeGauge(out, "nameserver_resolutions_in_flight",
+                "Upstream resolutions running.", inFlight.size());
+        CacheWarmer warming = warmer;
+        if (warming != null) {
+            NameServerMetrics.writeCounter(out, "nameserver_warm_names_total",
+                    "Names from the warm list resolved into the cache.", warming.getWarmed());
+            NameServerMetrics.writeCounter(out, "nameserver_warm_failures_total",
+                    "Names from the warm list that couldn't be resolved.", warming.getFailed());
+            NameServerMetrics.writeGauge(out, "nameserver_warm_milliseconds",
+                    "How long warming the cache took, -1 while it runs.", warming.getMillis());
+        }
+        if (forwarder != null) {
+            forwarder.write(out);
+        }
+        return out.toString();
+    }
+
+    private static void writeCacheStats(StringBuilder out, String cache, CacheStats stats) {
+        String name = "nameserver_" + cache + "_cache_";
+        NameServerMetrics.writeCounter(out, name + "hits_total", "Lookups found in the " + cache + " cache.",
+                stats.hits);
+        NameServerMetrics.writeCounter(out, name + "misses_total", "Lookups not in the " + cache + " cache.",
+                stats.misses);
+        NameServerMetrics.writeCounter(out, name + "evictions_total", "Entries evicted from the " + cache
+                + " cache.", stats.evictions);
+        NameServerMetrics.writeGauge(out, name + "entries", "Entries in the " + cache + " cache.",
+                stats.entries);
+    }
+
+    @Override
+    public void handleIncomingQueries(int port) throws Exception {
+        reloadLocalZones();
+        if (!forwarders.isEmpty()) {
+            forwarder = new Forwarder(forwarders, forwardTimeoutMillis);
+            if (resolver == null) {
+                resolver = new Resolver();
+            }
+            resolver.setForwarder(forwarder);
+        }
+        if (metricsPort > 0) {
+            new MetricsHttpServer(metricsPort, this::renderMetrics).start();
+        }
+        // REUSEPORT makes its own shards and starts these itself
+        if (ioMode != IoMode.REUSEPORT) {
+            startSnapshots(List.of(sharedCache));
+            warmCache(List.of(sharedCache));
+            startTcpListener(port, sharedCache);
+        }
+
+        if (ioMode == IoMode.SELECTOR) {
+            runSelectorLoop(port);
+        } else if (ioMode == IoMode.REUSEPORT) {
+            runReusePortListeners(port);
+        } else {
+            runBlockingLoop(port);
+        }
+    }
+
+    private void runBlockingLoop(int port) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(port)) {
+            System.out.println("NameServer listening on UDP port " + port);
+            byte[] buffer = new byte[ednsUdpSize];
+            CacheKey probe = CacheKey.probe();
+
+            while (true) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+                    long received = System.nanoTime();
+
+                    if (isRateLimited(packet.getAddress())) {
+                        continue;
+                    }
+
+                    // The receive buffer is reused, so copy before handing off
+                    byte[] reqData = Arrays.copyOf(packet.getData(), packet.getLength());
+                    InetAddress clientAddr = packet.getAddress();
+                    int clientPort = packet.getPort();
+                    LocalZones zones = localZones;
+                    boolean hit = zones != null && zones.isLocal(reqData, reqData.length)
+                            || probe.wrap(reqData, reqData.length) && isCached(sharedCache, probe);
+
+                    dispatch(hit, received, () -> {
+                        try {
+                            metrics.stage(NameServerMetrics.Stage.QUEUE, received);
+                            processRequest(socket, reqData, clientAddr, clientPort, received);
+                        } catch (IOException e) {
+                            AsyncLog.warn("Error processing request: {}", e.getMessage());
+                        }
+                    }, expired -> {
+                        if (!expired) {
+                            sendServfail(socket, reqData, clientAddr, clientPort);
+                        }
+                    });
+                } catch (IOException e) {
+                    AsyncLog.warn("Error receiving packet: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Non-blocking front end. One thread owns the channel and its buffers,
+     * answers anything it can from the cache straight away, and only hands
+     * queries that need the Resolver over to the thread pool.
+     */
+    private void runSelectorLoop(int port) throws IOException {
+        try (DatagramChannel channel = DatagramChannel.open();
+             Selector selector = Selector.open()) {
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            System.out.println("NameServer listening on UDP port " + port + " (selector)");
+
+            ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(ednsUdpSize);
+            ByteBuffer sendBuffer = ByteBuffer.allocateDirect(ednsUdpSize);
+            byte[] reqScratch = new byte[ednsUdpSize];
+            CacheKey probe = CacheKey.probe();
+
+            while (true) {
+                selector.select();
+                selector.selectedKeys().clear();
+
+                // Drain everything that is queued before going back to select()
+                while (true) {
+                    InetSocketAddress client;
+                    try {
+                        receiveBuffer.clear();
+                        client = (InetSocketAddress) channel.receive(receiveBuffer);
+                    } catch (IOException e) {
+                        AsyncLog.warn("Error receiving packet: {}", e.getMessage());
+                        break;
+                    }
+                    if (client == null) {
+                        break;
+                    }
+
+                    if (isRateLimited(client.getAddress())) {
+                        continue;
+                    }
+
+                    receiveBuffer.flip();
+                    int length = receiveBuffer.remaining();
+                    receiveBuffer.get(reqScratch, 0, length);
+                    try {
+                        handleOnIoThread(channel, sharedCache, probe, sendBuffer, reqScratch, length, client);
+                    } catch (RuntimeException e) {
+                        // Never let one bad packet take the I/O thread down
+                        AsyncLog.warn("Error processing request: {}", e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens one channel per listener on the same port with SO_REUSEPORT so the
+     * kernel spreads clients across them. Each listener is a blocking receive
+     * loop with its own buffers and cache shard; they only share the resolver
+     * pool and the rate limiter.
+     */
+    private void runReusePortListeners(int port) throws Exception {
+        List<DatagramChannel> channels = new ArrayList<>();
+        try {
+            for (int i = 0; i < listeners; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channels.add(channel);
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new IOException("SO_REUSEPORT is not supported on this platform");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(new InetSocketAddress(port));
+            }
+            System.out.println("NameServer listening on UDP port " + port + " (" + listeners + " reuseport listeners)");
+
+            // Each listener gets its own slice of the budget instead
+            shards.remove(sharedCache);
+
+            List<CacheShard> listenerShards = new ArrayList<>();
+            for (int i = 0; i < channels.size(); i++) {
+                listenerShards.add(newShard(channels.size()));
+            }
+            startSnapshots(listenerShards);
+            warmCache(listenerShards);
+            startTcpListener(port, listenerShards.get(0));
+
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < channels.size(); i++) {
+                DatagramChannel channel = channels.get(i);
+                CacheShard shard = listenerShards.get(i);
+                Thread t = new Thread(() -> runListener(channel, shard), "listener-" + i);
+                threads.add(t);
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+        } finally {
+            for (DatagramChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    private void runListener(DatagramChannel channel, CacheShard shard) {
+        ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(ednsUdpSize);
+        ByteBuffer sendBuffer = ByteBuffer.allocateDirect(ednsUdpSize);
+        byte[] reqScratch = new byte[ednsUdpSize];
+        CacheKey probe = CacheKey.probe();
+
+        while (channel.isOpen()) {
+            InetSocketAddress client;
+            try {
+                receiveBuffer.clear();
+                client = (InetSocketAddress) channel.receive(receiveBuffer);
+            } catch (IOException e) {
+                AsyncLog.warn("Error receiving packet: {}", e.getMessage());
+                continue;
+            }
+
+            if (isRateLimited(client.getAddress())) {
+                continue;
+            }
+
+            receiveBuffer.flip();
+            int length = receiveBuffer.remaining();
+            receiveBuffer.get(reqScratch, 0, length);
+            try {
+                handleOnIoThread(channel, shard, probe, sendBuffer, reqScratch, length, client);
+            } catch (RuntimeException e) {
+                AsyncLog.warn("Error processing request: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void startTcpListener(int port, CacheShard shard) throws IOException {
+        if (!tcpEnabled) {
+            return;
+        }
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        Thread t = new Thread(() -> runTcpListener(server, shard), "tcp-listener");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * DNS over TCP (RFC 7766). Every message is prefixed with its length,
+     * and a client may send more queries before the first is answered.
+     * Hits are answered on the selector thread in the order they arrive;
+     * misses go to the thread pool and are answered whenever they finish,
+     * which the message IDs let the client sort out. A connection with
+     * nothing in flight is closed after tcpIdleMillis.
+     */
+    private void runTcpListener(ServerSocketChannel server, CacheShard shard) {
+        try (server; Selector selector = Selector.open()) {
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("NameServer listening on TCP port " + server.socket().getLocalPort());
+
+            Queue<TcpConnection> ready = new ConcurrentLinkedQueue<>();
+            CacheKey probe = CacheKey.probe();
+            long nextIdleCheck = System.currentTimeMillis() + 1000;
+
+            while (true) {
+                selector.select(1000);
+
+                TcpConnection done;
+                while ((done = ready.poll()) != null) {
+                    updateInterest(done);
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptTcp(server, selector);
+                        continue;
+                    }
+                    TcpConnection conn = (TcpConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            readTcp(conn, shard, probe, selector, ready);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            writeTcp(conn);
+                        }
+                        updateInterest(conn);
+                    } catch (IOException e) {
+                        closeTcp(conn);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                long now = System.currentTimeMillis();
+                if (now >= nextIdleCheck) {
+                    nextIdleCheck = now + 1000;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.attachment() instanceof TcpConnection) {
+                            TcpConnection conn = (TcpConnection) key.attachment();
+                            if (conn.isIdle() && now - conn.lastActivity > tcpIdleMillis) {
+                                closeTcp(conn);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            AsyncLog.warn("TCP listener stopped: {}", e.getMessage());
+        }
+    }
+
+    private void acceptTcp(ServerSocketChannel server, Selector selector) {
+        SocketChannel channel = null;
+        try {
+            channel = server.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new TcpConnection(channel, key));
+        } catch (IOException e) {
+            AsyncLog.warn("Error accepting TCP connection: {}", e.getMessage());
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // Reads every complete message that has arrived, until the connection
+    // has as many queries in flight as it is allowed
+    private void readTcp(TcpConnection conn, CacheShard shard, CacheKey probe, Selector selector,
+                         Queue<TcpConnection> ready) throws IOException {
+        while (!conn.inputClosed && conn.outstanding.get() < TCP_MAX_OUTSTANDING) {
+            ByteBuffer target = conn.message != null ? conn.message : conn.lengthPrefix;
+            int n = conn.channel.read(target);
+            if (n < 0) {
+                // Client is done sending; finish what it asked for, then close
+                conn.inputClosed = true;
+                return;
+            }
+            if (target.hasRemaining()) {
+                return;
+            }
+            conn.lastActivity = System.currentTimeMillis();
+
+            if (conn.message == null) {
+                int length = conn.lengthPrefix.flip().getShort() & 0xFFFF;
+                conn.lengthPrefix.clear();
+                if (length < 12) {
+                    throw new IOException("Message too short");
+                }
+                conn.message = ByteBuffer.allocate(length);
+                continue;
+            }
+
+            byte[] req = conn.message.array();
+            conn.message = null;
+            handleTcpQuery(conn, shard, probe, req, selector, ready);
+        }
+    }
+
+    private void handleTcpQuery(TcpConnection conn, CacheShard shard, CacheKey probe, byte[] req,
+                                Selector selector, Queue<TcpConnection> ready) {
+        long received = System.nanoTime();
+        int opt = Edns.find(req, req.length);
+        if (opt >= 0 && Edns.version(req, opt) != 0) {
+            try {
+                conn.send(Edns.badVersion(req, req.length, ednsUdpSize));
+            } catch (IOException e) {
+                AsyncLog.warn("Error processing TCP request: {}", e.getMessage());
+            }
+            return;
+        }
+
+        byte[] local = localAnswer(req, req.length);
+        if (local != null) {
+            conn.send(forTcp(local, req));
+            sent(System.nanoTime(), req, req.length, received);
+            return;
+        }
+
+        CachedRecord cached = probe.wrap(req, req.length) ? lookupCached(shard, probe) : null;
+        metrics.stage(NameServerMetrics.Stage.LOOKUP, received);
+        if (cached != null) {
+            onCacheHit(shard, probe, cached, req, req.length);
+            byte[] response = cached.responseFor(req);
+            if (response != null) {
+                conn.send(forTcp(response, req));
+                sent(System.nanoTime(), req, req.length, received);
+                return;
+            }
+        }
+
+        try {
+            DNSQuery query;
+            try {
+                query = parseQuery(req, req.length);
+            } catch (IOException e) {
+                conn.send(forTcp(DNSResponse.buildErrorResponse(req, 1), req));
+                return;
+            }
+            if (cached != null) {
+                conn.send(forTcp(rebuildResponse(req, query, cached), req));
+                return;
+            }
+
+            CacheKey cacheKey = keyFor(probe, req, req.length, query);
+            conn.outstanding.incrementAndGet();
+            dispatch(false, received, () -> {
+                byte[] resolved = resolveOrServfail(shard, query, req, cacheKey);
+                if (resolved != null) {
+                    conn.send(forTcp(resolved, req));
+                    sent(System.nanoTime(), req, req.length, received);
+                }
+                conn.outstanding.decrementAndGet();
+                ready.add(conn);
+                selector.wakeup();
+            }, expired -> {
+                try {
+                    conn.send(forTcp(DNSResponse.buildErrorResponse(req, 2), req));
+                } catch (IOException e) {
+                    AsyncLog.warn("Failed to build error response: {}", e.getMessage());
+                }
+                conn.outstanding.decrementAndGet();
+                ready.add(conn);
+                selector.wakeup();
+            });
+        } catch (IOException e) {
+            AsyncLog.warn("Error processing TCP request: {}", e.getMessage());
+        }
+    }
+
+    private void writeTcp(TcpConnection conn) throws IOException {
+        ByteBuffer buf;
+        while ((buf = conn.writes.peek()) != null) {
+            conn.channel.write(buf);
+            if (buf.hasRemaining()) {
+                return;
+            }
+            conn.writes.poll();
+            conn.lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    // Runs on the selector thread: read while there is room for more
+    // queries, write while responses are queued, close once both are done
+    private void updateInterest(TcpConnection conn) {
+        if (!conn.key.isValid()) {
+            return;
+        }
+        if (conn.inputClosed && conn.isIdle()) {
+            closeTcp(conn);
+            return;
+        }
+        int ops = 0;
+        if (!conn.inputClosed && conn.outstanding.get() < TCP_MAX_OUTSTANDING) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!conn.writes.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        conn.key.interestOps(ops);
+    }
+
+    private void closeTcp(TcpConnection conn) {
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException e) {
+            AsyncLog.warn("Error closing TCP connection: {}", e.getMessage());
+        }
+    }
 
-    static class CachedRecord {
-        public final byte[] data;
-        public final long expires;
-        public final int type;
-        public final int rcode;
-        public final int originalTtl;
+    /**
+     * Answers a query on the I/O thread if the cache can. The lookup uses
+     * the probe key straight over the packet bytes, so a hit allocates
+     * nothing; the question is only parsed into a DNSQuery for a miss.
+     */
+    private void handleOnIoThread(DatagramChannel channel, CacheShard shard, CacheKey probe, ByteBuffer sendBuffer,
+                                  byte[] reqScratch, int length, InetSocketAddress client) {
+        long received = System.nanoTime();
+        int opt = Edns.find(reqScratch, length);
+        if (opt >= 0 && Edns.version(reqScratch, opt) != 0) {
+            // Already carries its OPT record, so it skips sendOnChannel
+            try {
+                channel.send(ByteBuffer.wrap(Edns.badVersion(reqScratch, length, ednsUdpSize)), client);
+            } catch (IOException e) {
+                AsyncLog.warn("Failed to send error response: {}", e.getMessage());
+            }
+            return;
+        }
 
-        public CachedRecord(byte[] data, int ttl, int type, int rcode) {
-            this.data = data;
-            this.originalTtl = ttl;
-            this.expires = System.currentTimeMillis() + (ttl * 1000L);
-            this.type = type;
-            this.rcode = rcode;
+        LocalZones zones = localZones;
+        if (zones != null) {
+            // Room is left for the OPT record
+            sendBuffer.clear().limit(udpLimit(reqScratch, opt) - (opt >= 0 ? Edns.OPT_SIZE : 0));
+            int rcode = zones.write(reqScratch, length, sendBuffer);
+            if (rcode >= 0) {
+                localAnswers.increment();
+                sendBuffer.limit(sendBuffer.capacity());
+                long t = metrics.stage(NameServerMetrics.Stage.LOOKUP, received);
+                sendWritten(channel, sendBuffer, reqScratch, length, client, opt, rcode, t, received);
+                return;
+            }
+            if (rcode == LocalZones.TOO_BIG) {
+                // sendOnChannel truncates it
+                sendOnChannel(channel, sendBuffer, localAnswer(reqScratch, length), reqScratch, length, client,
+                        received);
+                return;
+            }
         }
 
-        public static CachedRecord negative(int ttl, int rcode) {
-            return new CachedRecord(null, ttl, -1, rcode);
+        CachedRecord cached = probe.wrap(reqScratch, length) ? lookupCached(shard, probe) : null;
+        long t = metrics.stage(NameServerMetrics.Stage.LOOKUP, received);
+        if (cached != null) {
+            onCacheHit(shard, probe, cached, reqScratch, length);
+            sendBuffer.clear().limit(udpLimit(reqScratch, opt));
+            if (cached.writeResponse(reqScratch, sendBuffer) >= 0
+                    && (opt < 0 || sendBuffer.remaining() >= Edns.OPT_SIZE)) {
+                sendWritten(channel, sendBuffer, reqScratch, length, client, opt, cached.rcode, t, received);
+                return;
+            }
         }
 
-        public boolean isExpired() {
-            return System.currentTimeMillis() > expires;
+        DNSQuery query;
+        try {
+            t = System.nanoTime();
+            query = parseQuery(reqScratch, length);
+            metrics.stage(NameServerMetrics.Stage.PARSE, t);
+        } catch (IOException e) {
+            try {
+                sendOnChannel(channel, sendBuffer, DNSResponse.buildErrorResponse(reqScratch, 1), reqScratch, length,
+                        client, received);
+            } catch (IOException ioe) {
+                AsyncLog.warn("Failed to send error response: {}", ioe.getMessage());
+            }
+            return;
         }
 
-        public int getRemainingTtl() {
-            return (int) ((expires - System.currentTimeMillis()) / 1000);
+        if (cached != null) {
+            try {
+                sendOnChannel(channel, sendBuffer, rebuildResponse(reqScratch, query, cached), reqScratch, length,
+                        client, received);
+                return;
+            } catch (IOException e) {
+                AsyncLog.warn("Error getting cached response: {}", e.getMessage());
+            }
         }
+
+        // Cache miss: the scratch buffer and probe belong to the I/O thread,
+        // so the worker gets its own copies
+        CacheKey cacheKey = keyFor(probe, reqScratch, length, query);
+        byte[] reqData = Arrays.copyOf(reqScratch, length);
+        long queued = System.nanoTime();
+        dispatch(false, received, () -> {
+            metrics.stage(NameServerMetrics.Stage.QUEUE, queued);
+            byte[] resolved = resolveOrServfail(shard, query, reqData, cacheKey);
+            long start = System.nanoTime();
+            resolved = resolved != null ? forUdp(resolved, reqData, reqData.length, client.getAddress()) : null;
+            if (resolved != null) {
+                start = metrics.stage(NameServerMetrics.Stage.BUILD, start);
+                try {
+                    channel.send(ByteBuffer.wrap(resolved), client);
+                    sent(start, reqData, reqData.length, received);
+                } catch (IOException e) {
+                    AsyncLog.warn("Failed to send response: {}", e.getMessage());
+                }
+            }
+        }, expired -> {
+            if (!expired) {
+                try {
+                    channel.send(ByteBuffer.wrap(DNSResponse.buildErrorResponse(reqData, 2)), client);
+                } catch (IOException e) {
+                    AsyncLog.warn("Failed to send error response: {}", e.getMessage());
+                }
+            }
+        });
     }
 
-    static class RequestCounter {
-        private final long[] timestamps = new long[10];
-        private int index = 0;
+    // Sends the response written up to sendBuffer's position, after
+    // Response Rate Limiting and with an OPT record if the client sent one
+    private void sendWritten(DatagramChannel channel, ByteBuffer sendBuffer, byte[] reqScratch, int length,
+                             InetSocketAddress client, int opt, int rcode, long t, long received) {
+        int verdict = responseRateLimit(client.getAddress(), reqScratch, length, rcode);
+        if (verdict == ResponseRateLimiter.DROP) {
+            return;
+        }
+        if (verdict == ResponseRateLimiter.SLIP) {
+            // Header and question only, the same as DNSResponse.truncate
+            sendBuffer.position(DNSPacketParser.skipDomainName(reqScratch, 12) + 4);
+            sendBuffer.put(2, (byte) (sendBuffer.get(2) | 0x02));
+            sendBuffer.putInt(6, 0).putShort(10, (short) 0);
+        }
+        if (opt >= 0) {
+            Edns.putOpt(sendBuffer, 0, ednsUdpSize, 0);
+        }
+        sendBuffer.flip();
+        t = metrics.stage(NameServerMetrics.Stage.BUILD, t);
+        try {
+            channel.send(sendBuffer, client);
+            sent(t, reqScratch, length, received);
+        } catch (IOException e) {
+            AsyncLog.warn("Failed to send response: {}", e.getMessage());
+        }
+    }
 
-        public synchronized boolean isOverLimit() {
-            long now = System.currentTimeMillis();
-            timestamps[index] = now;
-            index = (index + 1) % timestamps.length;
+    // Hands work to the thread pool, shedding it if the queue is full or
+    // it waits past the deadline. received is when the query arrived.
+    private void dispatch(boolean hit, long received, Runnable work, AdmissionQueue.Shed shed) {
+        long deadline = received + TimeUnit.MILLISECONDS.toNanos(queueDeadlineMillis);
+        threadPool.execute(workQueue.task(hit ? AdmissionQueue.HIT : AdmissionQueue.MISS, deadline, work, shed));
+    }
 
-            if (timestamps[timestamps.length - 1] == 0) return false;
-            return (now - timestamps[(index + 1) % timestamps.length]) < 1000;
+    private void sendServfail(DatagramSocket socket, byte[] req, InetAddress clientAddr, int clientPort) {
+        try {
+            byte[] servfail = DNSResponse.buildErrorResponse(req, 2);
+            socket.send(new DatagramPacket(servfail, servfail.length, clientAddr, clientPort));
+        } catch (IOException e) {
+            AsyncLog.warn("Failed to send error response: {}", e.getMessage());
         }
     }
 
-    // DO NOT EDIT starts
-    @Override
-    public void setNameServer(InetAddress ipAddress, int port) throws Exception {
-        this.upstreamIP = ipAddress;
-        this.upstreamPort = port;
-        resolver = new Resolver();
-        resolver.setNameServer(ipAddress, port);
+    // Whether the cache can answer key right now, without counting a lookup
+    private boolean isCached(CacheShard shard, CacheKey key) {
+        CachedRecord answer = shard.cache.peek(key);
+        if (answer != null && !answer.isExpired()) {
+            return true;
+        }
+        CachedRecord neg = shard.negativeCache.peek(key);
+        return neg != null && !neg.isExpired() || nxdomainCut(shard, key, false) != null;
     }
-    // DO NOT EDIT ends
-
-    @Override
-    public void handleIncomingQueries(int port) throws Exception {
-        try (DatagramSocket socket = new DatagramSocket(port)) {
-            System.out.println("NameServer listening on UDP port " + port);
-            byte[] buffer = new byte[512];
 
-            while (true) {
-                try {
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                    socket.receive(packet);
+    // Immutable key for a parsed query. Questions the probe can't read
+    // (e.g. a compressed QNAME) fall back to the parsed name.
+    private static CacheKey keyFor(CacheKey probe, byte[] req, int length, DNSQuery query) {
+        return probe.wrap(req, length) ? probe.copy() : CacheKey.of(query.qname, query.qtype);
+    }
 
-                    RequestCounter counter = requestCounters.computeIfAbsent(
-                            packet.getAddress(), k -> new RequestCounter());
-                    if (counter.isOverLimit()) {
-                        continue;
-                    }
+    private void sendOnChannel(DatagramChannel channel, ByteBuffer sendBuffer, byte[] data, byte[] req, int length,
+                               InetSocketAddress client, long received) {
+        data = forUdp(data, req, length, client.getAddress());
+        if (data == null) {
+            return;
+        }
+        if (data.length > sendBuffer.capacity()) {
+            sendBuffer = ByteBuffer.wrap(data);
+        } else {
+            sendBuffer.clear();
+            sendBuffer.put(data);
+            sendBuffer.flip();
+        }
+        long start = System.nanoTime();
+        try {
+            channel.send(sendBuffer, client);
+            sent(start, req, length, received);
+        } catch (IOException e) {
+            AsyncLog.warn("Failed to send response: {}", e.getMessage());
+        }
+    }
 
-                    threadPool.submit(() -> {
-                        try {
-                            processRequest(socket, packet);
-                        } catch (IOException e) {
-                            System.err.println("Error processing request: " + e.getMessage());
-                        }
-                    });
-                } catch (IOException e) {
-                    System.err.println("Error receiving packet: " + e.getMessage());
-                }
-            }
+    /**
+     * Finishes a response to req for UDP: adds an OPT record if req had
+     * one, and truncates it if it is bigger than the client can take or
+     * RRL says to slip it. Returns null if RRL says to drop it.
+     */
+    private byte[] forUdp(byte[] response, byte[] req, int length, InetAddress client) {
+        int verdict = responseRateLimit(client, req, length, response[3] & 0x0F);
+        if (verdict == ResponseRateLimiter.DROP) {
+            return null;
+        }
+        int opt = Edns.find(req, length);
+        if (verdict == ResponseRateLimiter.SLIP
+                || response.length + (opt >= 0 ? Edns.OPT_SIZE : 0) > udpLimit(req, opt)) {
+            response = DNSResponse.truncate(response);
         }
+        return withEdns(response, opt);
     }
 
-    private void processRequest(DatagramSocket socket, DatagramPacket packet) throws IOException {
-        byte[] reqData = Arrays.copyOf(packet.getData(), packet.getLength());
-        InetAddress clientAddr = packet.getAddress();
-        int clientPort = packet.getPort();
+    // Same for TCP, where there is no size limit
+    private byte[] forTcp(byte[] response, byte[] req) {
+        return withEdns(response, Edns.find(req, req.length));
+    }
 
-        DNSQuery query;
-        try {
-            query = parseQuery(reqData);
-        } catch (Exception e) {
-            try {
-                byte[] errResp = DNSResponse.buildErrorResponse(reqData, 1);
-                socket.send(new DatagramPacket(errResp, errResp.length, clientAddr, clientPort));
-            } catch (IOException ioe) {
-                System.err.println("Failed to send error response: " + ioe.getMessage());
-            }
-            return;
+    private byte[] withEdns(byte[] response, int opt) {
+        if (opt < 0) {
+            return response;
         }
+        ByteBuffer out = ByteBuffer.allocate(response.length + Edns.OPT_SIZE);
+        out.put(response);
+        Edns.putOpt(out, 0, ednsUdpSize, 0);
+        return out.array();
+    }
+
+    // Largest UDP answer the client that sent req can take
+    private int udpLimit(byte[] req, int opt) {
+        return opt < 0 ? UDP_MAX_SIZE : Math.min(Math.max(Edns.udpSize(req, opt), UDP_MAX_SIZE), ednsUdpSize);
+    }
 
-        String cacheKey = query.qname.toLowerCase() + "|" + query.qtype;
+    private void processRequest(DatagramSocket socket, byte[] reqData, InetAddress clientAddr, int clientPort,
+                                long received) throws IOException {
+        CacheKey probe = CacheKey.probe();
         byte[] responseData = null;
 
-        try {
-            responseData = getCachedResponse(reqData, query, cacheKey);
-        } catch (IOException e) {
-            System.err.println("Error getting cached response: " + e.getMessage());
+        int opt = Edns.find(reqData, reqData.length);
+        if (opt >= 0 && Edns.version(reqData, opt) != 0) {
+            byte[] badVersion = Edns.badVersion(reqData, reqData.length, ednsUdpSize);
+            socket.send(new DatagramPacket(badVersion, badVersion.length, clientAddr, clientPort));
+            return;
         }
 
+        long t = System.nanoTime();
+        responseData = localAnswer(reqData, reqData.length);
+        if (responseData == null && probe.wrap(reqData, reqData.length)) {
+            try {
+                responseData = getCachedResponse(sharedCache, reqData, probe);
+            } catch (IOException e) {
+                AsyncLog.warn("Error getting cached response: {}", e.getMessage());
+            }
+        }
+        t = metrics.stage(NameServerMetrics.Stage.LOOKUP, t);
+
         if (responseData == null) {
+            DNSQuery query;
             try {
-                responseData = resolveAndRespond(query, reqData, cacheKey);
-            } catch (Exception e) {
+                query = parseQuery(reqData, reqData.length);
+                metrics.stage(NameServerMetrics.Stage.PARSE, t);
+            } catch (IOException e) {
                 try {
-                    responseData = DNSResponse.buildErrorResponse(reqData, 2);
+                    byte[] errResp = forUdp(DNSResponse.buildErrorResponse(reqData, 1), reqData, reqData.length,
+                            clientAddr);
+                    if (errResp != null) {
+                        socket.send(new DatagramPacket(errResp, errResp.length, clientAddr, clientPort));
+                    }
                 } catch (IOException ioe) {
-                    System.err.println("Failed to build error response: " + ioe.getMessage());
-                    return;
+                    AsyncLog.warn("Failed to send error response: {}", ioe.getMessage());
                 }
+                return;
+            }
+
+            responseData = resolveOrServfail(sharedCache, query, reqData, keyFor(probe, reqData, reqData.length, query));
+            if (responseData == null) {
+                return;
             }
         }
 
+        t = System.nanoTime();
+        responseData = forUdp(responseData, reqData, reqData.length, clientAddr);
+        if (responseData == null) {
+            return;
+        }
+        t = metrics.stage(NameServerMetrics.Stage.BUILD, t);
         try {
             socket.send(new DatagramPacket(responseData, responseData.length, clientAddr, clientPort));
+            sent(t, reqData, reqData.length, received);
         } catch (IOException e) {
-            System.err.println("Failed to send response: " + e.getMessage());
+            AsyncLog.warn("Failed to send response: {}", e.getMessage());
+        }
+    }
+
+    // Records the send stage, started at sendStart, and the whole query
+    private void sent(long sendStart, byte[] req, int length, long received) {
+        metrics.stage(NameServerMetrics.Stage.SEND, sendStart);
+        int end = DNSPacketParser.skipDomainName(req, 12);
+        int qtype = end + 2 <= length ? (req[end] & 0xFF) << 8 | (req[end + 1] & 0xFF) : -1;
+        metrics.request(qtype, received);
+        // Guarded, the arguments would be boxed even with debug off
+        if (AsyncLog.isEnabled(AsyncLog.Level.DEBUG)) {
+            AsyncLog.debug("Answered type {} query in {} us", qtype, (System.nanoTime() - received) / 1000);
+        }
+    }
+
+    // Only class IN is resolved and cached; the cache keys don't hold QCLASS
+    private byte[] resolveOrServfail(CacheShard shard, DNSQuery query, byte[] reqData, CacheKey cacheKey) {
+        if (query.qclass != CacheKey.CLASS_IN) {
+            try {
+                return DNSResponse.buildErrorResponse(reqData, 5);
+            } catch (IOException e) {
+                AsyncLog.warn("Failed to build error response: {}", e.getMessage());
+                return null;
+            }
+        }
+        CachedRecord stale = staleAnswer(shard, cacheKey);
+        try {
+            if (stale != null) {
+                return resolveOrServeStale(shard, query, reqData, cacheKey, stale);
+            }
+            return resolveAndRespond(shard, query, reqData, cacheKey);
+        } catch (Exception e) {
+            try {
+                return DNSResponse.buildErrorResponse(reqData, 2);
+            } catch (IOException ioe) {
+                AsyncLog.warn("Failed to build error response: {}", ioe.getMessage());
+                return null;
+            }
+        }
+    }
+
+    // An expired answer still inside the serve-stale window, or null
+    private CachedRecord staleAnswer(CacheShard shard, CacheKey cacheKey) {
+        if (staleWindowSeconds <= 0) {
+            return null;
+        }
+        CachedRecord answer = shard.cache.peek(cacheKey);
+        return answer != null && answer.isExpired() && !answer.isPastStaleWindow(staleWindowSeconds * 1000) ?
+                answer : null;
+    }
+
+    /**
+     * Refreshes a stale answer on the refresh pool and waits up to the
+     * client deadline for it. If upstream fails or is too slow the client
+     * gets the stale answer; the refresh keeps going and updates the cache
+     * when it finishes.
+     */
+    private byte[] resolveOrServeStale(CacheShard shard, DNSQuery query, byte[] reqData, CacheKey cacheKey,
+                                       CachedRecord stale) throws IOException {
+        CompletableFuture<CachedRecord> refresh = new CompletableFuture<>();
+        try {
+            refreshPool.execute(() -> {
+                try {
+                    refresh.complete(resolveAndCache(shard, query, reqData, cacheKey, 0));
+                } catch (Exception e) {
+                    refresh.completeExceptionally(e);
+                }
+            });
+            CachedRecord fresh = refresh.get(staleDeadlineMillis, TimeUnit.MILLISECONDS);
+            byte[] response = fresh.responseFor(reqData);
+            return response != null ? response : rebuildResponse(reqData, query, fresh);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RejectedExecutionException | ExecutionException | TimeoutException e) {
+            // Fall through to the stale answer
         }
+
+        staleAnswersServed.increment();
+        byte[] response = stale.responseFor(reqData, STALE_TTL);
+        return response != null ? response : rebuildResponse(reqData, query, stale);
+    }
+
+    public void setStaleWindow(long seconds) {
+        this.staleWindowSeconds = seconds;
+    }
+
+    public void setStaleDeadline(long millis) {
+        this.staleDeadlineMillis = millis;
     }
 
-    private DNSQuery parseQuery(byte[] data) throws Exception {
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-        dis.skipBytes(12);
+    public long getStaleAnswersServed() {
+        return staleAnswersServed.sum();
+    }
 
+    /**
+     * Reads the question straight out of the packet. Only the first
+     * length bytes count; a question that runs past them is an error.
+     */
+    static DNSQuery parseQuery(byte[] data, int length) throws IOException {
         StringBuilder name = new StringBuilder();
-        int len;
-        while ((len = dis.readUnsignedByte()) != 0) {
+        int pos = 12;
+        while (true) {
+            if (pos >= length) {
+                throw new IOException("Truncated question");
+            }
+            int len = data[pos] & 0xFF;
+            if (len == 0) {
+                pos++;
+                break;
+            }
             if ((len & 0xC0) == 0xC0) {
-                dis.readUnsignedByte();
+                pos += 2;
                 break;
             }
-            byte[] label = new byte[len];
-            dis.readFully(label);
-            name.append(new String(label, "UTF-8")).append(".");
+            if (pos + 1 + len > length) {
+                throw new IOException("Truncated question");
+            }
+            name.append(new String(data, pos + 1, len, StandardCharsets.UTF_8)).append('.');
+            pos += 1 + len;
         }
 
-        int qtype = dis.readUnsignedShort();
-        int qclass = dis.readUnsignedShort();
+        if (pos + 4 > length) {
+            throw new IOException("Truncated question");
+        }
+        int qtype = (data[pos] & 0xFF) << 8 | (data[pos + 1] & 0xFF);
+        int qclass = (data[pos + 2] & 0xFF) << 8 | (data[pos + 3] & 0xFF);
         return new DNSQuery(name.toString(), qtype, qclass);
     }
 
-    private byte[] getCachedResponse(byte[] reqData, DNSQuery query, String cacheKey) throws IOException {
-        synchronized (cache) {
-            CachedRecord answer = cache.get(cacheKey);
-            if (answer != null) {
-                if (answer.isExpired()) {
-                    cache.remove(cacheKey);
-                } else {
-                    return buildResponse(reqData, query, answer);
-                }
+    private byte[] getCachedResponse(CacheShard shard, byte[] reqData, CacheKey probe) throws IOException {
+        CachedRecord cached = lookupCached(shard, probe);
+        if (cached == null) {
+            return null;
+        }
+        onCacheHit(shard, probe, cached, reqData, reqData.length);
+        byte[] response = cached.responseFor(reqData);
+        return response != null ? response : rebuildResponse(reqData, parseQuery(reqData, reqData.length), cached);
+    }
+
+    /**
+     * Live entry for the key from the answer cache, else the negative cache,
+     * else null. Expired entries are only removed if they are still the
+     * mapped value, so a fresh record another thread just stored is never
+     * thrown away.
+     */
+    // An expired entry is counted as a miss and gains no weight towards
+    // staying cached
+    private CachedRecord lookupCached(CacheShard shard, CacheKey cacheKey) {
+        CachedRecord answer = shard.cache.get(cacheKey, CachedRecord::isLive);
+        if (answer != null) {
+            if (!answer.isExpired()) {
+                return answer;
+            }
+            // Expired answers are a miss, but stay cached for serve-stale
+            if (answer.isPastStaleWindow(staleWindowSeconds * 1000)) {
+                shard.cache.remove(cacheKey, answer);
+                prefetching.remove(cacheKey);
             }
+        }
 
-            CachedRecord neg = negativeCache.get(cacheKey);
-            if (neg != null) {
-                if (neg.isExpired()) {
-                    negativeCache.remove(cacheKey);
-                } else {
-                    return DNSResponse.buildErrorResponse(reqData, neg.rcode);
-                }
+        CachedRecord neg = shard.negativeCache.get(cacheKey, CachedRecord::isLive);
+        if (neg != null) {
+            if (!neg.isExpired()) {
+                return neg;
             }
+            shard.negativeCache.remove(cacheKey, neg);
         }
+        return nxdomainCut(shard, cacheKey, true);
+    }
+
+    /**
+     * A live NXDOMAIN cached for the key's name or any name above it.
+     * Nothing exists below a name that doesn't exist (RFC 8020), so it
+     * answers this query as well, and a flood of random labels under one
+     * name is answered from the cache. The walk uses peek so it doesn't
+     * count a miss per level; the entry that answers is counted with get.
+     */
+    private CachedRecord nxdomainCut(CacheShard shard, CacheKey key, boolean count) {
+        CacheKey ancestor = key.scratch();
+        ancestor.wrap(key, NXDOMAIN_CUT);
+        do {
+            CachedRecord cut = shard.negativeCache.peek(ancestor);
+            if (cut != null && !cut.isExpired()) {
+                if (count) {
+                    shard.negativeCache.get(ancestor);
+                    nxdomainCutHits.increment();
+                }
+                return cut;
+            }
+        } while (ancestor.parent());
         return null;
     }
 
-    private byte[] resolveAndRespond(DNSQuery query, byte[] reqData, String cacheKey) throws Exception {
-        CachedRecord record = resolveRecord(query);
-        byte[] response;
+    /** Queries answered by the NXDOMAIN cached for their name or one above it */
+    public long getNxdomainCutHits() {
+        return nxdomainCutHits.sum();
+    }
+
+    /**
+     * Refresh-ahead. A hit in the last part of a record's TTL queues one
+     * background resolution that replaces the record before it expires. If
+     * the prefetch pool is full the refresh is skipped and a later hit can
+     * try again. A refresh that comes back negative leaves the old record
+     * in place and isn't retried for it.
+     */
+    private void onCacheHit(CacheShard shard, CacheKey probe, CachedRecord cached, byte[] req, int length) {
+        if (cached.claimMissAvoided()) {
+            prefetchMissesAvoided.increment();
+        }
+        if (!cached.inRefreshWindow()) {
+            return;
+        }
+        CacheKey cacheKey = claimPrefetch(probe, cached.expires);
+        if (cacheKey == null) {
+            return;
+        }
+
+        byte[] reqData = Arrays.copyOf(req, length);
+        DNSQuery query;
+        try {
+            query = parseQuery(reqData, length);
+            refreshPool.execute(() -> {
+                try {
+                    if (resolveAndCache(shard, query, reqData, cacheKey, cached.expires).data != null) {
+                        prefetching.remove(cacheKey, cached.expires);
+                    }
+                } catch (Exception e) {
+                    // Let a later hit try again
+                    prefetching.remove(cacheKey, cached.expires);
+                }
+            });
+            prefetchesIssued.increment();
+        } catch (IOException | RejectedExecutionException e) {
+            prefetching.remove(cacheKey, cached.expires);
+        }
+    }
+
+    /**
+     * Returns an immutable key for exactly one caller per record, null for
+     * everyone else. A newer record under the key can claim again. The key
+     * is only copied once a claim looks likely.
+     */
+    private CacheKey claimPrefetch(CacheKey probe, long expires) {
+        Long running = prefetching.get(probe);
+        if (running != null && running >= expires) {
+            return null;
+        }
+        CacheKey cacheKey = probe.copy();
+        running = prefetching.putIfAbsent(cacheKey, expires);
+        return running == null || (running < expires && prefetching.replace(cacheKey, running, expires)) ?
+                cacheKey : null;
+    }
+
+    public long getPrefetchesIssued() {
+        return prefetchesIssued.sum();
+    }
+
+    public long getPrefetchMissesAvoided() {
+        return prefetchMissesAvoided.sum();
+    }
+
+    // Slow path for a hit whose template can't be used for this request
+    private static byte[] rebuildResponse(byte[] req, DNSQuery query, CachedRecord record) throws IOException {
+        return buildResponse(req, query, record);
+    }
+
+    /**
+     * Resolves a cache miss. Only the first thread to miss on a key asks
+     * upstream; any others that miss while it is working wait for its
+     * result and answer their own client from it.
+     */
+    private byte[] resolveAndRespond(CacheShard shard, DNSQuery query, byte[] reqData, CacheKey cacheKey) throws Exception {
+        CachedRecord record = resolveAndCache(shard, query, reqData, cacheKey, 0);
+        byte[] response = record.responseFor(reqData);
+        return response != null ? response : rebuildResponse(reqData, query, record);
+    }
 
-        if (record != null) {
-            synchronized (cache) {
-                cache.put(cacheKey, record);
+    /**
+     * Resolves the query and caches the result (positive or negative) in
+     * the shard. Only the first thread to get here for a key asks upstream;
+     * others wait for its record. replacedExpiry is set by refresh-ahead,
+     * 0 otherwise.
+     */
+    private CachedRecord resolveAndCache(CacheShard shard, DNSQuery query, byte[] reqData, CacheKey cacheKey,
+                                         long replacedExpiry) throws Exception {
+        InFlight flight = new InFlight(shard);
+        InFlight existing = inFlight.putIfAbsent(cacheKey, flight);
+        if (existing != null) {
+            coalescedQueries.increment();
+            CachedRecord shared;
+            try {
+                shared = existing.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
             }
-            response = buildResponse(reqData, query, record);
-        } else {
-            CachedRecord neg = CachedRecord.negative(30, 3);
-            synchronized (negativeCache) {
-                negativeCache.put(cacheKey, neg);
+            if (existing.shard != shard) {
+                // Another listener resolved it into its own shard
+                if (shared.data != null) {
+                    shard.cache.put(cacheKey, shared);
+                } else if (shared.originalTtl > 0) {
+                    cacheNegative(shard, cacheKey, shared);
+                }
+            }
+            return shared;
+        }
+
+        try {
+            CachedRecord record = resolveRecord(query);
+
+            long start = System.nanoTime();
+            record.setResponseTemplate(buildResponse(reqData, query, record));
+            metrics.stage(NameServerMetrics.Stage.BUILD, start);
+            if (record.data != null) {
+                record.replacedExpiry = replacedExpiry;
+                shard.cache.put(cacheKey, record);
+            } else if (record.originalTtl > 0) {
+                cacheNegative(shard, cacheKey, record);
             }
-            response = DNSResponse.buildErrorResponse(reqData, 3);
+
+            flight.complete(record);
+            return record;
+        } catch (Exception e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(cacheKey, flight);
+        }
+    }
+
+    // An NXDOMAIN goes in twice: for this query, and for every query at or
+    // below the name that doesn't exist
+    private static void cacheNegative(CacheShard shard, CacheKey cacheKey, CachedRecord record) {
+        shard.negativeCache.put(cacheKey, record);
+        if (record.nxdomain != null) {
+            shard.negativeCache.put(CacheKey.of(record.nxdomain, NXDOMAIN_CUT), record);
         }
+    }
 
-        return response;
+    public long getCoalescedQueries() {
+        return coalescedQueries.sum();
     }
 
+    // The answer or negative answer for query, ready to cache
     private CachedRecord resolveRecord(DNSQuery query) throws Exception {
-        switch (query.qtype) {
-            case 1:
-                InetAddress addr = resolver.iterativeResolveAddress(query.qname);
-                return addr != null ?
-                        new CachedRecord(addr.getAddress(), getTtlFromResolver(), 1, 0) : null;
-            case 16:
-                String txt = resolver.iterativeResolveText(query.qname);
-                return txt != null ?
-                        new CachedRecord(txt.getBytes("UTF-8"), getTtlFromResolver(), 16, 0) : null;
-            case 5:
-                String cname = resolver.iterativeResolveName(query.qname, 5);
-                return cname != null ?
-                        new CachedRecord(cname.getBytes("UTF-8"), getTtlFromResolver(), 5, 0) : null;
-            case 2:
-                String ns = resolver.iterativeResolveName(query.qname, 2);
-                return ns != null ?
-                        new CachedRecord(ns.getBytes("UTF-8"), getTtlFromResolver(), 2, 0) : null;
-            case 15:
-                String mx = resolver.iterativeResolveName(query.qname, 15);
-                return mx != null ?
-                        new CachedRecord(mx.getBytes("UTF-8"), getTtlFromResolver(), 15, 0) : null;
-            default:
-                return null;
+        if (query.qtype != 1 && query.qtype != 2 && query.qtype != 5 && query.qtype != 15 && query.qtype != 16) {
+            return CachedRecord.negative(NEGATIVE_TTL, 0);
+        }
+
+        AsyncLog.debug("Resolving {} type {}", query.qname, query.qtype);
+        long start = System.nanoTime();
+        DNSResult result = resolver.iterativeResolve(query.qname, query.qtype);
+        metrics.stage(NameServerMetrics.Stage.RESOLVE, start);
+        if (result.isNegative()) {
+            CachedRecord record = CachedRecord.negative(Math.min(result.ttl, MAX_NEGATIVE_TTL), result.rcode);
+            if (result.soa != null) {
+                record.authority = toAuthority(result.soa);
+            }
+            if (result.rcode == 3) {
+                record.nxdomain = result.name;
+            }
+            return record;
+        }
+
+        byte[][] rdata = new byte[result.records.size()][];
+        for (int i = 0; i < rdata.length; i++) {
+            rdata[i] = toRdata(result.records.get(i));
         }
+        return new CachedRecord(CachedRecord.rrset(rdata), Math.min(result.ttl, MAX_TTL), query.qtype, 0);
     }
 
-    private int getTtlFromResolver() {
-        return 300;
+    // An SOA record for the authority section of our own responses, with its
+    // owner written out in full. The TTL is filled in when it is sent.
+    private static byte[] toAuthority(DNSResourceRecord soa) throws IOException {
+        byte[] owner = toDNSLabels(soa.domainName);
+        byte[] rdata = toRdata(soa);
+        return ByteBuffer.allocate(owner.length + 10 + rdata.length).put(owner).putShort((short) 6)
+                .putShort((short) 1).putInt(0).putShort((short) rdata.length).put(rdata).array();
+    }
+
+    // RDATA of an upstream record that can be copied into our own responses.
+    // Names are written out in full, as compression pointers in the
+    // original point into the upstream's packet.
+    private static byte[] toRdata(DNSResourceRecord record) throws IOException {
+        switch (record.recordType) {
+            case 2:
+            case 5:
+                return toDNSLabels(record.getRecordDataAsString());
+            case 6: {
+                // MNAME and RNAME, then the five numbers
+                int[] offset = {record.dataStartPosition};
+                byte[] mname = toDNSLabels(DNSPacketParser.readDomainName(record.completePacket, offset));
+                byte[] rname = toDNSLabels(DNSPacketParser.readDomainName(record.completePacket, offset));
+                return ByteBuffer.allocate(mname.length + rname.length + 20).put(mname).put(rname)
+                        .put(record.recordData, record.recordData.length - 20, 20).array();
+            }
+            case 15: {
+                String exchange = DNSPacketParser.readDomainName(record.completePacket,
+                        new int[]{record.dataStartPosition + 2});
+                byte[] labels = toDNSLabels(exchange);
+                byte[] rdata = Arrays.copyOf(record.recordData, 2 + labels.length);
+                System.arraycopy(labels, 0, rdata, 2, labels.length);
+                return rdata;
+            }
+            default:
+                // A and TXT have no names in them
+                return record.recordData;
+        }
     }
 
-    private byte[] buildResponse(byte[] req, DNSQuery query, CachedRecord record) throws IOException {
+    // Response to req from record. A negative record gets its rcode and,
+    // if it has one, its SOA in the authority section.
+    static byte[] buildResponse(byte[] req, DNSQuery query, CachedRecord record) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(baos);
 
         dos.writeShort(((req[0] & 0xFF) << 8) | (req[1] & 0xFF));
-        dos.writeShort(0x8180);
+        dos.writeShort(0x8180 | record.rcode);
         dos.writeShort(1);
-        dos.writeShort(1);
-        dos.writeShort(0);
+        dos.writeShort(record.answerCount());
+        dos.writeShort(record.authority != null ? 1 : 0);
         dos.writeShort(0);
 
         int idx = 12;
@@ -271,34 +2023,28 @@ public class NameServer implements NameServerInterface {
         dos.writeShort(query.qtype);
         dos.writeShort(query.qclass);
 
-        dos.writeShort(0xC00C);
-        dos.writeShort(query.qtype);
-        dos.writeShort(query.qclass);
-        dos.writeInt(record.getRemainingTtl());
-
-        if (query.qtype == 1) {
-            dos.writeShort(4);
-            dos.write(record.data);
-        } else if (query.qtype == 16) {
-            dos.writeShort(record.data.length + 1);
-            dos.writeByte(record.data.length);
-            dos.write(record.data);
-        } else {
-            byte[] labels = toDNSLabels(new String(record.data, "UTF-8"));
-            if (query.qtype == 15) {
-                dos.writeShort(labels.length + 2);
-                dos.writeShort(10);
-                dos.write(labels);
-            } else {
-                dos.writeShort(labels.length);
-                dos.write(labels);
-            }
+        // One answer per record of the RRset, each pointing back at the question
+        int ttl = record.getRemainingTtl();
+        for (int pos = 0; record.data != null && pos < record.data.length; ) {
+            int rdLength = (record.data[pos] & 0xFF) << 8 | (record.data[pos + 1] & 0xFF);
+            dos.writeShort(0xC00C);
+            dos.writeShort(query.qtype);
+            dos.writeShort(query.qclass);
+            dos.writeInt(ttl);
+            dos.write(record.data, pos, 2 + rdLength);
+            pos += 2 + rdLength;
+        }
+        if (record.authority != null) {
+            int ttlAt = DNSPacketParser.skipDomainName(record.authority, 0) + 4;
+            dos.write(record.authority, 0, ttlAt);
+            dos.writeInt(ttl);
+            dos.write(record.authority, ttlAt + 4, record.authority.length - ttlAt - 4);
         }
 
         return baos.toByteArray();
     }
 
-    private byte[] toDNSLabels(String name) throws IOException {
+    private static byte[] toDNSLabels(String name) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         for (String label : name.split("\\.")) {
             if (!label.isEmpty()) {
@@ -345,5 +2091,112 @@ public class NameServer implements NameServerInterface {
 
             return baos.toByteArray();
         }
+
+        // Just the header and question of a response, with TC set, telling
+        // the client to retry over TCP
+        static byte[] truncate(byte[] response) {
+            byte[] out = Arrays.copyOf(response, DNSPacketParser.skipDomainName(response, 12) + 4);
+            out[2] |= 0x02;
+            Arrays.fill(out, 6, 12, (byte) 0);
+            return out;
+        }
+    }
+
+    /**
+     * EDNS0 (RFC 6891). A client that sends an OPT pseudo-record in the
+     * additional section can take UDP answers up to the size in its CLASS
+     * field, and gets an OPT record back advertising ours. Responses are
+     * always built without OPT, so cached templates suit every client, and
+     * it is added on the way out.
+     */
+    static class Edns {
+        static final int OPT_SIZE = 11;
+        private static final int BADVERS = 16;
+
+        /** Offset of the OPT record in the first length bytes of msg, or -1. */
+        static int find(byte[] msg, int length) {
+            if (length < 12) {
+                return -1;
+            }
+            int questions = (msg[4] & 0xFF) << 8 | (msg[5] & 0xFF);
+            int records = ((msg[6] & 0xFF) << 8 | (msg[7] & 0xFF))
+                    + ((msg[8] & 0xFF) << 8 | (msg[9] & 0xFF));
+            int additional = (msg[10] & 0xFF) << 8 | (msg[11] & 0xFF);
+            if (additional == 0) {
+                return -1;
+            }
+
+            int pos = 12;
+            for (int i = 0; i < questions; i++) {
+                pos = skipName(msg, pos, length) + 4;
+                if (pos < 4 || pos > length) {
+                    return -1;
+                }
+            }
+            for (int i = 0; i < records + additional; i++) {
+                int start = pos;
+                pos = skipName(msg, pos, length);
+                if (pos < 0 || pos + 10 > length) {
+                    return -1;
+                }
+                int type = (msg[pos] & 0xFF) << 8 | (msg[pos + 1] & 0xFF);
+                if (i >= records && type == 41 && msg[start] == 0) {
+                    return start;
+                }
+                pos += 10 + ((msg[pos + 8] & 0xFF) << 8 | (msg[pos + 9] & 0xFF));
+            }
+            return -1;
+        }
+
+        static int udpSize(byte[] msg, int opt) {
+            return (msg[opt + 3] & 0xFF) << 8 | (msg[opt + 4] & 0xFF);
+        }
+
+        static int version(byte[] msg, int opt) {
+            return msg[opt + 6] & 0xFF;
+        }
+
+        /**
+         * Appends an OPT record at out's position and bumps ARCOUNT in the
+         * header at headerStart. Returns false, writing nothing, if it
+         * doesn't fit.
+         */
+        static boolean putOpt(ByteBuffer out, int headerStart, int udpSize, int extendedRcode) {
+            if (out.remaining() < OPT_SIZE) {
+                return false;
+            }
+            out.put((byte) 0);
+            out.putShort((short) 41);
+            out.putShort((short) udpSize);
+            out.put((byte) extendedRcode);
+            out.put((byte) 0);   // version
+            out.putShort((short) 0); // flags
+            out.putShort((short) 0); // no options
+            out.putShort(headerStart + 10, (short) (out.getShort(headerStart + 10) + 1));
+            return true;
+        }
+
+        // Answer to a query using an EDNS version we don't speak
+        static byte[] badVersion(byte[] req, int length, int udpSize) throws IOException {
+            byte[] header = DNSResponse.buildErrorResponse(req, BADVERS & 0xF);
+            ByteBuffer out = ByteBuffer.allocate(header.length + OPT_SIZE);
+            out.put(header);
+            putOpt(out, 0, udpSize, BADVERS >> 4);
+            return out.array();
+        }
+
+        private static int skipName(byte[] msg, int pos, int length) {
+            while (pos < length) {
+                int len = msg[pos] & 0xFF;
+                if (len == 0) {
+                    return pos + 1;
+                }
+                if ((len & 0xC0) == 0xC0) {
+                    return pos + 2;
+                }
+                pos += 1 + len;
+            }
+            return -1;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,123 @@
+import java.util.Locale;
+
+/**
+ * NameServerMetrics - Where the NameServer's time goes
+ *
+ * One LatencyHistogram per stage of answering a query, and one per QTYPE
+ * for the whole query from receive to send. The NameServer adds its
+ * counters and gauges and the lot is served in Prometheus text format by
+ * MetricsHttpServer.
+ */
+class NameServerMetrics {
+
+    enum Stage {
+        QUEUE,   // waiting for a worker thread
+        PARSE,   // DNSQuery parsed from the packet (misses only)
+        LOOKUP,  // cache lookup
+        RESOLVE, // upstream resolution
+        BUILD,   // response written from a template or built
+        SEND;    // handed to the socket
+
+        final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    private static final int[] QTYPES = {1, 2, 5, 15, 16};
+    private static final String[] QTYPE_NAMES = {"A", "NS", "CNAME", "MX", "TXT", "other"};
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+    private final LatencyHistogram[] requests = new LatencyHistogram[QTYPE_NAMES.length];
+
+    NameServerMetrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new LatencyHistogram();
+        }
+    }
+
+    /** Records the stage as running from start until now, and returns now. */
+    long stage(Stage stage, long start) {
+        long now = System.nanoTime();
+        stages[stage.ordinal()].record(now - start);
+        return now;
+    }
+
+    /** Records a whole query of qtype that arrived at received. */
+    void request(int qtype, long received) {
+        requests[qtypeIndex(qtype)].record(System.nanoTime() - received);
+    }
+
+    LatencyHistogram stageHistogram(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    LatencyHistogram requestHistogram(int qtype) {
+        return requests[qtypeIndex(qtype)];
+    }
+
+    void write(StringBuilder out) {
+        out.append("# HELP nameserver_stage_seconds Time spent in each stage of answering a query.\n");
+        out.append("# TYPE nameserver_stage_seconds summary\n");
+        for (Stage stage : Stage.values()) {
+            writeSummary(out, "nameserver_stage_seconds", "stage", stage.label, stages[stage.ordinal()]);
+        }
+        out.append("# HELP nameserver_request_seconds Time from receiving a query to sending its answer.\n");
+        out.append("# TYPE nameserver_request_seconds summary\n");
+        for (int i = 0; i < requests.length; i++) {
+            writeSummary(out, "nameserver_request_seconds", "qtype", QTYPE_NAMES[i], requests[i]);
+        }
+    }
+
+    static void writeCounter(StringBuilder out, String name, String help, long value) {
+        writeMetric(out, name, "counter", help, value);
+    }
+
+    static void writeGauge(StringBuilder out, String name, String help, long value) {
+        writeMetric(out, name, "gauge", help, value);
+    }
+
+    private static void writeMetric(StringBuilder out, String name, String type, String help, long value) {
+        writeHeader(out, name, type, help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /** HELP and TYPE lines, for a metric written one labelled sample at a time. */
+    static void writeHeader(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static void writeSample(StringBuilder out, String name, String labelName, String labelValue, String value) {
+        out.append(name).append('{').append(labelName).append("=\"").append(labelValue).append("\"} ")
+                .append(value).append('\n');
+    }
+
+    static void writeSummary(StringBuilder out, String name, String labelName, String labelValue,
+                                     LatencyHistogram histogram) {
+        long[] snapshot = histogram.snapshot();
+        String labels = labelName + "=\"" + labelValue + "\"";
+        for (double q : QUANTILES) {
+            out.append(name).append('{').append(labels).append(",quantile=\"").append(q).append("\"} ")
+                    .append(seconds(LatencyHistogram.quantile(snapshot, q))).append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ")
+                .append(seconds(histogram.sumNanos())).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ")
+                .append(LatencyHistogram.count(snapshot)).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static int qtypeIndex(int qtype) {
+        for (int i = 0; i < QTYPES.length; i++) {
+            if (QTYPES[i] == qtype) {
+                return i;
+            }
+        }
+        return QTYPES.length;
+    }
+}
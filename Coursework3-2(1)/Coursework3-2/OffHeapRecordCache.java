@@ -0,0 +1,488 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * OffHeapRecordCache - NameServer cache backend that keeps records in
+ * direct memory
+ *
+ * With millions of entries the heap cache means millions of objects for
+ * the collector to trace. Here every record (key, header fields, data,
+ * response template and negative answer's SOA) is written as bytes into one of a fixed number of
+ * direct ByteBuffer segments, and the index is an open-addressing hash
+ * table of longs, also off-heap. The heap cost is the same whether the
+ * cache holds ten entries or ten million.
+ *
+ * Segments are filled one after another like a ring. When the writer
+ * moves on to a segment it first recycles it: entries that were read
+ * since the last pass are compacted to the front of the segment (second
+ * chance), everything else is evicted.
+ *
+ * Reads take a shared lock and return a fresh CachedRecord copied out of
+ * the segment; writes take the exclusive lock. The few things a read
+ * changes (the accessed bit and the refresh-ahead claim) are updated
+ * atomically, since other readers hold the same shared lock. Records are
+ * padded to 8 bytes so those longs are aligned for atomic access.
+ */
+class OffHeapRecordCache implements RecordCache<CacheKey, NameServer.CachedRecord> {
+
+    private static final int SEGMENTS = 64;
+
+    // Record layout inside a segment
+    private static final int LENGTH = 0;          // int, whole record
+    private static final int HASH = 4;            // int
+    private static final int EXPIRES = 8;         // long
+    private static final int REPLACED_EXPIRY = 16; // long
+    private static final int ORIGINAL_TTL = 24;   // int
+    private static final int TYPE = 28;           // int
+    private static final int RCODE = 32;          // int
+    private static final int KEY_LENGTH = 36;     // short, wire-format name bytes
+    private static final int DATA_LENGTH = 38;    // unsigned short, NONE for null
+    private static final int WIRE_LENGTH = 40;    // unsigned short, NONE for null
+    private static final int KEY_QTYPE = 42;      // short
+    private static final int AUTHORITY_LENGTH = 44; // unsigned short, NONE for null
+    private static final int HEADER = 46;
+    // Length of a section that is null; a section can't be this long
+    private static final int NONE = 0xFFFF;
+
+    // Atomic access to the longs in the segments and the index
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    // Index slot: 23-bit hash tag | accessed bit | 40-bit offset + 1 (0 = empty)
+    private static final long OFFSET_MASK = (1L << 40) - 1;
+    private static final long ACCESSED = 1L << 40;
+    private static final long TAG_MASK = ~((1L << 41) - 1);
+
+    private final ByteBuffer[] segments = new ByteBuffer[SEGMENTS];
+    private final int[] segmentEnds = new int[SEGMENTS];
+    private final int segmentSize;
+    private final ByteBuffer index;
+    private final int indexMask;
+    private final int maxEntries;
+
+    private final StampedLock lock = new StampedLock();
+    private int writeSegment;
+    private int size;
+    // Every read is a new CachedRecord, so the round-robin position for
+    // multi-record answers is kept here instead
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param arenaBytes total size of the record segments
+     * @param maxEntries most entries the index should hold
+     */
+    OffHeapRecordCache(long arenaBytes, long maxEntries) {
+        segmentSize = (int) Math.min(Math.max(arenaBytes / SEGMENTS, 64 * 1024), 1 << 30) & ~7;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = ByteBuffer.allocateDirect(segmentSize);
+        }
+
+        // Keep the index at most three quarters full so probes stay short
+        long slots = Math.min(Math.max(maxEntries * 4 / 3, 1024), 1 << 27);
+        int capacity = Integer.highestOneBit((int) slots - 1) << 1;
+        index = ByteBuffer.allocateDirect(capacity * 8);
+        indexMask = capacity - 1;
+        this.maxEntries = (int) Math.min(Math.max(maxEntries, 1), capacity / 4 * 3);
+    }
+
+    @Override
+    public NameServer.CachedRecord get(CacheKey key) {
+        return get(key, record -> true);
+    }
+
+    @Override
+    public NameServer.CachedRecord get(CacheKey key, Predicate<? super NameServer.CachedRecord> live) {
+        int hash = spread(key.hashCode());
+        long stamp = lock.readLock();
+        try {
+            int i = findSlot(key, hash);
+            if (i < 0) {
+                misses.increment();
+                return null;
+            }
+            long slot = index.getLong(i << 3);
+            long offset = (slot & OFFSET_MASK) - 1;
+            NameServer.CachedRecord record = read(offset);
+            if (!live.test(record)) {
+                misses.increment();
+                return record;
+            }
+            hits.increment();
+            if ((slot & ACCESSED) == 0) {
+                LONGS.getAndBitwiseOr(index, i << 3, ACCESSED);
+            }
+            claimReplaced(offset, record);
+            return record;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public NameServer.CachedRecord peek(CacheKey key) {
+        int hash = spread(key.hashCode());
+        long stamp = lock.readLock();
+        try {
+            int i = findSlot(key, hash);
+            return i < 0 ? null : read((index.getLong(i << 3) & OFFSET_MASK) - 1);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void put(CacheKey key, NameServer.CachedRecord record) {
+        byte[] data = record.data;
+        byte[] wire = record.responseTemplate();
+        byte[] authority = record.authority;
+        int length = align(HEADER + key.nameLength() + (data != null ? data.length : 0)
+                + (wire != null ? wire.length : 0) + (authority != null ? authority.length : 0));
+        // Too big to store: the key's old value goes too, so it isn't served instead
+        boolean tooBig = length > segmentSize / 2 || !fits(data) || !fits(wire) || !fits(authority);
+
+        int hash = spread(key.hashCode());
+        long stamp = lock.writeLock();
+        try {
+            int existing = findSlot(key, hash);
+            if (existing >= 0) {
+                deleteSlot(existing);
+            }
+            if (tooBig) {
+                return;
+            }
+            // After one lap of the ring nothing gets a second chance, so a
+            // cache full of recently read entries still makes room
+            int advanced = 0;
+            while (size >= maxEntries) {
+                advanceSegment(advanced++ < SEGMENTS);
+            }
+            if (segmentEnds[writeSegment] + length > segmentSize) {
+                advanceSegment(advanced++ < SEGMENTS);
+                while (segmentEnds[writeSegment] + length > segmentSize) {
+                    advanceSegment(advanced++ < SEGMENTS);
+                }
+            }
+
+            ByteBuffer buf = segments[writeSegment];
+            int pos = segmentEnds[writeSegment];
+            buf.putInt(pos + LENGTH, length);
+            buf.putInt(pos + HASH, hash);
+            buf.putLong(pos + EXPIRES, record.expires);
+            buf.putLong(pos + REPLACED_EXPIRY, record.replacedExpiry);
+            buf.putInt(pos + ORIGINAL_TTL, record.originalTtl);
+            buf.putInt(pos + TYPE, record.type);
+            buf.putInt(pos + RCODE, record.rcode);
+            buf.putShort(pos + KEY_LENGTH, (short) key.nameLength());
+            buf.putShort(pos + DATA_LENGTH, (short) sectionLength(data));
+            buf.putShort(pos + WIRE_LENGTH, (short) sectionLength(wire));
+            buf.putShort(pos + KEY_QTYPE, (short) key.qtype());
+            buf.putShort(pos + AUTHORITY_LENGTH, (short) sectionLength(authority));
+            int p = pos + HEADER;
+            for (int c = 0; c < key.nameLength(); c++, p++) {
+                buf.put(p, key.nameAt(c));
+            }
+            if (data != null) {
+                buf.put(p, data);
+                p += data.length;
+            }
+            if (wire != null) {
+                buf.put(p, wire);
+                p += wire.length;
+            }
+            if (authority != null) {
+                buf.put(p, authority);
+            }
+            segmentEnds[writeSegment] = pos + length;
+
+            long offset = (long) writeSegment * segmentSize + pos;
+            insertSlot(hash, tagOf(hash) | (offset + 1));
+            size++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Records are copied out on every read, so "the same value" means the
+     * same expiry: a fresh record stored by another thread has a later one.
+     */
+    @Override
+    public boolean remove(CacheKey key, NameServer.CachedRecord record) {
+        int hash = spread(key.hashCode());
+        long stamp = lock.writeLock();
+        try {
+            int i = findSlot(key, hash);
+            if (i < 0) {
+                return false;
+            }
+            long offset = (index.getLong(i << 3) & OFFSET_MASK) - 1;
+            if (segment(offset).getLong(position(offset) + EXPIRES) != record.expires) {
+                return false;
+            }
+            deleteSlot(i);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super CacheKey, ? super NameServer.CachedRecord> action) {
+        long stamp = lock.readLock();
+        try {
+            for (int i = 0; i <= indexMask; i++) {
+                long slot = index.getLong(i << 3);
+                if (slot != 0) {
+                    long offset = (slot & OFFSET_MASK) - 1;
+                    action.accept(readKey(offset), read(offset));
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long missCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /** Copies a record out of its segment. */
+    private NameServer.CachedRecord read(long offset) {
+        ByteBuffer buf = segment(offset);
+        int pos = position(offset);
+        int keyLength = buf.getShort(pos + KEY_LENGTH) & 0xFFFF;
+        int dataLength = buf.getShort(pos + DATA_LENGTH) & 0xFFFF;
+        int wireLength = buf.getShort(pos + WIRE_LENGTH) & 0xFFFF;
+        int authorityLength = buf.getShort(pos + AUTHORITY_LENGTH) & 0xFFFF;
+        int p = pos + HEADER + keyLength;
+
+        byte[] data = null;
+        if (dataLength != NONE) {
+            data = new byte[dataLength];
+            buf.get(p, data);
+            p += dataLength;
+        }
+        NameServer.CachedRecord record = new NameServer.CachedRecord(data, buf.getLong(pos + EXPIRES),
+                buf.getInt(pos + ORIGINAL_TTL), buf.getInt(pos + TYPE), buf.getInt(pos + RCODE));
+        if (wireLength != NONE) {
+            byte[] wire = new byte[wireLength];
+            buf.get(p, wire);
+            record.setResponseTemplate(wire);
+            p += wireLength;
+        }
+        if (authorityLength != NONE) {
+            record.authority = new byte[authorityLength];
+            buf.get(p, record.authority);
+        }
+        record.rotation = rotation.getAndIncrement();
+        return record;
+    }
+
+    /**
+     * A record written by refresh-ahead hands its replaced expiry to the
+     * first hit after that time only, so the NameServer counts each
+     * avoided miss once. Readers race for it, so it is claimed with a CAS.
+     */
+    private void claimReplaced(long offset, NameServer.CachedRecord record) {
+        ByteBuffer buf = segment(offset);
+        int at = position(offset) + REPLACED_EXPIRY;
+        long replacedExpiry = (long) LONGS.getVolatile(buf, at);
+        if (replacedExpiry != 0 && System.currentTimeMillis() > replacedExpiry
+                && LONGS.compareAndSet(buf, at, replacedExpiry, 0L)) {
+            record.replacedExpiry = replacedExpiry;
+        }
+    }
+
+    private static int sectionLength(byte[] section) {
+        return section != null ? section.length : NONE;
+    }
+
+    private static boolean fits(byte[] section) {
+        return section == null || section.length < NONE;
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+
+    /**
+     * Moves the writer to the next segment and recycles it. Entries read
+     * since the last pass are kept, packed at the front of the segment, as
+     * long as they fill no more than half of it; the rest are evicted and
+     * lose their access bit either way.
+     */
+    private void advanceSegment(boolean secondChance) {
+        writeSegment = (writeSegment + 1) % SEGMENTS;
+        ByteBuffer buf = segments[writeSegment];
+        long base = (long) writeSegment * segmentSize;
+        int end = segmentEnds[writeSegment];
+        int pos = 0;
+        int dst = 0;
+
+        while (pos < end) {
+            int length = buf.getInt(pos + LENGTH);
+            int i = slotFor(buf.getInt(pos + HASH), base + pos);
+            if (i >= 0) {
+                long slot = index.getLong(i << 3);
+                if (secondChance && (slot & ACCESSED) != 0 && dst + length <= segmentSize / 2) {
+                    move(buf, pos, dst, length);
+                    index.putLong(i << 3, (slot & TAG_MASK) | (base + dst + 1));
+                    dst += length;
+                } else {
+                    deleteSlot(i);
+                    evictions.increment();
+                }
+            }
+            pos += length;
+        }
+        segmentEnds[writeSegment] = dst;
+    }
+
+    // Copies towards the front of the segment, so a forward copy is safe
+    private static void move(ByteBuffer buf, int from, int to, int length) {
+        if (from == to) {
+            return;
+        }
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            buf.putLong(to + i, buf.getLong(from + i));
+        }
+        for (; i < length; i++) {
+            buf.put(to + i, buf.get(from + i));
+        }
+    }
+
+    private int findSlot(CacheKey key, int hash) {
+        long tag = tagOf(hash);
+        int i = hash & indexMask;
+        while (true) {
+            long slot = index.getLong(i << 3);
+            if (slot == 0) {
+                return -1;
+            }
+            if ((slot & TAG_MASK) == tag && keyEquals((slot & OFFSET_MASK) - 1, key)) {
+                return i;
+            }
+            i = (i + 1) & indexMask;
+        }
+    }
+
+    // Slot pointing at a record offset, or -1 if the record is garbage
+    private int slotFor(int hash, long offset) {
+        int i = hash & indexMask;
+        while (true) {
+            long slot = index.getLong(i << 3);
+            if (slot == 0) {
+                return -1;
+            }
+            if ((slot & OFFSET_MASK) == offset + 1) {
+                return i;
+            }
+            i = (i + 1) & indexMask;
+        }
+    }
+
+    private void insertSlot(int hash, long value) {
+        int i = hash & indexMask;
+        while (index.getLong(i << 3) != 0) {
+            i = (i + 1) & indexMask;
+        }
+        index.putLong(i << 3, value);
+    }
+
+    // Linear probing delete: shift later entries back instead of leaving tombstones
+    private void deleteSlot(int i) {
+        index.putLong(i << 3, 0);
+        size--;
+        int j = i;
+        while (true) {
+            j = (j + 1) & indexMask;
+            long slot = index.getLong(j << 3);
+            if (slot == 0) {
+                return;
+            }
+            long offset = (slot & OFFSET_MASK) - 1;
+            int home = segment(offset).getInt(position(offset) + HASH) & indexMask;
+            boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!between) {
+                index.putLong(i << 3, slot);
+                index.putLong(j << 3, 0);
+                i = j;
+            }
+        }
+    }
+
+    private CacheKey readKey(long offset) {
+        ByteBuffer buf = segment(offset);
+        int pos = position(offset);
+        byte[] name = new byte[buf.getShort(pos + KEY_LENGTH) & 0xFFFF];
+        buf.get(pos + HEADER, name);
+        return CacheKey.of(name, buf.getShort(pos + KEY_QTYPE) & 0xFFFF);
+    }
+
+    // Stored names are lower case, and nameAt lower-cases the probe's
+    private boolean keyEquals(long offset, CacheKey key) {
+        ByteBuffer buf = segment(offset);
+        int pos = position(offset);
+        if ((buf.getShort(pos + KEY_LENGTH) & 0xFFFF) != key.nameLength()
+                || (buf.getShort(pos + KEY_QTYPE) & 0xFFFF) != key.qtype()) {
+            return false;
+        }
+        int p = pos + HEADER;
+        for (int c = 0; c < key.nameLength(); c++, p++) {
+            if (buf.get(p) != key.nameAt(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer segment(long offset) {
+        return segments[(int) (offset / segmentSize)];
+    }
+
+    private int position(long offset) {
+        return (int) (offset % segmentSize);
+    }
+
+    private static long tagOf(int hash) {
+        return ((long) (hash >>> 9)) << 41;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,41 @@
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * RecordCache - What the NameServer needs from a cache backend
+ *
+ * TinyLfuCache keeps entries as objects on the heap. OffHeapRecordCache
+ * keeps them as bytes in direct memory and builds a fresh object for
+ * each read.
+ */
+interface RecordCache<K, V> {
+
+    /** Returns the value and counts a hit or miss. */
+    V get(K key);
+
+    /**
+     * Returns the value, but counts a hit, and lets it count towards
+     * keeping the entry, only if live accepts it. Anything else, such as
+     * an expired entry, is a miss.
+     */
+    V get(K key, Predicate<? super V> live);
+
+    /** Looks the value up without counting a hit or miss. */
+    V peek(K key);
+
+    void put(K key, V value);
+
+    /** Removes the entry only if it still holds this value. */
+    boolean remove(K key, V value);
+
+    int size();
+
+    /** Visits every entry, expired or not, without counting hits. */
+    void forEach(BiConsumer<? super K, ? super V> action);
+
+    long hitCount();
+
+    long missCount();
+
+    long evictionCount();
+}
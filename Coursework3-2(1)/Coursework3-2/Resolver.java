@@ -49,6 +49,9 @@ public class Resolver implements ResolverInterface {
     // This is typically one of the 13 root DNS servers (a.root-servers.net, etc.)
     private InetAddress rootServerAddress;
     private int rootServerPort;
+    // In forwarding mode every query goes to the Forwarder's upstreams
+    // instead, and their answers are final
+    private Forwarder forwarder;
 
     /**
      * Sets the root DNS server to start iterative resolution from
@@ -59,13 +62,21 @@ public class Resolver implements ResolverInterface {
         this.rootServerPort = port;
     }
 
+    /**
+     * Sends every query to the forwarder's upstream recursors, with
+     * recursion desired, instead of walking down from the root server
+     */
+    public void setForwarder(Forwarder forwarder) {
+        this.forwarder = forwarder;
+    }
+
     /**
      * Resolves a domain name to an IPv4 address using iterative DNS
      * This method handles the full iterative resolution process
      */
     public InetAddress iterativeResolveAddress(String domainName) throws Exception {
-        String resolvedIP = performIterativeResolution(domainName, 1); // Type 1 = A record
-        return resolvedIP != null ? InetAddress.getByName(resolvedIP) : null;
+        DNSResult resolvedIP = performIterativeResolution(domainName, 1); // Type 1 = A record
+        return resolvedIP.data != null ? InetAddress.getByName(resolvedIP.data) : null;
     }
 
     /**
@@ -73,7 +84,8 @@ public class Resolver implements ResolverInterface {
      * TXT records often contain domain verification strings, SPF records, etc.
      */
     public String iterativeResolveText(String domainName) throws Exception {
-        return performIterativeResolution(domainName, 16); // Type 16 = TXT record
+        DNSResult result = performIterativeResolution(domainName, 16); // Type 16 = TXT record
+        return result.data;
     }
 
     /**
@@ -83,6 +95,18 @@ public class Resolver implements ResolverInterface {
     public String iterativeResolveName(String domainName, int type) throws Exception {
         if (!(type == 2 || type == 5 || type == 15)) // NS, CNAME, MX record types
             throw new IllegalArgumentException("Unsupported record type. Only NS (2), CNAME (5), MX (15) are supported.");
+        DNSResult result = performIterativeResolution(domainName, type);
+        return result.data;
+    }
+
+    /**
+     * Resolves any of the supported types and also returns how long the
+     * answer may be cached for. The NameServer uses this so its cache
+     * follows the upstream TTLs instead of guessing. A name that doesn't
+     * exist, or has no records of the type, comes back as a negative
+     * result with the rcode and the zone's SOA.
+     */
+    public DNSResult iterativeResolve(String domainName, int type) throws Exception {
         return performIterativeResolution(domainName, type);
     }
 
@@ -91,10 +115,11 @@ public class Resolver implements ResolverInterface {
      * This is the heart of the resolver - it follows the DNS hierarchy
      * from root servers down to the authoritative server for the domain
      */
-    private String performIterativeResolution(String targetDomain, int queryType) throws Exception {
+    private DNSResult performIterativeResolution(String targetDomain, int queryType) throws Exception {
         InetAddress currentNameserver = rootServerAddress; // Start with root server
         Set<String> processedCNAMEs = new HashSet<>(); // Track CNAMEs to detect loops
         Map<String, InetAddress> nameserverCache = new HashMap<>(); // Cache resolved NS IPs
+        int chainTtl = Integer.MAX_VALUE; // Smallest TTL of any CNAME followed so far
 
         while (true) {
             // Build and send DNS query to current nameserver
@@ -108,12 +133,15 @@ public class Resolver implements ResolverInterface {
 
             // Parse the DNS response
             DNSPacketParser parsedResponse = DNSPacketParser.parseDNSPacket(dnsResponse);
+            int rcode = dnsResponse[3] & 0x0F;
 
             // Check for direct answers in the answer section
+            // Every record of the type we want is part of the answer, not just the first
+            boolean followedCNAME = false;
+            List<DNSResourceRecord> rrset = new ArrayList<>();
             for (DNSResourceRecord answerRecord : parsedResponse.answerRecords) {
                 if (answerRecord.recordType == queryType) {
-                    // Found the record we're looking for!
-                    return answerRecord.getRecordDataAsString();
+                    rrset.add(answerRecord);
                 } else if (answerRecord.recordType == 5) { // CNAME record
                     // Handle CNAME redirection
                     String cnameTarget = answerRecord.getRecordDataAsString();
@@ -121,20 +149,43 @@ public class Resolver implements ResolverInterface {
                         throw new Exception("CNAME loop detected - domain points to itself");
                     }
                     processedCNAMEs.add(cnameTarget);
+                    chainTtl = Math.min(chainTtl, Math.max(0, answerRecord.timeToLive));
                     targetDomain = cnameTarget; // Follow the CNAME
                     currentNameserver = rootServerAddress; // Start over from root
-                    continue; // Query for the new domain
+                    followedCNAME = true; // The target may still be further down this answer
                 }
             }
+            if (!rrset.isEmpty()) {
+                // Found the records we're looking for!
+                // The answer is only as fresh as its shortest-lived record and
+                // the CNAMEs that led to it
+                int ttl = chainTtl;
+                for (DNSResourceRecord record : rrset) {
+                    ttl = Math.min(ttl, Math.max(0, record.timeToLive));
+                }
+                return new DNSResult(rrset, ttl);
+            }
+            if (followedCNAME) {
+                continue; // Query for the new domain
+            }
 
             // No direct answer found - look for NS referrals in authority section
             List<String> nameserverHostnames = new ArrayList<>();
+            DNSResourceRecord soa = null;
             for (DNSResourceRecord authorityRecord : parsedResponse.authorityRecords) {
                 if (authorityRecord.recordType == 2) { // NS record
                     nameserverHostnames.add(authorityRecord.getRecordDataAsString());
+                } else if (authorityRecord.recordType == 6) { // SOA record
+                    soa = authorityRecord;
                 }
             }
 
+            // NXDOMAIN, or NOERROR with nothing and no referral: NODATA (RFC 2308).
+            // A recursor doesn't refer, so from one an empty answer is NODATA.
+            if (rcode == 3 || (rcode == 0 && (nameserverHostnames.isEmpty() || forwarder != null))) {
+                return DNSResult.negative(rcode, targetDomain, soa, chainTtl);
+            }
+
             // Extract glue records from additional section
             // Glue records provide IP addresses for NS servers, avoiding extra queries
             Map<String, InetAddress> glueRecords = new HashMap<>();
@@ -158,6 +209,9 @@ public class Resolver implements ResolverInterface {
                         try {
                             // Recursively resolve the NS name (this is allowed!)
                             nsIPAddress = iterativeResolveAddress(nsHostname);
+                            if (nsIPAddress == null) {
+                                continue; // The NS name doesn't resolve
+                            }
                             nameserverCache.put(nsHostname, nsIPAddress);
                         } catch (Exception e) {
                             // This NS failed, try the next one
@@ -182,6 +236,9 @@ public class Resolver implements ResolverInterface {
                         try {
                             // Resolve each NS name and try it
                             InetAddress resolvedNS = iterativeResolveAddress(nsHostname);
+                            if (resolvedNS == null) {
+                                continue;
+                            }
                             nameserverCache.put(nsHostname, resolvedNS);
                             currentNameserver = resolvedNS;
                             foundNextServer = true;
@@ -203,6 +260,9 @@ public class Resolver implements ResolverInterface {
      * This handles network timeouts and temporary failures
      */
     private byte[] executeDNSQuery(byte[] queryPacket, InetAddress targetServer) throws IOException {
+        if (forwarder != null) {
+            return forwarder.exchange(queryPacket); // Fails over and retries by itself
+        }
         int maxRetries = 3; // Try up to 3 times
         IOException lastException = null;
 
@@ -226,209 +286,4 @@ public class Resolver implements ResolverInterface {
         }
         throw lastException; // All attempts failed
     }
-}
-
-/**
- * DNSPacketParser - Helper class for parsing DNS packets
- * 
- * This class handles the complex task of parsing DNS response packets.
- * DNS packets have a specific structure with multiple sections that need
- * to be parsed carefully.
- * 
- * I learned about DNS packet structure from RFC 1035 and various DNS
- * documentation. The parsing was tricky to get right, especially
- * handling name compression and different record types.
- */
-class DNSPacketParser {
-    public List<DNSResourceRecord> answerRecords = new ArrayList<>();
-    public List<DNSResourceRecord> authorityRecords = new ArrayList<>();
-    public List<DNSResourceRecord> additionalRecords = new ArrayList<>();
-
-    /**
-     * Parses a complete DNS packet into its component parts
-     * This extracts all the records from the different sections
-     */
-    public static DNSPacketParser parseDNSPacket(byte[] packetData) throws IOException {
-        DNSPacketParser parser = new DNSPacketParser();
-        
-        // Extract counts from DNS header
-        int questionCount = ((packetData[4] & 0xff) << 8) | (packetData[5] & 0xff);
-        int answerCount = ((packetData[6] & 0xff) << 8) | (packetData[7] & 0xff);
-        int authorityCount = ((packetData[8] & 0xff) << 8) | (packetData[9] & 0xff);
-        int additionalCount = ((packetData[10] & 0xff) << 8) | (packetData[11] & 0xff);
-
-        int currentOffset = 12; // Start after DNS header
-        
-        // Skip question section (we don't need to parse it)
-        for (int i = 0; i < questionCount; i++) {
-            currentOffset = skipDomainName(packetData, currentOffset);
-            currentOffset += 4; // Skip QTYPE and QCLASS
-        }
-
-        // Parse answer records
-        for (int i = 0; i < answerCount; i++) {
-            DNSResourceRecord record = DNSResourceRecord.parseRecord(packetData, currentOffset);
-            parser.answerRecords.add(record);
-            currentOffset = record.endPosition;
-        }
-        
-        // Parse authority records (NS records for referrals)
-        for (int i = 0; i < authorityCount; i++) {
-            DNSResourceRecord record = DNSResourceRecord.parseRecord(packetData, currentOffset);
-            parser.authorityRecords.add(record);
-            currentOffset = record.endPosition;
-        }
-        
-        // Parse additional records (glue records)
-        for (int i = 0; i < additionalCount; i++) {
-            DNSResourceRecord record = DNSResourceRecord.parseRecord(packetData, currentOffset);
-            parser.additionalRecords.add(record);
-            currentOffset = record.endPosition;
-        }
-        return parser;
-    }
-
-    /**
-     * Creates a DNS query packet
-     * This builds a simple DNS query without EDNS0 for compatibility
-     */
-    public static byte[] createQueryPacket(String domain, int type) throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dataStream = new DataOutputStream(outputStream);
-        
-        // DNS Header
-        dataStream.writeShort(0x1234); // Transaction ID
-        dataStream.writeShort(0x0000); // Flags: Standard Query
-
-        dataStream.writeShort(1); // QDCOUNT: 1 question
-        dataStream.writeShort(0); // ANCOUNT: 0 answers
-        dataStream.writeShort(0); // NSCOUNT: 0 authority records
-        dataStream.writeShort(0); // ARCOUNT: 0 additional records
-
-        // Question section: domain name
-        for (String label : domain.split("\\.")) {
-            byte[] labelBytes = label.getBytes();
-            dataStream.writeByte(labelBytes.length);
-            dataStream.write(labelBytes);
-        }
-        dataStream.writeByte(0); // End of domain name
-        dataStream.writeShort(type); // Query type
-        dataStream.writeShort(1); // Class IN
-        return outputStream.toByteArray();
-    }
-
-    /**
-     * Skips over a domain name in DNS packet format
-     * Handles both regular labels and compression pointers
-     */
-    public static int skipDomainName(byte[] data, int offset) {
-        while (true) {
-            int length = data[offset] & 0xff;
-            if (length == 0) return offset + 1; // End of name
-            if ((length & 0xC0) == 0xC0) return offset + 2; // Compression pointer
-            offset += 1 + length; // Regular label: length + label bytes
-        }
-    }
-
-    /**
-     * Reads a domain name from DNS packet format
-     * Handles DNS name compression (pointers to earlier names)
-     * This was one of the trickiest parts to implement correctly!
-     */
-    public static String readDomainName(byte[] data, int[] offsetRef) {
-        int currentOffset = offsetRef[0];
-        StringBuilder nameBuilder = new StringBuilder();
-        while (true) {
-            int length = data[currentOffset++] & 0xff;
-            if (length == 0) break; // End of name
-            if ((length & 0xC0) == 0xC0) {
-                // DNS compression: pointer to earlier name
-                int pointer = ((length & 0x3F) << 8) | (data[currentOffset++] & 0xff);
-                offsetRef[0] = currentOffset;
-                return nameBuilder.append(readDomainName(data, new int[]{pointer})).toString();
-            }
-            if (nameBuilder.length() > 0) nameBuilder.append(".");
-            nameBuilder.append(new String(data, currentOffset, length));
-            currentOffset += length;
-        }
-        offsetRef[0] = currentOffset;
-        return nameBuilder.toString();
-    }
-}
-
-/**
- * DNSResourceRecord - Represents a single DNS resource record
- * 
- * This class holds all the information from a DNS record including
- * the domain name, record type, TTL, and the actual data.
- * 
- * Different record types store data in different formats:
- * - A records: 4-byte IPv4 addresses
- * - CNAME/NS/MX: Domain names (with compression)
- * - TXT: Length-prefixed text strings
- */
-class DNSResourceRecord {
-    public String domainName;
-    public int recordType, recordClass, timeToLive, dataLength;
-    public byte[] recordData;
-    public int endPosition;
-    public byte[] completePacket;
-    public int dataStartPosition;
-
-    /**
-     * Parses a single DNS resource record from packet data
-     * This extracts all the fields from a DNS record
-     */
-    public static DNSResourceRecord parseRecord(byte[] packetData, int startOffset) throws IOException {
-        int[] offsetRef = {startOffset};
-        String domainName = DNSPacketParser.readDomainName(packetData, offsetRef);
-        startOffset = offsetRef[0];
-        
-        // Extract record header fields
-        int recordType = ((packetData[startOffset] & 0xff) << 8) | (packetData[startOffset + 1] & 0xff);
-        int recordClass = ((packetData[startOffset + 2] & 0xff) << 8) | (packetData[startOffset + 3] & 0xff);
-        int timeToLive = ((packetData[startOffset + 4] & 0xff) << 24) | ((packetData[startOffset + 5] & 0xff) << 16) |
-                ((packetData[startOffset + 6] & 0xff) << 8) | (packetData[startOffset + 7] & 0xff);
-        int dataLength = ((packetData[startOffset + 8] & 0xff) << 8) | (packetData[startOffset + 9] & 0xff);
-        byte[] recordData = Arrays.copyOfRange(packetData, startOffset + 10, startOffset + 10 + dataLength);
-        
-        // Create and populate the record object
-        DNSResourceRecord record = new DNSResourceRecord();
-        record.domainName = domainName;
-        record.recordType = recordType;
-        record.recordClass = recordClass;
-        record.timeToLive = timeToLive;
-        record.dataLength = dataLength;
-        record.recordData = recordData;
-        record.endPosition = startOffset + 10 + dataLength;
-        record.completePacket = packetData;
-        record.dataStartPosition = startOffset + 10;
-
-        return record;
-    }
-
-    /**
-     * Extracts the record data as a string based on record type
-     * This handles the different data formats for different record types
-     */
-    public String getRecordDataAsString() throws IOException {
-        if (recordType == 1 && recordData.length == 4) {
-            // A record: 4-byte IPv4 address
-            return InetAddress.getByAddress(recordData).getHostAddress();
-        } else if (recordType == 2 || recordType == 5) {
-            // NS records (type 2) and CNAME records (type 5): domain name (with compression)
-            return DNSPacketParser.readDomainName(completePacket, new int[]{dataStartPosition});
-        } else if (recordType == 15) {
-            // MX records (type 15): 2-byte priority + domain name (with compression)
-            int priority = ((recordData[0] & 0xFF) << 8) | (recordData[1] & 0xFF);
-            String domainName = DNSPacketParser.readDomainName(completePacket, new int[]{dataStartPosition + 2});
-            return priority + " " + domainName;
-        } else if (recordType == 16) {
-            // TXT record: length-prefixed text
-            int textLength = recordData[0] & 0xff;
-            return new String(recordData, 1, textLength);
-        } else {
-            return "Unsupported record type";
-        }
-    }
 }
\ No newline at end of file
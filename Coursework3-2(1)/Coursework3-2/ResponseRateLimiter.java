@@ -0,0 +1,98 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ResponseRateLimiter - Response Rate Limiting (RRL) for UDP answers
+ *
+ * Instead of counting queries per source, RRL counts identical responses
+ * going to a network: one token bucket per (client /24 or /56, QNAME,
+ * RCODE). A reflection attack sends the same question over and over with
+ * the victim's address, so its bucket runs dry and the answers stop. A
+ * busy resolver behind NAT asks for many different names, each with its
+ * own bucket, and is barely touched.
+ *
+ * A limited response is dropped, except that one in slip of them goes
+ * out truncated (TC set, no records) instead. Truncated answers are too
+ * small to be worth reflecting, and a real client that gets one retries
+ * over TCP, which can't be spoofed. slip 0 drops everything, 1 truncates
+ * everything.
+ *
+ * The buckets are a ClientRateLimiter table keyed by a 64-bit hash of the
+ * three, so checking a response that is within its limit takes no lock
+ * and allocates nothing.
+ */
+class ResponseRateLimiter {
+
+    static final int SEND = 0;
+    static final int DROP = 1;
+    static final int SLIP = 2;
+
+    private final ClientRateLimiter buckets;
+    private final int slip;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder slipped = new LongAdder();
+
+    /**
+     * @param rps     identical responses a second allowed to one network
+     * @param slip    one in this many limited responses is sent truncated
+     * @param buckets buckets to track
+     */
+    ResponseRateLimiter(int rps, int slip, int buckets) {
+        this.buckets = new ClientRateLimiter(rps, rps, buckets);
+        this.slip = slip;
+    }
+
+    /**
+     * What to do with a response carrying rcode to the question in the
+     * first length bytes of req, sent by client: SEND, DROP or SLIP.
+     */
+    int check(InetAddress client, byte[] req, int length, int rcode) {
+        if (buckets.tryAcquire(key(client, req, length, rcode))) {
+            return SEND;
+        }
+        if (slip > 0 && ThreadLocalRandom.current().nextInt(slip) == 0) {
+            slipped.increment();
+            return SLIP;
+        }
+        dropped.increment();
+        return DROP;
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    long getSlipped() {
+        return slipped.sum();
+    }
+
+    static long key(InetAddress client, byte[] req, int length, int rcode) {
+        long h;
+        if (client instanceof Inet4Address) {
+            // hashCode() is the address, without the copy getAddress() makes
+            h = 4L << 32 | (client.hashCode() & 0xFFFFFF00L);
+        } else {
+            byte[] address = client.getAddress();
+            h = 6;
+            for (int i = 0; i < 7; i++) {
+                h = h << 8 | (address[i] & 0xFF);
+            }
+        }
+        h = h * 31 + rcode;
+
+        // QNAME, ignoring case, up to the end of the name or the packet
+        for (int pos = 12; pos < length && req[pos] != 0 && (req[pos] & 0xC0) == 0; ) {
+            int end = Math.min(length, pos + 1 + (req[pos] & 0xFF));
+            for (; pos < end; pos++) {
+                byte b = req[pos];
+                h = h * 31 + (b >= 'A' && b <= 'Z' ? b + 32 : b);
+            }
+        }
+
+        h *= 0x9E3779B97F4A7C15L;
+        h ^= h >>> 29;
+        return h != 0 ? h : 1;
+    }
+}
@@ -384,7 +384,8 @@ public class StubResolver implements StubResolverInterface {
 
     /**
      * getAnswers method for the temporary tests
-     * Returns a list of ResourceRecord objects for the specified domain and record type
+     * Returns a ResourceRecord for every record of the specified type in the
+     * answer section, so a name with several A or MX records gets them all
      */
     public List<ResourceRecord> getAnswers(String domainName, RecordType recordType) throws Exception {
         List<ResourceRecord> records = new ArrayList<>();
@@ -392,14 +393,43 @@ public class StubResolver implements StubResolverInterface {
         // Remove trailing dot if present for consistency
         String cleanDomain = domainName.endsWith(".") ? domainName.substring(0, domainName.length() - 1) : domainName;
         
-        // Use the existing recursiveResolveName method to get the result
-        String result = recursiveResolveName(cleanDomain + ".", recordType.getValue());
-        
-        if (result != null) {
-            // Create a ResourceRecord with the result
-            records.add(new ResourceRecord(cleanDomain + ".", recordType, result));
+        byte[] responseData = performDNSQuery(cleanDomain + ".", recordType.getValue());
+        int answerCount = extractAnswerCount(responseData);
+        int currentPosition = findAnswerSectionStart(responseData);
+
+        for (int recordIndex = 0; recordIndex < answerCount; recordIndex++) {
+            currentPosition = advancePastName(responseData, currentPosition);
+            int type = extractRecordType(responseData, currentPosition);
+            currentPosition += 8; // Skip type + class + TTL
+            int dataLength = extractDataLength(responseData, currentPosition);
+            currentPosition += 2;
+
+            if (type == recordType.getValue()) {
+                records.add(new ResourceRecord(cleanDomain + ".", recordType,
+                        recordDataAsString(responseData, type, currentPosition, dataLength)));
+            }
+            currentPosition += dataLength;
         }
         
         return records;
     }
-}
\ No newline at end of file
+
+    // The RDATA of one record in the same form the recursiveResolve methods return
+    private String recordDataAsString(byte[] responseData, int type, int position, int dataLength) throws Exception {
+        switch (type) {
+            case RECORD_TYPE_A:
+                return InetAddress.getByAddress(Arrays.copyOfRange(responseData, position, position + dataLength)).getHostAddress();
+            case RECORD_TYPE_MX:
+                int priority = ((responseData[position] & 0xFF) << 8) | (responseData[position + 1] & 0xFF);
+                return priority + " " + extractDomainName(responseData, position + 2);
+            case RECORD_TYPE_TXT:
+                StringBuilder text = new StringBuilder();
+                for (int p = position; p < position + dataLength; p += 1 + (responseData[p] & 0xFF)) {
+                    text.append(new String(responseData, p + 1, responseData[p] & 0xFF, "UTF-8")).append(" ");
+                }
+                return text.toString().trim();
+            default:
+                return extractDomainName(responseData, position);
+        }
+    }
+}
\ No newline at end of file
@@ -125,7 +125,7 @@ public class StubResolverVM implements StubResolverInterface {
                 byte[] queryPacket = constructQueryPacket(domainName, queryType);
                 DatagramPacket outgoingPacket = new DatagramPacket(queryPacket, queryPacket.length, dnsServer, serverPort);
                 
-                System.out.println("VM: Attempt " + (attempt + 1) + " - Sending query to " + dnsServer.getHostAddress());
+                AsyncLog.debug("VM: Attempt {} - Sending query to {}", attempt + 1, dnsServer);
                 networkSocket.send(outgoingPacket);
 
                 byte[] responseBuffer = new byte[VM_BUFFER_SIZE];
@@ -133,18 +133,21 @@ public class StubResolverVM implements StubResolverInterface {
                 networkSocket.receive(incomingPacket);
                 networkSocket.close();
 
-                System.out.println("VM: Query successful, received " + incomingPacket.getLength() + " bytes");
+                // Guarded, the length would be boxed even with debug off
+                if (AsyncLog.isEnabled(AsyncLog.Level.DEBUG)) {
+                    AsyncLog.debug("VM: Query successful, received {} bytes", incomingPacket.getLength());
+                }
                 return Arrays.copyOf(incomingPacket.getData(), incomingPacket.getLength());
                 
             } catch (SocketTimeoutException e) {
                 lastException = e;
-                System.out.println("VM: Timeout on attempt " + (attempt + 1) + " - " + e.getMessage());
+                AsyncLog.info("VM: Timeout on attempt {} - {}", attempt + 1, e.getMessage());
             } catch (IOException e) {
                 lastException = e;
-                System.out.println("VM: Network error on attempt " + (attempt + 1) + " - " + e.getMessage());
+                AsyncLog.info("VM: Network error on attempt {} - {}", attempt + 1, e.getMessage());
             } catch (Exception e) {
                 lastException = e;
-                System.out.println("VM: Unexpected error on attempt " + (attempt + 1) + " - " + e.getMessage());
+                AsyncLog.info("VM: Unexpected error on attempt {} - {}", attempt + 1, e.getMessage());
             }
             
             // Wait before retry (exponential backoff)
@@ -0,0 +1,124 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks AsyncLog
+ * - Messages below the level never reach the sink, the rest arrive in
+ *   order with their {} filled in
+ * - A burst from several threads that fits in the ring loses nothing
+ * - Threads logging flat out lose nothing they aren't told about: every
+ *   message is either written or counted as dropped
+ * - A disabled log call allocates nothing
+ * - Logging costs the caller less than println to a synchronized stream
+ */
+public class TestAsyncLog {
+
+    private static final int ITERATIONS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = true;
+
+        List<String> lines = new CopyOnWriteArrayList<>();
+        AsyncLog.setSink((level, line) -> lines.add(level + " " + line));
+        AsyncLog.setLevel(AsyncLog.Level.INFO);
+        AsyncLog.debug("hidden {}", "debug");
+        AsyncLog.info("Resolving {} type {}", "www.example.com", 1);
+        AsyncLog.warn("Failed to send response: {}", "refused");
+        AsyncLog.info("no placeholders");
+        AsyncLog.info("too few {} {}", "args");
+        AsyncLog.flush();
+        System.out.println(lines);
+        ok &= check("level filtered and formatted", lines.equals(List.of(
+                "INFO Resolving www.example.com type 1",
+                "WARN Failed to send response: refused",
+                "INFO no placeholders",
+                "INFO too few args {}")));
+
+        AtomicInteger written = new AtomicInteger();
+        AsyncLog.setSink((level, line) -> written.incrementAndGet());
+        long dropped = flood(4, 10_000);
+        System.out.println("40000 message burst from 4 threads: " + written.get() + " written, " + dropped
+                + " dropped");
+        ok &= check("a burst that fits the ring loses nothing", written.get() == 40_000 && dropped == 0);
+
+        written.set(0);
+        dropped = flood(4, 250_000);
+        System.out.println("1000000 messages flat out from 4 threads: " + written.get() + " written, " + dropped
+                + " dropped");
+        ok &= check("every message written or counted", written.get() + dropped == 1_000_000);
+        ok &= check("flat out, at least a full ring is written", written.get() >= 65536);
+
+        ok &= check("disabled call allocates nothing", measure());
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(0);
+    }
+
+    // Messages from threads logging as fast as they can; returns how many
+    // were dropped
+    private static long flood(int threadCount, int perThread) throws InterruptedException {
+        long droppedBefore = AsyncLog.getDropped();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threads.length; t++) {
+            Integer id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    AsyncLog.info("thread {} message {}", id, "x");
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        AsyncLog.flush();
+        return AsyncLog.getDropped() - droppedBefore;
+    }
+
+    private static boolean measure() {
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        String name = "www.example.com";
+
+        AsyncLog.setLevel(AsyncLog.Level.INFO);
+        for (int i = 0; i < ITERATIONS; i++) {
+            AsyncLog.debug("Resolving {} for {}", name, name);
+        }
+        long before = mx.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            AsyncLog.debug("Resolving {} for {}", name, name);
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = mx.getThreadAllocatedBytes(thread) - before;
+        System.out.printf("disabled:        %.1f bytes/call %.1f ns/call%n",
+                bytes / (double) ITERATIONS, nanos / (double) ITERATIONS);
+
+        // Enabled, against what the server used to do per query
+        AsyncLog.setSink((level, line) -> { });
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            AsyncLog.info("Resolving {} for {}", name, name);
+        }
+        long asyncNanos = System.nanoTime() - start;
+        PrintStream out = new PrintStream(OutputStream.nullOutputStream(), true);
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            out.println("Resolving " + name + " for " + name);
+        }
+        long printNanos = System.nanoTime() - start;
+        System.out.printf("enabled:         %.1f ns/call (println to a null stream: %.1f ns/call)%n",
+                asyncNanos / (double) ITERATIONS, printNanos / (double) ITERATIONS);
+        AsyncLog.flush();
+        return bytes == 0;
+    }
+
+    private static boolean check(String what, boolean passed) {
+        System.out.println((passed ? "ok   " : "FAIL ") + what);
+        return passed;
+    }
+}
@@ -0,0 +1,104 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures how much memory a NameServer cache hit allocates
+ * "before" rebuilds the response with buildResponse, which is what every
+ * hit used to do. "after" copies the cached response template into a
+ * reused buffer and patches the ID, question and TTL in place.
+ *
+ * The lookup is measured the same way: "before" parses the question into
+ * a String and builds a lower-cased "name|type" key, "after" points a
+ * probe CacheKey at the packet bytes.
+ *
+ * Uses the HotSpot per-thread allocation counter, so run it on a HotSpot JVM.
+ */
+public class TestCacheHitAllocation {
+
+    private static final int ITERATIONS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        byte[] req = DNSPacketParser.createQueryPacket("www.example.com", 1);
+        NameServer.DNSQuery query = new NameServer.DNSQuery("www.example.com.", 1, 1);
+        NameServer.CachedRecord record = new NameServer.CachedRecord(
+                NameServer.CachedRecord.rrset(new byte[]{10, 0, 0, 1}), 300, 1, 0);
+        record.setResponseTemplate(NameServer.buildResponse(req, query, record));
+        ByteBuffer out = ByteBuffer.allocateDirect(512);
+
+        // Warm up both paths so the JIT has settled before measuring
+        for (int i = 0; i < ITERATIONS; i++) {
+            NameServer.buildResponse(req, query, record);
+            out.clear();
+            record.writeResponse(req, out);
+        }
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            NameServer.buildResponse(req, query, record);
+        }
+        long rebuildNanos = System.nanoTime() - start;
+        long rebuildBytes = threads.getThreadAllocatedBytes(thread) - before;
+
+        before = threads.getThreadAllocatedBytes(thread);
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            out.clear();
+            record.writeResponse(req, out);
+        }
+        long templateNanos = System.nanoTime() - start;
+        long templateBytes = threads.getThreadAllocatedBytes(thread) - before;
+
+        System.out.printf("before (buildResponse):  %6.1f bytes/hit %6.1f ns/hit%n",
+                rebuildBytes / (double) ITERATIONS, rebuildNanos / (double) ITERATIONS);
+        System.out.printf("after  (template copy):  %6.1f bytes/hit %6.1f ns/hit%n",
+                templateBytes / (double) ITERATIONS, templateNanos / (double) ITERATIONS);
+
+        measureLookup(threads, thread, record);
+    }
+
+    private static void measureLookup(com.sun.management.ThreadMXBean threads, long thread,
+                                      NameServer.CachedRecord record) throws Exception {
+        // Mixed case on the wire, as 0x20 randomisation would send it
+        byte[] req = DNSPacketParser.createQueryPacket("wWw.ExAmple.CoM", 1);
+        TinyLfuCache<String, NameServer.CachedRecord> stringCache = TinyLfuCache.ofEntries(1000);
+        TinyLfuCache<CacheKey, NameServer.CachedRecord> keyCache = TinyLfuCache.ofEntries(1000);
+        stringCache.put("www.example.com.|1", record);
+        keyCache.put(CacheKey.of("www.example.com.", 1), record);
+        CacheKey probe = CacheKey.probe();
+
+        long found = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            NameServer.DNSQuery query = NameServer.parseQuery(req, req.length);
+            found += stringCache.get(query.qname.toLowerCase() + "|" + query.qtype) != null ? 1 : 0;
+            found += probe.wrap(req, req.length) && keyCache.get(probe) != null ? 1 : 0;
+        }
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            NameServer.DNSQuery query = NameServer.parseQuery(req, req.length);
+            found += stringCache.get(query.qname.toLowerCase() + "|" + query.qtype) != null ? 1 : 0;
+        }
+        long stringNanos = System.nanoTime() - start;
+        long stringBytes = threads.getThreadAllocatedBytes(thread) - before;
+
+        before = threads.getThreadAllocatedBytes(thread);
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            found += probe.wrap(req, req.length) && keyCache.get(probe) != null ? 1 : 0;
+        }
+        long probeNanos = System.nanoTime() - start;
+        long probeBytes = threads.getThreadAllocatedBytes(thread) - before;
+
+        System.out.printf("before (String key):     %6.1f bytes/lookup %6.1f ns/lookup%n",
+                stringBytes / (double) ITERATIONS, stringNanos / (double) ITERATIONS);
+        System.out.printf("after  (probe CacheKey): %6.1f bytes/lookup %6.1f ns/lookup%n",
+                probeBytes / (double) ITERATIONS, probeNanos / (double) ITERATIONS);
+        System.out.println(found == 4L * ITERATIONS ? "All lookups hit" : "Some lookups missed: " + found);
+    }
+}
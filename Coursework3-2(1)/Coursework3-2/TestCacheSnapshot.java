@@ -0,0 +1,221 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks warm restarts from a cache snapshot
+ * Fills a cache with a large number of answers plus one that has already
+ * expired, writes the snapshot, then starts a new NameServer on it whose
+ * upstream doesn't answer. That server should start answering
+ * snapshotted names within a second, with the TTL they had left, while
+ * the rest of the snapshot loads. Nothing expired should come back, and
+ * a negative answer keeps its SOA. With several REUSEPORT listeners,
+ * every listener and the TCP listener answer the whole snapshot.
+ *
+ * Usage: java TestCacheSnapshot [entries]
+ */
+public class TestCacheSnapshot {
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        File file = File.createTempFile("nameserver", ".snapshot");
+        file.deleteOnExit();
+
+        NameServer.CacheShard shard = new NameServer.CacheShard(NameServer.CacheBackend.HEAP, entries * 2L, 0);
+        for (int i = 0; i < entries; i++) {
+            shard.cache.put(key(i), record(name(i), 300));
+        }
+        shard.negativeCache.put(CacheKey.of("gone.example.com.", 1), new NameServer.CachedRecord(null,
+                System.currentTimeMillis() - 1000, 30, -1, 3));
+
+        long start = System.currentTimeMillis();
+        int written = CacheSnapshot.write(file.toPath(), List.of(shard));
+        System.out.println("Wrote " + written + " entries (" + file.length() / (1024 * 1024) + " MB) in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        // A negative answer keeps its SOA for the authority section
+        File small = File.createTempFile("nameserver", ".snapshot");
+        small.deleteOnExit();
+        NameServer.CacheShard one = new NameServer.CacheShard(NameServer.CacheBackend.HEAP, 10, 0);
+        NameServer.CachedRecord nx = NameServer.CachedRecord.negative(60, 3);
+        nx.authority = new byte[]{0, 0, 6, 0, 1, 0, 0, 0, 60, 0, 2, 1, 0};
+        one.negativeCache.put(CacheKey.of("missing.example.com.", 1), nx);
+        CacheSnapshot.write(small.toPath(), List.of(one));
+        byte[][] authority = new byte[1][];
+        CacheSnapshot.load(small.toPath(), (key, record, negative) -> authority[0] = record.authority);
+        boolean soaKept = Arrays.equals(authority[0], nx.authority);
+        System.out.println((soaKept ? "ok   " : "FAIL ") + "negative answer's SOA kept");
+
+        // A restarted server whose upstream never answers
+        DatagramSocket deadUpstream = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        NameServer ns = new NameServer();
+        ns.setNameServer(InetAddress.getLoopbackAddress(), deadUpstream.getLocalPort());
+        ns.setIoMode(NameServer.IoMode.SELECTOR);
+        ns.setRateLimiting(false);
+        ns.setCacheMaxEntries(entries * 2L);
+        ns.setSnapshotFile(file.getPath());
+        ns.setSnapshotInterval(3600);
+
+        int port = 18010;
+        start = System.currentTimeMillis();
+        Thread t = new Thread(() -> {
+            try {
+                ns.handleIncomingQueries(port);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+
+        // Ask for names spread over the snapshot until one is answered.
+        // Names that haven't loaded yet go to the dead upstream and time out.
+        DatagramSocket client = new DatagramSocket();
+        client.setSoTimeout(5);
+        DNSPacketParser answer = null;
+        int asked = 0;
+        for (int n = 0; answer == null && System.currentTimeMillis() - start < 10_000; n = (n + 7919) % entries) {
+            asked = n;
+            byte[] query = DNSPacketParser.createQueryPacket(name(n), 1);
+            client.send(new DatagramPacket(query, query.length, InetAddress.getLoopbackAddress(), port));
+            byte[] buf = new byte[512];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            try {
+                client.receive(packet);
+                DNSPacketParser parsed = DNSPacketParser.parseDNSPacket(buf);
+                if (!parsed.answerRecords.isEmpty()) {
+                    answer = parsed;
+                }
+            } catch (java.net.SocketTimeoutException e) {
+                // Not loaded yet
+            }
+        }
+        long firstHit = System.currentTimeMillis() - start;
+
+        boolean ok = soaKept && answer != null && answer.answerRecords.size() == 1
+                && answer.answerRecords.get(0).timeToLive > 290
+                && answer.answerRecords.get(0).getRecordDataAsString().equals(address(asked));
+        System.out.println("First hit " + firstHit + " ms after start"
+                + (answer != null ? ", ttl=" + answer.answerRecords.get(0).timeToLive : ", no answer"));
+
+        while (ns.answerCacheStats().entries < entries && System.currentTimeMillis() - start < 30_000) {
+            Thread.sleep(50);
+        }
+        System.out.println("Snapshot fully loaded " + (System.currentTimeMillis() - start) + " ms after start");
+
+        NameServer.CacheStats stats = ns.answerCacheStats();
+        NameServer.CacheStats negative = ns.negativeCacheStats();
+        System.out.println("Answer cache: " + stats);
+        System.out.println("Negative cache: " + negative);
+        ok &= stats.entries == entries && negative.entries == 0;
+        ok &= reusePort();
+
+        System.out.println(ok && firstHit < 1000 ? "PASS" : "FAIL");
+        System.exit(0);
+    }
+
+    // With several REUSEPORT listeners each answers from its own shard, and
+    // the kernel picks the listener by client address, so every listener
+    // (and TCP) has to have the whole snapshot
+    private static boolean reusePort() throws Exception {
+        int entries = 1000;
+        int listeners = 4;
+        File file = File.createTempFile("nameserver", ".snapshot");
+        file.deleteOnExit();
+        NameServer.CacheShard shard = new NameServer.CacheShard(NameServer.CacheBackend.HEAP, entries * 2L, 0);
+        for (int i = 0; i < entries; i++) {
+            shard.cache.put(key(i), record(name(i), 300));
+        }
+        CacheSnapshot.write(file.toPath(), List.of(shard));
+
+        DatagramSocket deadUpstream = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        NameServer ns = new NameServer();
+        ns.setNameServer(InetAddress.getLoopbackAddress(), deadUpstream.getLocalPort());
+        ns.setIoMode(NameServer.IoMode.REUSEPORT);
+        ns.setListeners(listeners);
+        ns.setRateLimiting(false);
+        ns.setCacheMaxEntries(entries * 2L * listeners);
+        ns.setSnapshotFile(file.getPath());
+        ns.setSnapshotInterval(3600);
+        int port = 18011;
+        Thread t = new Thread(() -> {
+            try {
+                ns.handleIncomingQueries(port);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        long start = System.currentTimeMillis();
+        while (ns.answerCacheStats().entries < entries * listeners && System.currentTimeMillis() - start < 10_000) {
+            Thread.sleep(20);
+        }
+
+        // Many client ports, so the kernel spreads them over the listeners
+        DatagramSocket[] clients = new DatagramSocket[16];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new DatagramSocket();
+            clients[i].setSoTimeout(200);
+        }
+        int answered = 0;
+        for (int i = 0; i < entries; i++) {
+            DatagramSocket client = clients[i % clients.length];
+            byte[] query = DNSPacketParser.createQueryPacket(name(i), 1);
+            client.send(new DatagramPacket(query, query.length, InetAddress.getLoopbackAddress(), port));
+            byte[] buf = new byte[512];
+            try {
+                client.receive(new DatagramPacket(buf, buf.length));
+                answered += buf[7] == 1 ? 1 : 0;
+            } catch (java.net.SocketTimeoutException e) {
+                // Went to the dead upstream
+            }
+        }
+
+        boolean tcpAnswered;
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            s.setSoTimeout(1000);
+            byte[] query = DNSPacketParser.createQueryPacket(name(entries - 1), 1);
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            out.writeShort(query.length);
+            out.write(query);
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            byte[] response = new byte[in.readUnsignedShort()];
+            in.readFully(response);
+            tcpAnswered = response[7] == 1;
+        }
+        System.out.println(listeners + " reuseport listeners: " + answered + "/" + entries
+                + " answered from the snapshot, TCP " + (tcpAnswered ? "answered" : "missed"));
+        return answered == entries && tcpAnswered;
+    }
+
+    private static String name(int i) {
+        return "host" + i + ".example.com";
+    }
+
+    private static CacheKey key(int i) {
+        return CacheKey.of(name(i) + ".", 1);
+    }
+
+    private static String address(int i) {
+        return "10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF);
+    }
+
+    private static NameServer.CachedRecord record(String name, int ttl) throws Exception {
+        String[] octets = address(Integer.parseInt(name.substring(4, name.indexOf('.')))).split("\\.");
+        byte[] data = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            data[i] = (byte) Integer.parseInt(octets[i]);
+        }
+        NameServer.CachedRecord record = new NameServer.CachedRecord(NameServer.CachedRecord.rrset(data), ttl, 1, 0);
+        record.setResponseTemplate(NameServer.buildResponse(DNSPacketParser.createQueryPacket(name, 1),
+                new NameServer.DNSQuery(name + ".", 1, 1), record));
+        return record;
+    }
+}
@@ -0,0 +1,133 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks cache warming at startup
+ * - The list is read with comments, QTYPE names and numbers, and bad
+ *   lines are skipped
+ * - No more than the allowed number of names are resolved at once, and
+ *   they are all resolved before the listener answers anyone
+ * - Afterwards the names are cache hits, and the run is in the metrics
+ */
+public class TestCacheWarming {
+
+    private static final int PORT = 18110;
+    private static final int NAMES = 40;
+    private static final int PARALLELISM = 4;
+    private static final long UPSTREAM_DELAY_MS = 30;
+
+    private static final AtomicInteger upstreamQueries = new AtomicInteger();
+    private static final AtomicInteger pending = new AtomicInteger();
+    private static final AtomicInteger maxPending = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = true;
+        Path list = Files.createTempFile("warm", ".txt");
+        StringBuilder text = new StringBuilder("# top names\n\n");
+        for (int i = 0; i < NAMES; i++) {
+            text.append("host").append(i).append(".warm.test ").append(i % 2 == 0 ? "A" : "1").append('\n');
+        }
+        text.append("no-qtype.warm.test\n").append("bad.warm.test BOGUS # comment\n");
+        Files.writeString(list, text);
+
+        CacheWarmer read = CacheWarmer.read(list, PARALLELISM);
+        ok &= check("list read, bad lines skipped", read.size() == NAMES);
+
+        NameServer ns = TestNameServerLoad.newServer(startCountingUpstream(), NameServer.IoMode.SELECTOR);
+        ns.setCacheWarming(list.toString(), PARALLELISM, false);
+        Thread server = new Thread(() -> {
+            try {
+                ns.handleIncomingQueries(PORT);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+
+        try (DatagramSocket s = new DatagramSocket()) {
+            s.setSoTimeout(100);
+            byte[] q = DNSPacketParser.createQueryPacket("host7.warm.test", 1);
+            byte[] buf = new byte[512];
+            boolean warmBeforeAnswer = false;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline) {
+                s.send(new DatagramPacket(q, q.length, InetAddress.getLoopbackAddress(), PORT));
+                try {
+                    s.receive(new DatagramPacket(buf, buf.length));
+                    CacheWarmer warmer = ns.cacheWarmer();
+                    warmBeforeAnswer = warmer != null && warmer.isDone();
+                    break;
+                } catch (java.net.SocketTimeoutException e) {
+                    // Still warming
+                }
+            }
+            CacheWarmer warmer = ns.cacheWarmer();
+            System.out.println("warmed " + warmer.getWarmed() + " in " + warmer.getMillis() + " ms, "
+                    + maxPending.get() + " at once, " + upstreamQueries.get() + " upstream queries");
+            ok &= check("warmed before the first answer", warmBeforeAnswer && warmer.getWarmed() == NAMES);
+            ok &= check("parallel but bounded", maxPending.get() == PARALLELISM
+                    && warmer.getMillis() < NAMES * UPSTREAM_DELAY_MS / 2);
+
+            int before = upstreamQueries.get();
+            for (int i = 0; i < NAMES; i += 5) {
+                q = DNSPacketParser.createQueryPacket("host" + i + ".warm.test", 1);
+                s.setSoTimeout(1000);
+                s.send(new DatagramPacket(q, q.length, InetAddress.getLoopbackAddress(), PORT));
+                s.receive(new DatagramPacket(buf, buf.length));
+            }
+            ok &= check("warmed names are hits", upstreamQueries.get() == before
+                    && before == NAMES && buf[7] == 1);
+        }
+        ok &= check("in the metrics", ns.renderMetrics().contains("nameserver_warm_names_total " + NAMES));
+
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(0);
+    }
+
+    // Answers every query after UPSTREAM_DELAY_MS, counting how many wait at once
+    private static DatagramSocket startCountingUpstream() throws SocketException {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[512];
+            while (true) {
+                try {
+                    DatagramPacket p = new DatagramPacket(buf, buf.length);
+                    socket.receive(p);
+                    upstreamQueries.incrementAndGet();
+                    maxPending.accumulateAndGet(pending.incrementAndGet(), Math::max);
+                    byte[] resp = TestNameServerLoad.fakeAnswer(Arrays.copyOf(p.getData(), p.getLength()));
+                    InetAddress addr = p.getAddress();
+                    int port = p.getPort();
+                    Thread reply = new Thread(() -> {
+                        try {
+                            Thread.sleep(UPSTREAM_DELAY_MS);
+                            pending.decrementAndGet();
+                            socket.send(new DatagramPacket(resp, resp.length, addr, port));
+                        } catch (Exception e) {
+                            // Test is over
+                        }
+                    });
+                    reply.setDaemon(true);
+                    reply.start();
+                } catch (Exception e) {
+                    return;
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return socket;
+    }
+
+    private static boolean check(String what, boolean passed) {
+        System.out.println((passed ? "ok   " : "FAIL ") + what);
+        return passed;
+    }
+}
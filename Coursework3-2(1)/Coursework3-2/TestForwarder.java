@@ -0,0 +1,220 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks forwarding to several upstreams
+ * - A dead upstream costs one hedge delay, then loses on SRTT and is
+ *   left alone
+ * - SERVFAIL fails over to the next upstream at once, and ranks the
+ *   upstream behind the working one
+ * - So does a truncated answer, and one for another question is dropped
+ * - An upstream slower than its own p95 gets a hedged query to the next,
+ *   and the faster answer wins
+ * - With nothing answering the query fails after one timeout
+ * - Over the wire the NameServer forwards with RD set, answers from the
+ *   upstreams, and serves their stats as metrics
+ */
+public class TestForwarder {
+
+    private static final int PORT = 18100;
+    private static final long TIMEOUT_MS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = true;
+        Upstream fast = new Upstream(0, 0);
+        DatagramSocket dead = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Upstream servfail = new Upstream(0, 2);
+
+        Forwarder forwarder = new Forwarder(List.of(address(dead), fast.address()), TIMEOUT_MS);
+        long took = time(forwarder);
+        ok &= check("dead upstream costs one hedge delay", took >= TIMEOUT_MS / 4 && took < TIMEOUT_MS / 2);
+        took = 0;
+        for (int i = 0; i < 10; i++) {
+            took = Math.max(took, time(forwarder));
+        }
+        Forwarder.Upstream deadStats = forwarder.upstreams().get(0);
+        System.out.println("dead: queries=" + deadStats.getQueries() + " srtt="
+                + TimeUnit.NANOSECONDS.toMillis(deadStats.getSrttNanos()) + "ms");
+        ok &= check("then the live one is asked first", took < 50 && deadStats.getQueries() == 1);
+
+        forwarder = new Forwarder(List.of(servfail.address(), fast.address()), TIMEOUT_MS);
+        took = time(forwarder);
+        ok &= check("SERVFAIL fails over at once", took < TIMEOUT_MS / 4
+                && forwarder.upstreams().get(0).getErrors() == 1);
+        time(forwarder);
+        ok &= check("then the working one is asked first", forwarder.upstreams().get(0).getQueries() == 1);
+
+        Upstream truncated = new Upstream(0, 0);
+        truncated.flags = 0x02; // TC
+        forwarder = new Forwarder(List.of(truncated.address(), fast.address()), TIMEOUT_MS);
+        took = time(forwarder);
+        ok &= check("truncated answer fails over at once", took < TIMEOUT_MS / 4
+                && forwarder.upstreams().get(0).getErrors() == 1);
+
+        Upstream other = new Upstream(0, 0);
+        other.otherQuestion = true;
+        forwarder = new Forwarder(List.of(other.address(), fast.address()), TIMEOUT_MS);
+        byte[] answer = forwarder.exchange(DNSPacketParser.createQueryPacket("www.example.test", 1));
+        ok &= check("answer to another question is dropped",
+                answer[DNSPacketParser.skipDomainName(answer, 12) + 1] == 1);
+
+        Upstream mixedCase = new Upstream(0, 0);
+        mixedCase.mixedCase = true;
+        forwarder = new Forwarder(List.of(mixedCase.address()), TIMEOUT_MS);
+        time(forwarder);
+        ok &= check("question matches in any case", forwarder.upstreams().get(0).getErrors() == 0);
+
+        Upstream variable = new Upstream(20, 0);
+        Upstream backup = new Upstream(100, 0);
+        forwarder = new Forwarder(List.of(variable.address(), backup.address()), TIMEOUT_MS);
+        for (int i = 0; i < 30; i++) {
+            time(forwarder);
+        }
+        Forwarder.Upstream backupStats = forwarder.upstreams().get(1);
+        long hedges = backupStats.getHedges();
+        variable.delayMs = 400;
+        took = time(forwarder);
+        System.out.println("slow primary answered in " + took + " ms, backup hedges=" + backupStats.getHedges());
+        ok &= check("slow primary hedged to the backup", backupStats.getHedges() == hedges + 1 && took < 300);
+
+        forwarder = new Forwarder(List.of(address(dead), address(dead)), 300);
+        long start = System.nanoTime();
+        try {
+            forwarder.exchange(DNSPacketParser.createQueryPacket("www.example.test", 1));
+            ok &= check("nothing answering fails", false);
+        } catch (SocketTimeoutException e) {
+            took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            ok &= check("nothing answering fails after one timeout", took >= 300 && took < 450
+                    && forwarder.upstreams().get(0).getTimeouts() == 1);
+        }
+
+        ok &= overTheWire(address(dead), fast);
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(0);
+    }
+
+    private static boolean overTheWire(InetSocketAddress dead, Upstream fast) throws Exception {
+        NameServer ns = new NameServer();
+        ns.setRateLimiting(false);
+        ns.setIoMode(NameServer.IoMode.SELECTOR);
+        ns.setForwarders(TIMEOUT_MS, dead.getAddress().getHostAddress() + ":" + dead.getPort(),
+                "127.0.0.1:" + fast.address().getPort());
+        TestNameServerLoad.startServer(ns, PORT);
+        boolean ok = true;
+        int before = fast.recursionDesired.get();
+        try (DatagramSocket s = new DatagramSocket()) {
+            s.setSoTimeout(2000);
+            int answered = 0;
+            for (int i = 0; i < 5; i++) {
+                byte[] q = DNSPacketParser.createQueryPacket("host" + i + ".forward.test", 1);
+                s.send(new DatagramPacket(q, q.length, InetAddress.getLoopbackAddress(), PORT));
+                byte[] buf = new byte[512];
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                s.receive(p);
+                answered += (buf[3] & 0x0F) == 0 && buf[7] == 1 ? 1 : 0;
+            }
+            ok &= check("forwarded queries answered", answered == 5);
+        }
+        ok &= check("forwarded with RD", fast.recursionDesired.get() - before == 5);
+        String metrics = ns.renderMetrics();
+        ok &= check("upstream stats in metrics", metrics.contains(
+                "nameserver_upstream_queries_total{upstream=\"127.0.0.1:" + fast.address().getPort() + "\"} 5")
+                && metrics.contains("nameserver_upstream_srtt_seconds{upstream=\"127.0.0.1:" + dead.getPort()));
+        return ok;
+    }
+
+    private static long time(Forwarder forwarder) throws Exception {
+        long start = System.nanoTime();
+        byte[] answer = forwarder.exchange(DNSPacketParser.createQueryPacket("www.example.test", 1));
+        if ((answer[3] & 0x0F) != 0) {
+            throw new AssertionError("bad answer");
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static InetSocketAddress address(DatagramSocket socket) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+    }
+
+    // Answers every query with TestNameServerLoad.fakeAnswer after delayMs,
+    // or with rcode if it isn't 0. flags are added to the answer's, and the
+    // question can come back as another type or in mixed case.
+    private static class Upstream {
+        final DatagramSocket socket;
+        final int rcode;
+        final AtomicInteger recursionDesired = new AtomicInteger();
+        volatile long delayMs;
+        volatile int flags;
+        volatile boolean otherQuestion;
+        volatile boolean mixedCase;
+
+        Upstream(long delayMs, int rcode) throws SocketException {
+            this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            this.delayMs = delayMs;
+            this.rcode = rcode;
+            Thread t = new Thread(this::serve);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        InetSocketAddress address() {
+            return TestForwarder.address(socket);
+        }
+
+        private void serve() {
+            byte[] buf = new byte[512];
+            while (true) {
+                try {
+                    DatagramPacket p = new DatagramPacket(buf, buf.length);
+                    socket.receive(p);
+                    byte[] req = Arrays.copyOf(p.getData(), p.getLength());
+                    if ((req[2] & 0x01) != 0) {
+                        recursionDesired.incrementAndGet();
+                    }
+                    byte[] resp = TestNameServerLoad.fakeAnswer(req);
+                    resp[3] = (byte) rcode;
+                    resp[2] |= (byte) flags;
+                    int qtype = DNSPacketParser.skipDomainName(resp, 12);
+                    if (otherQuestion) {
+                        resp[qtype + 1] = 28; // AAAA
+                    }
+                    if (mixedCase) {
+                        for (int i = 13; i < qtype; i++) {
+                            if (resp[i] >= 'a' && resp[i] <= 'z' && i % 2 == 0) {
+                                resp[i] -= 'a' - 'A';
+                            }
+                        }
+                    }
+                    InetAddress addr = p.getAddress();
+                    int port = p.getPort();
+                    long delay = delayMs;
+                    Thread reply = new Thread(() -> {
+                        try {
+                            Thread.sleep(delay);
+                            socket.send(new DatagramPacket(resp, resp.length, addr, port));
+                        } catch (Exception e) {
+                            // Test is over
+                        }
+                    });
+                    reply.setDaemon(true);
+                    reply.start();
+                } catch (Exception e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean check(String what, boolean passed) {
+        System.out.println((passed ? "ok   " : "FAIL ") + what);
+        return passed;
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Checks local zone serving
+ * - The zone file subset parses: multi-line SOA, blank owners, TXT with
+ *   spaces and a ";" in quotes, and errors name the file and line
+ * - Answers are authoritative and case-insensitive, with the whole RRset,
+ *   the CNAME, NODATA (also for an empty non-terminal) or NXDOMAIN with
+ *   the SOA, and names outside the zones or other classes are left alone
+ * - A lookup and answer allocates nothing, and answer() only allocates
+ *   the copy it returns, nothing at all for names outside the zones
+ * - Over the wire the answers never touch upstream (there isn't one),
+ *   and a reload swaps in the new data, or keeps the old on a bad file
+ */
+public class TestLocalZones {
+
+    private static final int PORT = 18080;
+    private static final int ITERATIONS = 1_000_000;
+
+    private static final String ZONE = String.join("\n",
+            "$ORIGIN shop.test.",
+            "$TTL 600",
+            "@   IN SOA ns1 hostmaster (",
+            "        2024010101 ; serial",
+            "        3600 600 86400",
+            "        300 )      ; minimum",
+            "@   IN NS ns1",
+            "ns1 IN A 10.1.0.53",
+            "www 120 IN A 10.1.0.1",
+            "    IN 120 A 10.1.0.2",
+            "@   MX 10 mail",
+            "mail A 10.1.0.25",
+            "txt TXT \"hello world\" \"a;b\"",
+            "alias CNAME www",
+            "a.b A 10.1.0.99",
+            "");
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = true;
+
+        LocalZones zones = LocalZones.build(List.of(ZoneFile.parse("shop.zone", ZONE.lines().toList())));
+        ok &= check("loaded", zones.zoneCount() == 1 && zones.recordCount() == 10);
+
+        byte[] r = answer(zones, "WWW.Shop.TEST", 1);
+        ok &= check("A RRset, AA, case kept", rcode(r) == 0 && aa(r) && count(r, 6) == 2
+                && r[13] == 'W' && r[14] == 'W');
+        ok &= check("MX at the apex", count(answer(zones, "shop.test", 15), 6) == 1);
+        byte[] txt = answer(zones, "txt.shop.test", 16);
+        ok &= check("TXT strings", new String(txt).contains("hello world") && new String(txt).contains("a;b"));
+        r = answer(zones, "alias.shop.test", 1);
+        ok &= check("CNAME answered", count(r, 6) == 1 && type(r) == 5);
+        r = answer(zones, "nope.shop.test", 1);
+        ok &= check("NXDOMAIN with SOA, TTL 300", rcode(r) == 3 && aa(r) && count(r, 6) == 0 && count(r, 8) == 1
+                && type(r) == 6 && ttl(r) == 300);
+        r = answer(zones, "www.shop.test", 16);
+        ok &= check("NODATA", rcode(r) == 0 && count(r, 6) == 0 && count(r, 8) == 1);
+        r = answer(zones, "b.shop.test", 1);
+        ok &= check("empty non-terminal is NODATA", rcode(r) == 0 && count(r, 8) == 1);
+        ok &= check("other zones not local", answer(zones, "shop.example", 1) == null
+                && answer(zones, "test", 1) == null);
+        byte[] chaos = DNSPacketParser.createQueryPacket("www.shop.test", 1);
+        chaos[chaos.length - 1] = 3; // QCLASS CH
+        ok &= check("other classes not local", zones.answer(chaos, chaos.length) == null);
+
+        try {
+            ZoneFile.parse("bad.zone", List.of("$ORIGIN bad.test.", "@ SOA ns h 1 2 3 4 5", "www A 10.1"));
+            ok &= check("bad address rejected", false);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            ok &= check("error names the line", e.getMessage().startsWith("bad.zone:3:"));
+        }
+
+        ok &= check("answer allocates nothing", measure(zones));
+        ok &= check("answer() allocates only its result", measureCopy(zones));
+        ok &= overTheWire();
+
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(0);
+    }
+
+    private static boolean overTheWire() throws Exception {
+        Path file = Files.createTempFile("shop", ".zone");
+        Files.writeString(file, ZONE);
+        boolean ok = true;
+        NameServer.IoMode[] modes = {NameServer.IoMode.SELECTOR, NameServer.IoMode.BLOCKING};
+        for (int m = 0; m < modes.length; m++) {
+            NameServer ns = new NameServer();
+            // Nothing listens upstream, so only local answers can come back
+            ns.setNameServer(InetAddress.getLoopbackAddress(), 9);
+            ns.setIoMode(modes[m]);
+            ns.setRateLimiting(false);
+            ns.setLocalZones(file.toString());
+            TestNameServerLoad.startServer(ns, PORT + m);
+
+            try (DatagramSocket s = new DatagramSocket()) {
+                s.setSoTimeout(1000);
+                byte[] r = query(s, PORT + m, "www.shop.test", 1);
+                ok &= check(modes[m] + ": answered locally", r != null && aa(r) && count(r, 6) == 2);
+                r = query(s, PORT + m, "missing.shop.test", 1);
+                ok &= check(modes[m] + ": NXDOMAIN locally", r != null && rcode(r) == 3);
+
+                Files.writeString(file, ZONE.replace("10.1.0.1", "10.9.9.9"));
+                ns.reloadLocalZones();
+                r = query(s, PORT + m, "www.shop.test", 1);
+                ok &= check(modes[m] + ": reload swaps data", r != null && new String(r, "ISO-8859-1")
+                        .contains(new String(new byte[]{10, 9, 9, 9}, "ISO-8859-1")));
+
+                Files.writeString(file, "www A 10.1.0.1\n");
+                try {
+                    ns.reloadLocalZones();
+                    ok &= check(modes[m] + ": bad reload refused", false);
+                } catch (IOException e) {
+                    r = query(s, PORT + m, "www.shop.test", 1);
+                    ok &= check(modes[m] + ": bad reload keeps old zones", r != null && count(r, 6) == 2);
+                }
+                Files.writeString(file, ZONE);
+                ok &= check(modes[m] + ": counted", ns.getLocalAnswers() == 4);
+            }
+        }
+        return ok;
+    }
+
+    private static boolean measure(LocalZones zones) throws IOException {
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        byte[][] reqs = {
+                DNSPacketParser.createQueryPacket("www.shop.test", 1),
+                DNSPacketParser.createQueryPacket("nope.shop.test", 1),
+                DNSPacketParser.createQueryPacket("a.b.shop.test", 1),
+                DNSPacketParser.createQueryPacket("www.example.com", 1)};
+        ByteBuffer out = ByteBuffer.allocate(512);
+        int answered = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            answered += zones.write(reqs[i & 3], reqs[i & 3].length, out.clear()) >= 0 ? 1 : 0;
+        }
+        long before = mx.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            answered += zones.write(reqs[i & 3], reqs[i & 3].length, out.clear()) >= 0 ? 1 : 0;
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = mx.getThreadAllocatedBytes(thread) - before;
+        System.out.printf("local answer: %.1f bytes/query %.1f ns/query (%d answered)%n",
+                bytes / (double) ITERATIONS, nanos / (double) ITERATIONS, answered);
+        return bytes == 0;
+    }
+
+    // answer(), as NameServer.localAnswer uses it on the blocking and TCP
+    // paths. Each result is a byte[] with a 16 byte header, padded to 8.
+    private static boolean measureCopy(LocalZones zones) throws IOException {
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        byte[] local = DNSPacketParser.createQueryPacket("www.shop.test", 1);
+        byte[] other = DNSPacketParser.createQueryPacket("www.example.com", 1);
+        int size = zones.answer(local, local.length).length;
+        for (int i = 0; i < ITERATIONS; i++) {
+            zones.answer(local, local.length);
+            zones.answer(other, other.length);
+        }
+        long before = mx.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (zones.answer(other, other.length) != null) {
+                return false;
+            }
+        }
+        long notLocal = mx.getThreadAllocatedBytes(thread) - before;
+        before = mx.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ITERATIONS; i++) {
+            zones.answer(local, local.length);
+        }
+        long bytes = mx.getThreadAllocatedBytes(thread) - before;
+        System.out.printf("answer(): %.1f bytes/query local (%d byte answer), %.1f not local%n",
+                bytes / (double) ITERATIONS, size, notLocal / (double) ITERATIONS);
+        return notLocal == 0 && bytes <= (long) ITERATIONS * ((16 + size + 7) & ~7);
+    }
+
+    private static byte[] answer(LocalZones zones, String name, int qtype) throws IOException {
+        byte[] req = DNSPacketParser.createQueryPacket(name, qtype);
+        return zones.answer(req, req.length);
+    }
+
+    private static byte[] query(DatagramSocket s, int port, String name, int qtype) throws Exception {
+        byte[] q = DNSPacketParser.createQueryPacket(name, qtype);
+        s.send(new DatagramPacket(q, q.length, InetAddress.getLoopbackAddress(), port));
+        byte[] buf = new byte[512];
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
+        try {
+            s.receive(p);
+            return buf;
+        } catch (java.net.SocketTimeoutException e) {
+            return null;
+        }
+    }
+
+    private static int rcode(byte[] r) {
+        return r[3] & 0x0F;
+    }
+
+    private static boolean aa(byte[] r) {
+        return (r[2] & 0x04) != 0;
+    }
+
+    private static int count(byte[] r, int offset) {
+        return (r[offset] & 0xFF) << 8 | (r[offset + 1] & 0xFF);
+    }
+
+    // Type and TTL of the first record after the question
+    private static int type(byte[] r) {
+        int pos = DNSPacketParser.skipDomainName(r, 12) + 4;
+        pos = DNSPacketParser.skipDomainName(r, pos);
+        return (r[pos] & 0xFF) << 8 | (r[pos + 1] & 0xFF);
+    }
+
+    private static int ttl(byte[] r) {
+        int pos = DNSPacketParser.skipDomainName(r, 12) + 4;
+        pos = DNSPacketParser.skipDomainName(r, pos);
+        return ByteBuffer.wrap(r, pos + 4, 4).getInt();
+    }
+
+    private static boolean check(String what, boolean passed) {
+        System.out.println((passed ? "ok   " : "FAIL ") + what);
+        return passed;
+    }
+}
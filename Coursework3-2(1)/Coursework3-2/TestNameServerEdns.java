@@ -0,0 +1,91 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checks EDNS0 handling in the NameServer over UDP
+ * The TXT answer for a long name is 534 bytes. A client that advertises
+ * 4096 bytes should get all of it plus an OPT record, a plain client or
+ * one advertising 512 should get TC, and a query with EDNS version 1
+ * should get BADVERS. Each query is sent twice, so both the miss and the
+ * cache hit path are covered.
+ */
+public class TestNameServerEdns {
+
+    private static final int PORT = 18030;
+
+    public static void main(String[] args) throws Exception {
+        DatagramSocket upstream = TestNameServerTcp.startUpstream();
+        boolean ok = true;
+        int port = PORT;
+        for (NameServer.IoMode mode : new NameServer.IoMode[]{NameServer.IoMode.SELECTOR, NameServer.IoMode.BLOCKING}) {
+            NameServer ns = TestNameServerLoad.newServer(upstream, mode);
+            TestNameServerLoad.startServer(ns, port);
+            System.out.println(mode);
+            ok &= run(port++);
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(0);
+    }
+
+    private static boolean run(int port) throws Exception {
+        String big = "a".repeat(60) + "." + "b".repeat(60) + "." + "c".repeat(60) + "." + "d".repeat(60) + ".test";
+        boolean ok = true;
+
+        for (int pass = 0; pass < 2; pass++) {
+            byte[] r = query(port, big, 4096, 0);
+            ok &= check("4096 advertised: whole answer (" + r.length + " bytes) and OPT",
+                    !truncated(r) && count(r, 6) == 1 && count(r, 10) == 1 && optSize(r) == 1232);
+
+            r = query(port, big, -1, 0);
+            ok &= check("no EDNS: truncated, no OPT", truncated(r) && r.length <= 512 && count(r, 10) == 0);
+
+            r = query(port, big, 512, 0);
+            ok &= check("512 advertised: truncated with OPT", truncated(r) && count(r, 10) == 1);
+        }
+
+        byte[] r = query(port, big, 4096, 1);
+        ok &= check("EDNS version 1: BADVERS", (r[3] & 0x0F) == 0 && count(r, 10) == 1 && r[r.length - 6] == 1);
+        return ok;
+    }
+
+    private static boolean check(String what, boolean passed) {
+        System.out.println((passed ? "  ok   " : "  FAIL ") + what);
+        return passed;
+    }
+
+    // udpSize -1 means no OPT record
+    private static byte[] query(int port, String name, int udpSize, int version) throws Exception {
+        byte[] q = DNSPacketParser.createQueryPacket(name, 16);
+        if (udpSize >= 0) {
+            ByteBuffer withOpt = ByteBuffer.allocate(q.length + 11);
+            withOpt.put(q).put((byte) 0).putShort((short) 41).putShort((short) udpSize)
+                    .put((byte) 0).put((byte) version).putShort((short) 0).putShort((short) 0);
+            q = withOpt.array();
+            q[11] = 1; // ARCOUNT
+        }
+        try (DatagramSocket s = new DatagramSocket()) {
+            s.setSoTimeout(5000);
+            s.send(new DatagramPacket(q, q.length, InetAddress.getLoopbackAddress(), port));
+            byte[] buf = new byte[4096];
+            DatagramPacket p = new DatagramPacket(buf, buf.length);
+            s.receive(p);
+            return Arrays.copyOf(buf, p.getLength());
+        }
+    }
+
+    private static boolean truncated(byte[] r) {
+        return (r[2] & 0x02) != 0;
+    }
+
+    private static int count(byte[] r, int offset) {
+        return (r[offset] & 0xFF) << 8 | (r[offset + 1] & 0xFF);
+    }
+
+    // Our OPT record is always the last 11 bytes
+    private static int optSize(byte[] r) {
+        return count(r, r.length - 8);
+    }
+}
@@ -0,0 +1,166 @@
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Local load test for NameServer
+ * Starts a fake upstream that answers every A query itself, points a
+ * NameServer at it and hammers it from a few client threads. The names
+ * repeat, so after the first round almost everything is a cache hit and
+ * the number printed is how fast the front end can turn packets around.
+ * REUSEPORT is run once per listener count (1, 2, 4, ... up to the number
+ * of cores, or maxListeners) to show how qps grows with listeners.
+ *
+ * Usage: java TestNameServerLoad [seconds] [clientThreads] [maxListeners]
+ */
+public class TestNameServerLoad {
+
+    private static final int NAMES = 100;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int maxListeners = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        DatagramSocket upstream = startFakeUpstream();
+        int port = 17364;
+
+        for (NameServer.IoMode mode : new NameServer.IoMode[]{NameServer.IoMode.BLOCKING, NameServer.IoMode.SELECTOR}) {
+            NameServer ns = newServer(upstream, mode);
+            startServer(ns, port);
+
+            double qps = measure(port, clients, seconds);
+            System.out.printf("%-10s %12s %10.0f qps%n", mode, "", qps);
+            port++;
+        }
+
+        for (int listeners = 1; listeners <= maxListeners; listeners *= 2) {
+            NameServer ns = newServer(upstream, NameServer.IoMode.REUSEPORT);
+            ns.setListeners(listeners);
+            startServer(ns, port);
+
+            // Enough client sockets that the kernel hash reaches every listener
+            double qps = measure(port, Math.max(clients, listeners * 2), seconds);
+            System.out.printf("%-10s %2d listeners %10.0f qps%n", NameServer.IoMode.REUSEPORT, listeners, qps);
+            port++;
+        }
+
+        // handleIncomingQueries never returns and the pool threads are not daemons
+        System.exit(0);
+    }
+
+    static NameServer newServer(DatagramSocket upstream, NameServer.IoMode mode) throws Exception {
+        NameServer ns = new NameServer();
+        ns.setNameServer(InetAddress.getLoopbackAddress(), upstream.getLocalPort());
+        ns.setIoMode(mode);
+        ns.setRateLimiting(false);
+        return ns;
+    }
+
+    static void startServer(NameServer ns, int port) throws InterruptedException {
+        Thread t = new Thread(() -> {
+            try {
+                ns.handleIncomingQueries(port);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        Thread.sleep(300);
+    }
+
+    /**
+     * Runs closed-loop clients against the server for the given time and
+     * returns answered queries per second. One warm-up pass fills the cache.
+     */
+    static double measure(int port, int clients, int seconds) throws Exception {
+        InetAddress server = InetAddress.getLoopbackAddress();
+        try (DatagramSocket warm = new DatagramSocket()) {
+            warm.setSoTimeout(2000);
+            for (int i = 0; i < NAMES; i++) {
+                query(warm, server, port, i, new byte[512]);
+            }
+        }
+
+        AtomicLong answered = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int offset = c;
+            Thread t = new Thread(() -> {
+                byte[] buf = new byte[512];
+                try (DatagramSocket s = new DatagramSocket()) {
+                    s.setSoTimeout(500);
+                    int i = offset;
+                    while (System.nanoTime() < deadline) {
+                        if (query(s, server, port, i++ % NAMES, buf)) {
+                            answered.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        return answered.get() / (double) seconds;
+    }
+
+    static boolean query(DatagramSocket s, InetAddress server, int port, int n, byte[] buf) throws Exception {
+        byte[] q = DNSPacketParser.createQueryPacket("host" + n + ".load.test.", 1);
+        s.send(new DatagramPacket(q, q.length, server, port));
+        try {
+            s.receive(new DatagramPacket(buf, buf.length));
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Minimal authoritative server on a random port. Every query gets an
+     * A record for 10.0.0.1 with a 300 second TTL.
+     */
+    static DatagramSocket startFakeUpstream() throws SocketException {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[512];
+            while (true) {
+                try {
+                    DatagramPacket p = new DatagramPacket(buf, buf.length);
+                    socket.receive(p);
+                    byte[] resp = fakeAnswer(Arrays.copyOf(p.getData(), p.getLength()));
+                    socket.send(new DatagramPacket(resp, resp.length, p.getAddress(), p.getPort()));
+                } catch (Exception e) {
+                    return;
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return socket;
+    }
+
+    static byte[] fakeAnswer(byte[] req) {
+        int end = DNSPacketParser.skipDomainName(req, 12) + 4;
+        byte[] resp = Arrays.copyOf(req, end + 16);
+        resp[2] = (byte) 0x84; // QR, AA
+        resp[3] = 0;
+        resp[6] = 0;
+        resp[7] = 1; // ANCOUNT
+        resp[8] = resp[9] = resp[10] = resp[11] = 0;
+        byte[] answer = {
+                (byte) 0xC0, 12, 0, 1, 0, 1,  // name pointer, TYPE A, CLASS IN
+                0, 0, 1, 44,                  // TTL 300
+                0, 4, 10, 0, 0, 1             // RDLENGTH 4, 10.0.0.1
+        };
+        System.arraycopy(answer, 0, resp, end, answer.length);
+        return resp;
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks the metrics endpoint
+ * - LatencyHistogram quantiles land within a bucket of the real value
+ * - After a miss and some hits, GET /metrics shows every stage, the
+ *   A queries with their count, and the answer cache hits and misses
+ * - Anything but GET /metrics is refused
+ */
+public class TestNameServerMetrics {
+
+    private static final int PORT = 18060;
+    private static final int METRICS_PORT = 18061;
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = true;
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        long[] snapshot = histogram.snapshot();
+        long p50 = LatencyHistogram.quantile(snapshot, 0.5);
+        long p99 = LatencyHistogram.quantile(snapshot, 0.99);
+        System.out.println("p50=" + p50 + " p99=" + p99);
+        ok &= check("p50 within 7%", p50 >= 500_000 && p50 < 535_000);
+        ok &= check("p99 within 7%", p99 >= 990_000 && p99 < 1_060_000);
+        ok &= check("count", LatencyHistogram.count(snapshot) == 1000);
+
+        NameServer ns = TestNameServerLoad.newServer(TestNameServerLoad.startFakeUpstream(), NameServer.IoMode.SELECTOR);
+        ns.setMetricsPort(METRICS_PORT);
+        TestNameServerLoad.startServer(ns, PORT);
+
+        try (DatagramSocket s = new DatagramSocket()) {
+            s.setSoTimeout(2000);
+            for (int i = 0; i < 10; i++) {
+                byte[] q = DNSPacketParser.createQueryPacket("www.metrics.test", 1);
+                s.send(new DatagramPacket(q, q.length, InetAddress.getLoopbackAddress(), PORT));
+                s.receive(new DatagramPacket(new byte[512], 512));
+            }
+        }
+
+        String body = get("/metrics");
+        System.out.print(body.lines().filter(l -> !l.startsWith("#") && (l.contains("qtype=\"A\"")
+                || l.contains("answer_cache"))).reduce("", (a, l) -> a + l + "\n"));
+        for (String stage : new String[]{"queue", "parse", "lookup", "resolve", "build", "send"}) {
+            ok &= check("stage " + stage, body.contains("nameserver_stage_seconds{stage=\"" + stage
+                    + "\",quantile=\"0.99\"}"));
+        }
+        ok &= check("10 A queries timed", body.contains("nameserver_request_seconds_count{qtype=\"A\"} 10\n"));
+        ok &= check("answer cache hits", body.contains("nameserver_answer_cache_hits_total 9\n"));
+        ok &= check("answer cache misses", body.contains("nameserver_answer_cache_misses_total 1\n"));
+        ok &= check("queue depth gauge", body.contains("# TYPE nameserver_queue_depth gauge\n"));
+        ok &= check("unknown path is 404", get("/nope").startsWith("404"));
+
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(0);
+    }
+
+    // Body of a 200, otherwise the status code
+    private static String get(String path) throws Exception {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), METRICS_PORT)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            String status = in.readLine().split(" ")[1];
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                // Skip headers
+            }
+            if (!status.equals("200")) {
+                return status;
+            }
+            StringBuilder body = new StringBuilder();
+            while ((line = in.readLine()) != null) {
+                body.append(line).append('\n');
+            }
+            return body.toString();
+        }
+    }
+
+    private static boolean check(String what, boolean passed) {
+        System.out.println((passed ? "ok   " : "FAIL ") + what);
+        return passed;
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks that the NameServer answers with whole RRsets
+ * The fake upstream has three A records and two MX records for every
+ * name, with the MX exchanges compressed against the question. Every one
+ * of them should reach the client, on a miss and on hits, with the
+ * smallest of the upstream TTLs. Hits should rotate the order so each A
+ * record gets its turn first. Run on both cache backends.
+ */
+public class TestNameServerRrset {
+
+    private static final int PORT = 18040;
+
+    public static void main(String[] args) throws Exception {
+        DatagramSocket upstream = startUpstream();
+        boolean ok = true;
+        int port = PORT;
+        for (NameServer.CacheBackend backend : NameServer.CacheBackend.values()) {
+            NameServer ns = TestNameServerLoad.newServer(upstream, NameServer.IoMode.SELECTOR);
+            ns.setCacheBackend(backend);
+            TestNameServerLoad.startServer(ns, port);
+            System.out.println(backend);
+            ok &= run(port++);
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(0);
+    }
+
+    private static boolean run(int port) throws Exception {
+        boolean ok = true;
+
+        // One miss, then three hits
+        Set<String> firsts = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            DNSPacketParser r = query(port, "www.rrset.test", 1);
+            List<String> addresses = new ArrayList<>();
+            for (DNSResourceRecord rr : r.answerRecords) {
+                addresses.add(rr.getRecordDataAsString());
+            }
+            System.out.println("  A answer " + i + ": " + addresses + " ttl=" + r.answerRecords.get(0).timeToLive);
+            ok &= check("  all three A records", addresses.size() == 3
+                    && addresses.containsAll(List.of("10.0.0.1", "10.0.0.2", "10.0.0.3")));
+            ok &= check("  TTL is the smallest upstream TTL", r.answerRecords.get(0).timeToLive <= 200
+                    && r.answerRecords.get(2).timeToLive <= 200);
+            if (i > 0) {
+                firsts.add(addresses.get(0));
+            }
+        }
+        ok &= check("hits rotate the order", firsts.size() == 3);
+
+        DNSPacketParser mx = query(port, "www.rrset.test", 15);
+        List<String> exchanges = new ArrayList<>();
+        for (DNSResourceRecord rr : mx.answerRecords) {
+            exchanges.add(rr.getRecordDataAsString());
+        }
+        ok &= check("both MX records, priorities kept " + exchanges, exchanges.size() == 2
+                && exchanges.containsAll(List.of("10 mail1.www.rrset.test", "20 mail2.www.rrset.test")));
+
+        StubResolver stub = new StubResolver();
+        stub.setNameServer(InetAddress.getLoopbackAddress(), port);
+        List<StubResolver.ResourceRecord> answers = stub.getAnswers("www.rrset.test", StubResolver.RecordType.A);
+        ok &= check("StubResolver.getAnswers returns all of them", answers.size() == 3);
+        return ok;
+    }
+
+    private static boolean check(String what, boolean passed) {
+        System.out.println((passed ? "ok   " : "FAIL ") + what);
+        return passed;
+    }
+
+    private static DNSPacketParser query(int port, String name, int type) throws Exception {
+        byte[] q = DNSPacketParser.createQueryPacket(name, type);
+        try (DatagramSocket s = new DatagramSocket()) {
+            s.setSoTimeout(5000);
+            s.send(new DatagramPacket(q, q.length, InetAddress.getLoopbackAddress(), port));
+            byte[] buf = new byte[4096];
+            DatagramPacket p = new DatagramPacket(buf, buf.length);
+            s.receive(p);
+            return DNSPacketParser.parseDNSPacket(Arrays.copyOf(buf, p.getLength()));
+        }
+    }
+
+    /**
+     * Fake authoritative upstream. A queries get 10.0.0.1 to 10.0.0.3 with
+     * TTLs 300, 200 and 300; MX queries get mail1 (10) and mail2 (20)
+     * under the queried name, written as pointers to the question.
+     */
+    private static DatagramSocket startUpstream() throws SocketException {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    byte[] buf = new byte[512];
+                    DatagramPacket p = new DatagramPacket(buf, buf.length);
+                    socket.receive(p);
+                    byte[] resp = answer(Arrays.copyOf(p.getData(), p.getLength()));
+                    socket.send(new DatagramPacket(resp, resp.length, p.getAddress(), p.getPort()));
+                } catch (Exception e) {
+                    return;
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return socket;
+    }
+
+    private static byte[] answer(byte[] req) throws Exception {
+        int end = DNSPacketParser.skipDomainName(req, 12) + 4;
+        int qtype = (req[end - 4] & 0xFF) << 8 | (req[end - 3] & 0xFF);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.write(req, 0, end);
+        int count = 0;
+        if (qtype == 1) {
+            int[] ttls = {300, 200, 300};
+            for (int i = 0; i < 3; i++) {
+                out.writeShort(0xC00C);
+                out.writeShort(1);
+                out.writeShort(1);
+                out.writeInt(ttls[i]);
+                out.writeShort(4);
+                out.write(new byte[]{10, 0, 0, (byte) (i + 1)});
+                count++;
+            }
+        } else if (qtype == 15) {
+            for (int i = 1; i <= 2; i++) {
+                out.writeShort(0xC00C);
+                out.writeShort(15);
+                out.writeShort(1);
+                out.writeInt(300);
+                out.writeShort(2 + 6 + 2);
+                out.writeShort(i * 10);
+                out.writeByte(5);
+                out.writeBytes("mail" + i);
+                out.writeShort(0xC00C);
+                count++;
+            }
+        }
+        byte[] resp = baos.toByteArray();
+        resp[2] = (byte) 0x84; // QR, AA
+        resp[3] = 0;
+        resp[6] = 0;
+        resp[7] = (byte) count;
+        resp[8] = resp[9] = resp[10] = resp[11] = 0;
+        return resp;
+    }
+}
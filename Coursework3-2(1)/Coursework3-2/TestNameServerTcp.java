@@ -0,0 +1,156 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the NameServer's TCP listener and UDP truncation
+ * - A TXT answer for a long name doesn't fit in 512 bytes, so over UDP it
+ *   comes back with TC set and no answer, and over TCP it comes back whole
+ * - Three queries pipelined on one connection: a slow miss, a fast miss
+ *   and a cache hit. All three are answered, and the slow one last
+ * - A connection with nothing in flight is closed after the idle timeout
+ */
+public class TestNameServerTcp {
+
+    private static final int PORT = 18020;
+
+    public static void main(String[] args) throws Exception {
+        DatagramSocket upstream = startUpstream();
+        NameServer ns = TestNameServerLoad.newServer(upstream, NameServer.IoMode.SELECTOR);
+        ns.setTcpIdleTimeout(500);
+        TestNameServerLoad.startServer(ns, PORT);
+        InetAddress server = InetAddress.getLoopbackAddress();
+        boolean ok = true;
+
+        String big = "a".repeat(60) + "." + "b".repeat(60) + "." + "c".repeat(60) + "." + "d".repeat(60) + ".test";
+
+        DatagramSocket udp = new DatagramSocket();
+        udp.setSoTimeout(5000);
+        byte[] q = DNSPacketParser.createQueryPacket(big, 16);
+        udp.send(new DatagramPacket(q, q.length, server, PORT));
+        byte[] buf = new byte[4096];
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
+        udp.receive(p);
+        ok &= check("UDP answer is truncated", p.getLength() <= 512 && (buf[2] & 0x02) != 0 && answers(buf) == 0);
+
+        try (Socket s = new Socket(server, PORT)) {
+            s.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            DataInputStream in = new DataInputStream(s.getInputStream());
+
+            send(out, 1, big, 16);
+            byte[] full = receive(in);
+            DNSPacketParser parsed = DNSPacketParser.parseDNSPacket(full);
+            ok &= check("TCP answer is complete (" + full.length + " bytes)", (full[2] & 0x02) == 0
+                    && parsed.answerRecords.size() == 1 && parsed.answerRecords.get(0).recordData.length == 256);
+
+            // Pipelined: all three go out before any answer is read
+            send(out, 2, "slow.example.test", 1);
+            send(out, 3, "fast.example.test", 1);
+            send(out, 4, big, 16);
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                byte[] r = receive(in);
+                order.add((r[0] & 0xFF) << 8 | (r[1] & 0xFF));
+            }
+            System.out.println("Pipelined answers arrived in ID order " + order);
+            ok &= check("Slow query answered last", order.size() == 3 && order.get(2) == 2
+                    && order.containsAll(List.of(2, 3, 4)));
+
+            Thread.sleep(1600);
+            int eof;
+            try {
+                eof = in.read();
+            } catch (SocketException e) {
+                eof = -1;
+            }
+            ok &= check("Idle connection closed", eof == -1);
+        }
+
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(0);
+    }
+
+    private static boolean check(String what, boolean passed) {
+        System.out.println((passed ? "ok   " : "FAIL ") + what);
+        return passed;
+    }
+
+    private static int answers(byte[] response) {
+        return (response[6] & 0xFF) << 8 | (response[7] & 0xFF);
+    }
+
+    private static void send(DataOutputStream out, int id, String name, int type) throws Exception {
+        byte[] q = DNSPacketParser.createQueryPacket(name, type);
+        q[0] = (byte) (id >> 8);
+        q[1] = (byte) id;
+        out.writeShort(q.length);
+        out.write(q);
+        out.flush();
+    }
+
+    private static byte[] receive(DataInputStream in) throws Exception {
+        byte[] r = new byte[in.readUnsignedShort()];
+        in.readFully(r);
+        return r;
+    }
+
+    /**
+     * Fake authoritative upstream. TXT queries get a 255 character string,
+     * anything else the usual A record. Names starting with "slow" are
+     * answered after 600ms.
+     */
+    static DatagramSocket startUpstream() throws SocketException {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    byte[] buf = new byte[512];
+                    DatagramPacket p = new DatagramPacket(buf, buf.length);
+                    socket.receive(p);
+                    byte[] req = Arrays.copyOf(p.getData(), p.getLength());
+                    Thread reply = new Thread(() -> {
+                        try {
+                            if (req[13] == 's') {
+                                Thread.sleep(600);
+                            }
+                            byte[] resp = txtQuery(req) ? txtAnswer(req) : TestNameServerLoad.fakeAnswer(req);
+                            socket.send(new DatagramPacket(resp, resp.length, p.getAddress(), p.getPort()));
+                        } catch (Exception e) {
+                            // Test is over
+                        }
+                    });
+                    reply.setDaemon(true);
+                    reply.start();
+                } catch (Exception e) {
+                    return;
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return socket;
+    }
+
+    private static boolean txtQuery(byte[] req) {
+        int end = DNSPacketParser.skipDomainName(req, 12);
+        return req[end] == 0 && req[end + 1] == 16;
+    }
+
+    private static byte[] txtAnswer(byte[] req) {
+        int end = DNSPacketParser.skipDomainName(req, 12) + 4;
+        byte[] resp = Arrays.copyOf(req, end + 12 + 256);
+        resp[2] = (byte) 0x84;
+        resp[3] = 0;
+        resp[6] = 0;
+        resp[7] = 1;
+        resp[8] = resp[9] = resp[10] = resp[11] = 0;
+        byte[] answer = {(byte) 0xC0, 12, 0, 16, 0, 1, 0, 0, 1, 44, 1, 0, (byte) 255};
+        System.arraycopy(answer, 0, resp, end, answer.length);
+        Arrays.fill(resp, end + answer.length, resp.length, (byte) 'x');
+        return resp;
+    }
+}
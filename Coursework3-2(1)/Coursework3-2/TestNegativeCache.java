@@ -0,0 +1,246 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks negative caching (RFC 2308)
+ * - NXDOMAIN and NODATA keep their rcode and come back with the zone's
+ *   SOA in the authority section, its names decompressed
+ * - They are cached for the lower of the SOA's TTL and MINIMUM, and a
+ *   hit counts the TTL down without asking upstream again
+ * - A negative answer without an SOA isn't cached
+ * - A type we don't resolve is NODATA, not NXDOMAIN
+ * - A cached NXDOMAIN answers for every type of its name and every name
+ *   below it (RFC 8020), with the client's question, while NODATA doesn't,
+ *   and after a CNAME it is the target that doesn't exist, not the alias
+ * - The cut covers names with UTF-8 labels too
+ * - A query for another class is refused, not answered from the cache
+ */
+public class TestNegativeCache {
+
+    private static final int PORT = 18090;
+    private static final AtomicInteger upstreamQueries = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        NameServer ns = TestNameServerLoad.newServer(startNegativeUpstream(), NameServer.IoMode.SELECTOR);
+        TestNameServerLoad.startServer(ns, PORT);
+        boolean ok = true;
+
+        try (DatagramSocket s = new DatagramSocket()) {
+            s.setSoTimeout(3000);
+            byte[] r = query(s, "nx.neg.test", 1);
+            ok &= check("NXDOMAIN with the SOA, TTL from MINIMUM", rcode(r) == 3 && count(r, 6) == 0
+                    && count(r, 8) == 1 && type(r) == 6 && ttl(r) == 60);
+            ok &= check("SOA names decompressed", indexOf(r, labels("ns.neg.test")) > 0
+                    && indexOf(r, labels("hostmaster.neg.test")) > 0);
+
+            r = query(s, "nodata.neg.test", 1);
+            ok &= check("NODATA with the SOA, TTL from the SOA's own TTL", rcode(r) == 0 && count(r, 6) == 0
+                    && count(r, 8) == 1 && ttl(r) == 30);
+
+            int before = upstreamQueries.get();
+            Thread.sleep(1100);
+            r = query(s, "nx.neg.test", 1);
+            ok &= check("NXDOMAIN cached, TTL counting down", rcode(r) == 3 && ttl(r) == 59
+                    && upstreamQueries.get() == before);
+            r = query(s, "nodata.neg.test", 1);
+            ok &= check("NODATA cached", rcode(r) == 0 && count(r, 8) == 1 && upstreamQueries.get() == before);
+
+            query(s, "bare.neg.test", 1);
+            r = query(s, "bare.neg.test", 1);
+            ok &= check("no SOA, not cached", rcode(r) == 3 && count(r, 8) == 0
+                    && upstreamQueries.get() == before + 2);
+
+            r = query(s, "nodata.neg.test", 28);
+            ok &= check("unsupported type is NODATA", rcode(r) == 0 && count(r, 6) == 0
+                    && upstreamQueries.get() == before + 2);
+
+            before = upstreamQueries.get();
+            r = query(s, "nx.neg.test", 15);
+            ok &= check("NXDOMAIN answers the name's other types", rcode(r) == 3 && upstreamQueries.get() == before);
+            boolean floodCached = true;
+            for (int i = 0; i < 50; i++) {
+                String name = "R" + i + "x.a.NX.neg.test";
+                r = query(s, name, 1);
+                floodCached &= rcode(r) == 3 && count(r, 8) == 1 && type(r) == 6 && ttl(r) <= 60
+                        && indexOf(r, DNSPacketParser.createQueryPacket(name, 1), 12) == 12;
+            }
+            ok &= check("names below it answered from the cache", floodCached && upstreamQueries.get() == before
+                    && ns.getNxdomainCutHits() == 51);
+
+            query(s, "x.nodata.neg.test", 1);
+            ok &= check("NODATA doesn't cover names below it", upstreamQueries.get() == before + 1);
+
+            before = upstreamQueries.get();
+            send(s, utf8Query("x.b\u00fccher.neg.test"));
+            r = send(s, utf8Query("y.x.b\u00fccher.neg.test"));
+            ok &= check("UTF-8 name cut", rcode(r) == 3 && upstreamQueries.get() == before + 1);
+
+            before = upstreamQueries.get();
+            byte[] chaos = DNSPacketParser.createQueryPacket("nx.neg.test", 1);
+            chaos[chaos.length - 1] = 3; // QCLASS CH
+            r = send(s, chaos);
+            ok &= check("other class refused", rcode(r) == 5 && upstreamQueries.get() == before);
+
+            query(s, "alias.neg.test", 1);
+            before = upstreamQueries.get();
+            r = query(s, "www.gone.neg.test", 1);
+            ok &= check("CNAME target cut", rcode(r) == 3 && upstreamQueries.get() == before);
+            query(s, "www.alias.neg.test", 1);
+            ok &= check("alias not cut", upstreamQueries.get() == before + 1);
+        }
+
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(0);
+    }
+
+    // "nodata..." has the name without the type, "bare..." is NXDOMAIN with
+    // no SOA, "alias..." is a CNAME for gone.neg.test and anything else is
+    // NXDOMAIN. The SOA's names are compressed.
+    private static DatagramSocket startNegativeUpstream() throws SocketException {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[512];
+            while (true) {
+                try {
+                    DatagramPacket p = new DatagramPacket(buf, buf.length);
+                    socket.receive(p);
+                    upstreamQueries.incrementAndGet();
+                    byte[] resp = negativeAnswer(Arrays.copyOf(p.getData(), p.getLength()));
+                    socket.send(new DatagramPacket(resp, resp.length, p.getAddress(), p.getPort()));
+                } catch (Exception e) {
+                    return;
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return socket;
+    }
+
+    private static byte[] negativeAnswer(byte[] req) throws Exception {
+        int end = DNSPacketParser.skipDomainName(req, 12) + 4;
+        String qname = DNSPacketParser.readDomainName(req, new int[]{12});
+        boolean nodata = qname.startsWith("nodata");
+        boolean bare = qname.startsWith("bare");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(req, 0, end);
+        if (qname.startsWith("alias")) {
+            byte[] target = labels("gone.neg.test");
+            out.write(new byte[]{(byte) 0xC0, 12, 0, 5, 0, 1, 0, 0, 1, 44, 0, (byte) target.length});
+            out.write(target);
+            byte[] resp = out.toByteArray();
+            resp[2] = (byte) 0x84;
+            resp[3] = 0;
+            resp[7] = 1; // ANCOUNT
+            resp[8] = resp[9] = resp[10] = resp[11] = 0;
+            return resp;
+        }
+        if (!bare) {
+            int owner = end;
+            out.write(labels("neg.test"));
+            ByteBuffer rest = ByteBuffer.allocate(50);
+            rest.putShort((short) 6).putShort((short) 1).putInt(nodata ? 30 : 300);
+            int rdlengthAt = rest.position();
+            rest.putShort((short) 0);
+            int rdataStart = rest.position();
+            rest.put((byte) 2).put("ns".getBytes()).putShort((short) (0xC000 | owner));
+            rest.put((byte) 10).put("hostmaster".getBytes()).putShort((short) (0xC000 | owner));
+            rest.putInt(1).putInt(3600).putInt(600).putInt(86400).putInt(nodata ? 3600 : 60);
+            rest.putShort(rdlengthAt, (short) (rest.position() - rdataStart));
+            out.write(rest.array(), 0, rest.position());
+        }
+        byte[] resp = out.toByteArray();
+        resp[2] = (byte) 0x84; // QR, AA
+        resp[3] = (byte) (nodata ? 0 : 3);
+        resp[6] = resp[7] = 0;
+        resp[8] = 0;
+        resp[9] = (byte) (bare ? 0 : 1); // NSCOUNT
+        resp[10] = resp[11] = 0;
+        return resp;
+    }
+
+    private static byte[] query(DatagramSocket s, String name, int qtype) throws Exception {
+        return send(s, DNSPacketParser.createQueryPacket(name, qtype));
+    }
+
+    private static byte[] send(DatagramSocket s, byte[] q) throws Exception {
+        s.send(new DatagramPacket(q, q.length, InetAddress.getLoopbackAddress(), PORT));
+        byte[] buf = new byte[512];
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
+        s.receive(p);
+        return Arrays.copyOf(buf, p.getLength());
+    }
+
+    // Type A query with the labels in UTF-8, whatever the default charset
+    private static byte[] utf8Query(String name) throws IOException {
+        byte[] q = DNSPacketParser.createQueryPacket("x", 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(q, 0, 12);
+        for (String label : name.split("\\.")) {
+            byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        out.write(new byte[]{0, 0, 1, 0, 1}, 0, 5);
+        return out.toByteArray();
+    }
+
+    private static byte[] labels(String name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String label : name.split("\\.")) {
+            out.write(label.length());
+            out.writeBytes(label.getBytes());
+        }
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    private static int indexOf(byte[] r, byte[] part) {
+        return indexOf(r, part, 0);
+    }
+
+    // Where part, from offset on, appears in r
+    private static int indexOf(byte[] r, byte[] part, int offset) {
+        for (int i = 0; i + part.length - offset <= r.length; i++) {
+            if (Arrays.equals(r, i, i + part.length - offset, part, offset, part.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int rcode(byte[] r) {
+        return r[3] & 0x0F;
+    }
+
+    private static int count(byte[] r, int offset) {
+        return (r[offset] & 0xFF) << 8 | (r[offset + 1] & 0xFF);
+    }
+
+    // Type and TTL of the first record after the question
+    private static int type(byte[] r) {
+        int pos = DNSPacketParser.skipDomainName(r, 12) + 4;
+        pos = DNSPacketParser.skipDomainName(r, pos);
+        return (r[pos] & 0xFF) << 8 | (r[pos + 1] & 0xFF);
+    }
+
+    private static int ttl(byte[] r) {
+        int pos = DNSPacketParser.skipDomainName(r, 12) + 4;
+        pos = DNSPacketParser.skipDomainName(r, pos);
+        return ByteBuffer.wrap(r, pos + 4, 4).getInt();
+    }
+
+    private static boolean check(String what, boolean passed) {
+        System.out.println((passed ? "ok   " : "FAIL ") + what);
+        return passed;
+    }
+}
@@ -0,0 +1,170 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the heap and off-heap NameServer cache backends
+ * Fills each with the same records, then keeps the JVM busy allocating
+ * short-lived garbage the way request handling does, and reports the
+ * heap the cache keeps live plus the collections that took. With the
+ * off-heap backend neither should grow with the number of entries.
+ *
+ * Also checks the off-heap cache gives back what was put in, a negative
+ * answer's SOA and sections over 32767 bytes included, drops a key whose
+ * new value is too big to store, lets only one of several racing readers
+ * claim a refresh-ahead expiry, and stays within its budget once it is
+ * full.
+ *
+ * Run with a fixed heap, e.g. java -Xmx2g TestOffHeapCache 1000000
+ */
+public class TestOffHeapCache {
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+
+        boolean ok = checkOffHeap();
+        report("heap", TinyLfuCache.ofEntries(entries), entries);
+        report("offheap", new OffHeapRecordCache(entries * 256L, entries), entries);
+        System.out.println(ok ? "PASS" : "FAIL");
+    }
+
+    private static void report(String name, RecordCache<CacheKey, NameServer.CachedRecord> cache, int entries)
+            throws Exception {
+        long baseline = usedHeapAfterGc();
+        for (int i = 0; i < entries; i++) {
+            cache.put(key(i), record(i));
+        }
+        long used = Math.max(0, usedHeapAfterGc() - baseline);
+
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long start = System.nanoTime();
+        long sink = 0;
+        for (int i = 0; i < 20_000_000; i++) {
+            byte[] garbage = new byte[64];
+            sink += garbage.length;
+            if (i % 64 == 0) {
+                NameServer.CachedRecord hit = cache.get(key(i % entries));
+                sink += hit != null ? hit.data.length : 0;
+            }
+        }
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.printf("%-8s entries=%d live heap=%d MB gcs=%d gc time=%d ms run=%d ms (%d)%n",
+                name, cache.size(), used / (1024 * 1024), gcCount() - gcCount, gcMillis() - gcMillis,
+                elapsed, sink % 10);
+    }
+
+    private static boolean checkOffHeap() throws Exception {
+        OffHeapRecordCache cache = new OffHeapRecordCache(1 << 20, 2000);
+        boolean ok = true;
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put(key(i), record(i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            NameServer.CachedRecord got = cache.get(key(i));
+            ok &= got != null && got.data[5] == (byte) i && got.responseTemplate().length == 50;
+        }
+
+        // Overwrite, then remove with a stale copy and with the current one
+        NameServer.CachedRecord first = cache.get(key(1));
+        cache.put(key(1), new NameServer.CachedRecord(NameServer.CachedRecord.rrset(new byte[]{1, 2, 3, 4}),
+                first.expires + 1000, 300, 1, 0));
+        ok &= !cache.remove(key(1), first);
+        ok &= cache.remove(key(1), cache.get(key(1)));
+        ok &= cache.get(key(1)) == null;
+
+        // A negative answer keeps its SOA for the authority section
+        NameServer.CachedRecord negative = NameServer.CachedRecord.negative(60, 3);
+        negative.authority = new byte[]{0, 0, 6, 0, 1, 0, 0, 0, 60, 0, 2, 1, 0};
+        cache.put(key(2), negative);
+        ok &= Arrays.equals(cache.get(key(2)).authority, negative.authority);
+
+        // Sections over 32767 bytes come back whole, and a record too big to
+        // store drops the key's old value
+        OffHeapRecordCache roomy = new OffHeapRecordCache(64L << 20, 100);
+        NameServer.CachedRecord large = record(3);
+        large.setResponseTemplate(new byte[40_000]);
+        roomy.put(key(3), large);
+        NameServer.CachedRecord got3 = roomy.get(key(3));
+        ok &= got3 != null && got3.responseTemplate().length == 40_000 && got3.data.length == large.data.length;
+        NameServer.CachedRecord huge = record(3);
+        huge.setResponseTemplate(new byte[65_535]);
+        roomy.put(key(3), huge);
+        ok &= roomy.get(key(3)) == null;
+
+        // Readers racing for a refresh-ahead expiry: exactly one claims it
+        NameServer.CachedRecord refreshed = record(4);
+        refreshed.replacedExpiry = System.currentTimeMillis() - 1000;
+        cache.put(key(4), refreshed);
+        AtomicInteger claimed = new AtomicInteger();
+        Thread[] readers = new Thread[8];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    if (cache.get(key(4)).replacedExpiry != 0) {
+                        claimed.incrementAndGet();
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        for (Thread t : readers) {
+            t.join();
+        }
+        ok &= claimed.get() == 1;
+
+        // Far more than fits: the cache has to evict, and the names still
+        // being read should be the ones that survive
+        for (int i = 1000; i < 50_000; i++) {
+            cache.put(key(i), record(i));
+            cache.get(key(10 + i % 10));
+        }
+        int survivors = 0;
+        for (int i = 0; i < 10; i++) {
+            survivors += cache.get(key(10 + i)) != null ? 1 : 0;
+        }
+        System.out.println("offheap check: entries=" + cache.size() + " evictions=" + cache.evictionCount()
+                + " hot names kept=" + survivors + "/10");
+        return ok && cache.size() <= 2000 && survivors == 10;
+    }
+
+    private static CacheKey key(int i) {
+        return CacheKey.of("host" + i + ".example.com.", 1);
+    }
+
+    private static NameServer.CachedRecord record(int i) throws Exception {
+        NameServer.CachedRecord record = new NameServer.CachedRecord(
+                NameServer.CachedRecord.rrset(new byte[]{10, 0, 0, (byte) i}), 300, 1, 0);
+        record.setResponseTemplate(NameServer.buildResponse(
+                DNSPacketParser.createQueryPacket("host.example.com", 1),
+                new NameServer.DNSQuery("host.example.com.", 1, 1), record));
+        return record;
+    }
+
+    private static long usedHeapAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gc.getCollectionCount();
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += gc.getCollectionTime();
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,118 @@
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks the NameServer's per-client rate limiter and measures what it
+ * costs per packet
+ * - A client gets its burst, then qps a second
+ * - A flood from a million spoofed sources can't grow the table past its
+ *   size, and doesn't free a client that is over its limit
+ * - Per-packet cost against the old limiter (a synchronized counter per
+ *   client in a ConcurrentHashMap), from one thread and from several
+ *
+ * Usage: java TestRateLimiter [threads]
+ */
+public class TestRateLimiter {
+
+    private static final int ADDRESSES = 1024;
+    private static final long BENCH_NANOS = 2_000_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        boolean ok = true;
+
+        ClientRateLimiter limiter = new ClientRateLimiter(10, 10, 4096);
+        long client = ClientRateLimiter.key(InetAddress.getByName("192.0.2.1"));
+        int allowed = 0;
+        for (int i = 0; i < 20; i++) {
+            allowed += limiter.tryAcquire(client, 1000) ? 1 : 0;
+        }
+        ok &= check("burst of 10 at once (" + allowed + ")", allowed == 10);
+        ok &= check("one more after 100ms", limiter.tryAcquire(client, 1100) && !limiter.tryAcquire(client, 1100));
+
+        // 1M one-off spoofed sources over ten seconds, while the real client
+        // keeps sending 100 a second
+        allowed = 0;
+        for (int i = 0; i < 1_000_000; i++) {
+            long now = 2000 + i / 100_000 * 1000L + i % 100_000 / 100;
+            limiter.tryAcquire(3L << 32 | i, now);
+            if (i % 1000 == 0) {
+                allowed += limiter.tryAcquire(client, now) ? 1 : 0;
+            }
+        }
+        ok &= check("table stays bounded (" + limiter.size() + " clients)", limiter.size() <= 4096);
+        ok &= check("flood doesn't reset a limited client (" + allowed + " of 1000 allowed in 10s)",
+                allowed <= 10 * 10 + 10 + 1);
+
+        InetAddress[] addresses = new InetAddress[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++) {
+            addresses[i] = InetAddress.getByAddress(new byte[]{10, 1, (byte) (i >> 8), (byte) i});
+        }
+        for (int n : threads > 1 ? new int[]{1, threads} : new int[]{1}) {
+            ClientRateLimiter fresh = new ClientRateLimiter(1_000_000, 1_000, 65536);
+            double after = nanosPerPacket(n, addresses, fresh::tryAcquire);
+            Map<InetAddress, SynchronizedCounter> counters = new ConcurrentHashMap<>();
+            double before = nanosPerPacket(n, addresses,
+                    a -> !counters.computeIfAbsent(a, k -> new SynchronizedCounter()).isOverLimit());
+            System.out.printf("%2d thread(s): synchronized counter %6.1f ns/packet, token bucket %6.1f ns/packet%n",
+                    n, before, after);
+        }
+
+        System.out.println(ok ? "PASS" : "FAIL");
+    }
+
+    private static boolean check(String what, boolean passed) {
+        System.out.println((passed ? "ok   " : "FAIL ") + what);
+        return passed;
+    }
+
+    interface Limiter {
+        boolean tryAcquire(InetAddress client);
+    }
+
+    // Average time per check with n threads each cycling over the addresses
+    private static double nanosPerPacket(int n, InetAddress[] addresses, Limiter limiter) throws Exception {
+        for (int i = 0; i < 2_000_000; i++) {
+            limiter.tryAcquire(addresses[i % addresses.length]);
+        }
+        LongAdder packets = new LongAdder();
+        List<Thread> workers = new ArrayList<>();
+        long deadline = System.nanoTime() + BENCH_NANOS;
+        for (int t = 0; t < n; t++) {
+            int offset = t * 17;
+            Thread worker = new Thread(() -> {
+                long count = 0;
+                int i = offset;
+                while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                    limiter.tryAcquire(addresses[i++ & (ADDRESSES - 1)]);
+                    count++;
+                }
+                packets.add(count);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (double) BENCH_NANOS * n / packets.sum();
+    }
+
+    // The limiter NameServer used before: the last ten packets' times
+    private static class SynchronizedCounter {
+        private final long[] timestamps = new long[10];
+        private int index = 0;
+
+        synchronized boolean isOverLimit() {
+            long now = System.currentTimeMillis();
+            timestamps[index] = now;
+            index = (index + 1) % timestamps.length;
+            if (timestamps[timestamps.length - 1] == 0) return false;
+            return (now - timestamps[(index + 1) % timestamps.length]) < 1000;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+
+/**
+ * Checks Response Rate Limiting
+ * - The same question from one network is answered rps times, then one
+ *   in slip of the rest comes back truncated and the others are dropped
+ * - Other names from the same client, like a resolver behind NAT, and
+ *   the same name from another network have buckets of their own
+ * - Over the wire: cache hits beyond the limit are slipped with TC set
+ *   and no answers, and a flood of different names is all answered
+ * - Checking a response that is under the limit allocates nothing
+ */
+public class TestResponseRateLimit {
+
+    private static final int PORT = 18050;
+    private static final int ITERATIONS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = true;
+
+        ResponseRateLimiter rrl = new ResponseRateLimiter(5, 2, 1024);
+        InetAddress client = InetAddress.getByName("192.0.2.10");
+        InetAddress neighbour = InetAddress.getByName("192.0.2.99");
+        InetAddress elsewhere = InetAddress.getByName("198.51.100.10");
+        byte[] req = DNSPacketParser.createQueryPacket("victim.example", 255);
+        int[] verdicts = new int[3];
+        for (int i = 0; i < 1000; i++) {
+            verdicts[rrl.check(client, req, req.length, 0)]++;
+        }
+        System.out.println("send=" + verdicts[0] + " drop=" + verdicts[1] + " slip=" + verdicts[2]);
+        ok &= check("limited to the burst, about half slipped", verdicts[0] <= 6
+                && verdicts[2] > 400 && verdicts[2] < 600);
+        ok &= check("same /24 shares the bucket",
+                rrl.check(neighbour, req, req.length, 0) != ResponseRateLimiter.SEND);
+        ok &= check("another network has its own bucket",
+                rrl.check(elsewhere, req, req.length, 0) == ResponseRateLimiter.SEND);
+        ok &= check("another rcode has its own bucket",
+                rrl.check(client, req, req.length, 3) == ResponseRateLimiter.SEND);
+        boolean allSent = true;
+        for (int i = 0; i < 100; i++) {
+            byte[] other = DNSPacketParser.createQueryPacket("host" + i + ".example", 1);
+            allSent &= rrl.check(client, other, other.length, 0) == ResponseRateLimiter.SEND;
+        }
+        ok &= check("different names from one client are not limited", allSent);
+        byte[] upper = DNSPacketParser.createQueryPacket("VICTIM.example", 255);
+        ok &= check("case doesn't make a new bucket",
+                rrl.check(client, upper, upper.length, 0) != ResponseRateLimiter.SEND);
+
+        ok &= overTheWire();
+        measureAllocation(client);
+
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(0);
+    }
+
+    private static boolean overTheWire() throws Exception {
+        NameServer ns = TestNameServerLoad.newServer(TestNameServerLoad.startFakeUpstream(), NameServer.IoMode.SELECTOR);
+        ns.setRateLimiting(true);
+        ns.setResponseRateLimit(5, 2);
+        TestNameServerLoad.startServer(ns, PORT);
+        boolean ok = true;
+
+        try (DatagramSocket s = new DatagramSocket()) {
+            s.setSoTimeout(300);
+            query(s, "popular.rrl.test"); // Cache it
+            Thread.sleep(1000);          // and let the bucket fill again
+
+            // All sent at once, so the bucket has no time to refill
+            for (int i = 0; i < 50; i++) {
+                send(s, "popular.rrl.test");
+            }
+            int full = 0;
+            int truncated = 0;
+            byte[] r;
+            while ((r = receive(s)) != null) {
+                if ((r[2] & 0x02) != 0 && r[7] == 0) {
+                    truncated++;
+                } else {
+                    full++;
+                }
+            }
+            int silent = 50 - full - truncated;
+            System.out.println("50 identical queries: " + full + " answered, " + truncated + " truncated, "
+                    + silent + " dropped");
+            ok &= check("identical queries limited and slipped", full <= 6 && truncated > 10 && silent > 10);
+
+            int answered = 0;
+            for (int i = 0; i < 50; i++) {
+                answered += query(s, "host" + i + ".rrl.test") != null ? 1 : 0;
+            }
+            ok &= check("50 different names all answered (" + answered + ")", answered == 50);
+            ok &= check("counters match (dropped=" + ns.getResponsesDropped() + " slipped="
+                    + ns.getResponsesSlipped() + ")", ns.getResponsesDropped() == silent
+                    && ns.getResponsesSlipped() == truncated);
+        }
+        return ok;
+    }
+
+    private static byte[] query(DatagramSocket s, String name) throws Exception {
+        send(s, name);
+        return receive(s);
+    }
+
+    private static void send(DatagramSocket s, String name) throws Exception {
+        byte[] q = DNSPacketParser.createQueryPacket(name, 1);
+        s.send(new DatagramPacket(q, q.length, InetAddress.getLoopbackAddress(), PORT));
+    }
+
+    private static byte[] receive(DatagramSocket s) throws Exception {
+        byte[] buf = new byte[512];
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
+        try {
+            s.receive(p);
+            return buf;
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+    }
+
+    private static void measureAllocation(InetAddress client) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        // Enough names and a high enough rate that nothing hits the limit
+        ResponseRateLimiter rrl = new ResponseRateLimiter(16_000, 2, 1024);
+        byte[][] reqs = new byte[256][];
+        for (int i = 0; i < reqs.length; i++) {
+            reqs[i] = DNSPacketParser.createQueryPacket("www" + i + ".example.com", 1);
+        }
+
+        int sent = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            byte[] req = reqs[i & 255];
+            sent += rrl.check(client, req, req.length, 0) == ResponseRateLimiter.SEND ? 1 : 0;
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            byte[] req = reqs[i & 255];
+            sent += rrl.check(client, req, req.length, 0) == ResponseRateLimiter.SEND ? 1 : 0;
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = threads.getThreadAllocatedBytes(thread) - before;
+        System.out.printf("RRL check under the limit: %.1f bytes/response %.1f ns/response (%d of %d sent)%n",
+                bytes / (double) ITERATIONS, nanos / (double) ITERATIONS, sent, 2 * ITERATIONS);
+    }
+
+    private static boolean check(String what, boolean passed) {
+        System.out.println((passed ? "ok   " : "FAIL ") + what);
+        return passed;
+    }
+}
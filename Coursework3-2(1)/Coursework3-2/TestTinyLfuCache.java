@@ -0,0 +1,107 @@
+/**
+ * Checks the eviction policy used by the NameServer cache
+ * A small set of popular names is looked up over and over while a flood
+ * of random one-off names goes through the same cache, the way a random
+ * subdomain attack would. The popular names should survive the flood
+ * and the cache should never grow past its budget.
+ *
+ * Also checks that writers on several threads leave the cache within its
+ * budget, that a value too heavy to cache drops the key's old one, and
+ * that a lookup the caller rejects (an expired record) is a miss.
+ */
+public class TestTinyLfuCache {
+
+    public static void main(String[] args) throws InterruptedException {
+        int capacity = 1000;
+        int popular = 200;
+        TinyLfuCache<String, String> cache = TinyLfuCache.ofEntries(capacity);
+
+        // Popular names get cached and hit a few times first
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < popular; i++) {
+                lookup(cache, "popular" + i + ".example.");
+            }
+        }
+
+        // Flood: 100k names that are only ever asked for once, with the
+        // popular ones still being asked for in between
+        int popularHits = 0;
+        int popularLookups = 0;
+        for (int i = 0; i < 100_000; i++) {
+            lookup(cache, "x" + i + ".victim.example.");
+            if (i % 50 == 0) {
+                popularLookups++;
+                if (lookup(cache, "popular" + (i / 50) % popular + ".example.")) {
+                    popularHits++;
+                }
+            }
+        }
+
+        int survivors = 0;
+        for (int i = 0; i < popular; i++) {
+            if (cache.get("popular" + i + ".example.") != null) {
+                survivors++;
+            }
+        }
+
+        System.out.println("Popular names still cached: " + survivors + "/" + popular);
+        System.out.println("Popular hit rate during flood: " + (100 * popularHits / popularLookups) + "%");
+        System.out.println("Entries: " + cache.size() + " (budget " + capacity + ")");
+        System.out.println("hits=" + cache.hitCount() + " misses=" + cache.missCount()
+                + " evictions=" + cache.evictionCount());
+
+        boolean ok = survivors >= popular * 9 / 10 && cache.size() <= capacity;
+        ok &= concurrentWriters(capacity);
+        ok &= oversizeDropsOld();
+        ok &= rejectedIsMiss();
+        System.out.println(ok ? "PASS" : "FAIL");
+    }
+
+    // Look the name up and cache it on a miss, like the NameServer does
+    private static boolean lookup(TinyLfuCache<String, String> cache, String name) {
+        if (cache.get(name) != null) {
+            return true;
+        }
+        cache.put(name, "answer");
+        return false;
+    }
+
+    // Every thread floods its own one-off names
+    private static boolean concurrentWriters(int capacity) throws InterruptedException {
+        TinyLfuCache<String, String> cache = TinyLfuCache.ofEntries(capacity);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 50_000; i++) {
+                    lookup(cache, "t" + id + "x" + i + ".victim.example.");
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long weight = cache.weightedSize();
+        System.out.println("After 8 writing threads: entries=" + cache.size() + " weight=" + weight);
+        return weight <= capacity && cache.size() <= capacity;
+    }
+
+    private static boolean oversizeDropsOld() {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(10, 10, (k, v) -> v.length());
+        cache.put("name.example.", "old");
+        cache.put("name.example.", "far too big to cache");
+        boolean dropped = cache.get("name.example.") == null && cache.weightedSize() == 0;
+        System.out.println("Too heavy a value drops the old one: " + dropped);
+        return dropped;
+    }
+
+    private static boolean rejectedIsMiss() {
+        TinyLfuCache<String, String> cache = TinyLfuCache.ofEntries(10);
+        cache.put("name.example.", "expired");
+        String got = cache.get("name.example.", value -> false);
+        boolean miss = "expired".equals(got) && cache.hitCount() == 0 && cache.missCount() == 1;
+        System.out.println("Rejected lookup counted as a miss: " + miss);
+        return miss;
+    }
+}
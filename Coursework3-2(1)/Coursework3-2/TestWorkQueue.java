@@ -0,0 +1,145 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the bounded work queue
+ * - Hits run before misses that were queued earlier
+ * - A full queue sheds new work straight away, and work past its
+ *   deadline is shed instead of run
+ * - Over the wire, with a slow upstream: queries that don't fit get an
+ *   immediate SERVFAIL, queued ones that go stale get nothing, and the
+ *   counters add up
+ */
+public class TestWorkQueue {
+
+    private static final int PORT = 18070;
+    private static final long UPSTREAM_DELAY_MS = 800;
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = true;
+
+        AdmissionQueue queue = new AdmissionQueue(3);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, queue, queue);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        List<String> shed = new CopyOnWriteArrayList<>();
+        long later = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        pool.execute(queue.task(AdmissionQueue.MISS, later, () -> await(release), e -> { }));
+        pool.execute(queue.task(AdmissionQueue.MISS, later, () -> order.add("miss1"), e -> shed.add("miss1")));
+        pool.execute(queue.task(AdmissionQueue.MISS, later, () -> order.add("miss2"), e -> shed.add("miss2")));
+        pool.execute(queue.task(AdmissionQueue.HIT, later, () -> order.add("hit"), e -> shed.add("hit")));
+        pool.execute(queue.task(AdmissionQueue.HIT, later, () -> order.add("full"),
+                e -> shed.add("full expired=" + e)));
+        release.countDown();
+        pool.execute(queue.task(AdmissionQueue.MISS, System.nanoTime() - 1, () -> order.add("stale"),
+                e -> shed.add("stale expired=" + e)));
+        pool.shutdown();
+        pool.awaitTermination(5, TimeUnit.SECONDS);
+        System.out.println("ran " + order + " shed " + shed);
+        ok &= check("hit runs first", order.equals(List.of("hit", "miss1", "miss2")));
+        ok &= check("full queue and stale work shed",
+                shed.equals(List.of("full expired=false", "stale expired=true")));
+        ok &= check("counters", queue.getRejected() == 1 && queue.getExpired() == 1);
+
+        ok &= overTheWire();
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(0);
+    }
+
+    private static boolean overTheWire() throws Exception {
+        NameServer ns = TestNameServerLoad.newServer(startSlowUpstream(), NameServer.IoMode.SELECTOR);
+        ns.setWorkQueue(5, 300);
+        TestNameServerLoad.startServer(ns, PORT);
+        boolean ok = true;
+
+        // 10 workers busy, 5 queued behind them, 25 turned away
+        try (DatagramSocket s = new DatagramSocket()) {
+            s.setSoTimeout(3000);
+            long start = System.nanoTime();
+            for (int i = 0; i < 40; i++) {
+                byte[] q = DNSPacketParser.createQueryPacket("host" + i + ".slow.test", 1);
+                s.send(new DatagramPacket(q, q.length, InetAddress.getLoopbackAddress(), PORT));
+            }
+            int answered = 0;
+            int servfail = 0;
+            long lastServfailMs = 0;
+            byte[] buf = new byte[512];
+            try {
+                while (true) {
+                    DatagramPacket p = new DatagramPacket(buf, buf.length);
+                    s.receive(p);
+                    if ((buf[3] & 0x0F) == 2) {
+                        servfail++;
+                        lastServfailMs = (System.nanoTime() - start) / 1_000_000;
+                    } else {
+                        answered++;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // All in
+            }
+            System.out.println("40 slow queries: " + answered + " answered, " + servfail + " SERVFAIL (last after "
+                    + lastServfailMs + " ms), rejected=" + ns.getQueriesRejected() + " expired="
+                    + ns.getQueriesExpired() + " depth=" + ns.getQueueDepth());
+            ok &= check("workers' queries answered", answered == 10);
+            ok &= check("overflow gets SERVFAIL at once", servfail == 25 && lastServfailMs < UPSTREAM_DELAY_MS);
+            ok &= check("counters add up", ns.getQueriesRejected() == 25 && ns.getQueriesExpired() == 5
+                    && ns.getQueueDepth() == 0);
+        }
+        return ok;
+    }
+
+    // Answers every query after UPSTREAM_DELAY_MS, several at a time
+    private static DatagramSocket startSlowUpstream() throws SocketException {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[512];
+            while (true) {
+                try {
+                    DatagramPacket p = new DatagramPacket(buf, buf.length);
+                    socket.receive(p);
+                    byte[] resp = TestNameServerLoad.fakeAnswer(Arrays.copyOf(p.getData(), p.getLength()));
+                    InetAddress addr = p.getAddress();
+                    int port = p.getPort();
+                    Thread reply = new Thread(() -> {
+                        try {
+                            Thread.sleep(UPSTREAM_DELAY_MS);
+                            socket.send(new DatagramPacket(resp, resp.length, addr, port));
+                        } catch (Exception e) {
+                            // Test is over
+                        }
+                    });
+                    reply.setDaemon(true);
+                    reply.start();
+                } catch (Exception e) {
+                    return;
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return socket;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean check(String what, boolean passed) {
+        System.out.println((passed ? "ok   " : "FAIL ") + what);
+        return passed;
+    }
+}
@@ -0,0 +1,503 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * TinyLfuCache - A size-bounded cache using W-TinyLFU eviction
+ *
+ * Entries are held in a ConcurrentHashMap, so reads never block and
+ * writes only contend on the map's own bins. Writes log their policy
+ * change to a lock-free buffer instead of taking the policy lock, and
+ * whichever thread then gets the lock without waiting applies the log,
+ * as reads do with their bookkeeping. Only a writer that finds the log
+ * full waits for the lock, so a backlog can't leave the cache far over
+ * budget. The eviction policy is the one from the TinyLFU paper (Einziger, Friedman,
+ * Manes) that Caffeine uses:
+ * - New entries go into a small LRU "window" (1% of the budget)
+ * - When the window overflows, its oldest entry has to win against the
+ *   main region's next victim to be admitted. The winner is whichever has
+ *   been asked for more often recently, according to a count-min sketch
+ * - The main region is a segmented LRU: probation, and protected for
+ *   entries that were hit again after admission
+ *
+ * A flood of names that are only asked for once never gets past the
+ * window, so it can't push popular names out.
+ *
+ * The budget is a total weight. With a weigher that returns 1 it is an
+ * entry count, with one that estimates bytes it is a memory budget.
+ */
+class TinyLfuCache<K, V> implements RecordCache<K, V> {
+
+    interface Weigher<K, V> {
+        int weigh(K key, V value);
+    }
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+    private final Weigher<K, V> weigher;
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    // Writes waiting for the policy. One writing thread waits for the lock
+    // once this many are queued.
+    private static final int WRITE_BUFFER_MAX = 1024;
+    private final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+
+    // Policy state below is only touched while holding evictionLock
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final AccessOrderDeque<K, V> window = new AccessOrderDeque<>();
+    private final AccessOrderDeque<K, V> probation = new AccessOrderDeque<>();
+    private final AccessOrderDeque<K, V> protectedQueue = new AccessOrderDeque<>();
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maximumWeight    total budget, in whatever unit the weigher uses
+     * @param expectedEntries  rough number of entries that fit, used to size
+     *                         the frequency sketch
+     */
+    TinyLfuCache(long maximumWeight, long expectedEntries, Weigher<K, V> weigher) {
+        this.maximumWeight = Math.max(1, maximumWeight);
+        this.windowMaximum = Math.max(1, this.maximumWeight / 100);
+        this.protectedMaximum = (long) ((this.maximumWeight - windowMaximum) * 0.8);
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    /** Cache bounded by number of entries. */
+    static <K, V> TinyLfuCache<K, V> ofEntries(long maximumEntries) {
+        return new TinyLfuCache<>(maximumEntries, maximumEntries, (k, v) -> 1);
+    }
+
+    @Override
+    public V get(K key) {
+        return get(key, value -> true);
+    }
+
+    @Override
+    public V get(K key, Predicate<? super V> live) {
+        Node<K, V> node = map.get(key);
+        V value = node != null ? node.value : null;
+        if (value == null || !live.test(value)) {
+            misses.increment();
+            return value;
+        }
+        hits.increment();
+
+        // Reordering needs the policy lock. If someone else holds it we skip
+        // the bookkeeping for this read rather than wait; the sketch is
+        // approximate anyway.
+        if (evictionLock.tryLock()) {
+            try {
+                if (node.queue >= 0) {
+                    sketch.increment(spread(key.hashCode()));
+                    onAccess(node);
+                }
+                drainWrites();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        return value;
+    }
+
+    /** Looks the value up without counting a hit or miss or touching the policy. */
+    @Override
+    public V peek(K key) {
+        Node<K, V> node = map.get(key);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * A value heavier than the whole budget isn't cached, and the key's
+     * old value is dropped rather than served in its place.
+     */
+    @Override
+    public void put(K key, V value) {
+        int weight = weigher.weigh(key, value);
+        if (weight > maximumWeight) {
+            map.computeIfPresent(key, (k, existing) -> {
+                logWrite(() -> unlink(existing));
+                return null;
+            });
+            afterWrite();
+            return;
+        }
+
+        // Logged inside compute, so the writes to one key reach the policy
+        // in the order they reached the map
+        map.compute(key, (k, existing) -> {
+            if (existing == null) {
+                Node<K, V> node = new Node<>(key, value, weight);
+                logWrite(() -> onAdd(node));
+                return node;
+            }
+            existing.value = value;
+            logWrite(() -> onUpdate(existing, weight));
+            return existing;
+        });
+        afterWrite();
+    }
+
+    /**
+     * Removes the entry only if it still maps to this exact value, so a
+     * thread dropping an expired entry can't remove a fresh one.
+     */
+    @Override
+    public boolean remove(K key, V value) {
+        boolean[] removed = new boolean[1];
+        map.computeIfPresent(key, (k, node) -> {
+            if (node.value != value) {
+                return node;
+            }
+            logWrite(() -> unlink(node));
+            removed[0] = true;
+            return null;
+        });
+        if (removed[0]) {
+            afterWrite();
+        }
+        return removed[0];
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        map.forEach((key, node) -> action.accept(key, node.value));
+    }
+
+    long weightedSize() {
+        evictionLock.lock();
+        try {
+            drainWrites();
+            return windowWeight + probationWeight + protectedWeight;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long missCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    private void logWrite(Runnable write) {
+        writeBuffer.offer(write);
+        pendingWrites.incrementAndGet();
+    }
+
+    // Applies the logged writes now if the lock is free, or waits for it
+    // if the log is full
+    private void afterWrite() {
+        if (pendingWrites.get() >= WRITE_BUFFER_MAX) {
+            evictionLock.lock();
+        } else if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            drainWrites();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // Under evictionLock
+    private void drainWrites() {
+        Runnable write;
+        boolean drained = false;
+        while ((write = writeBuffer.poll()) != null) {
+            pendingWrites.decrementAndGet();
+            write.run();
+            drained = true;
+        }
+        if (drained) {
+            evictEntries();
+        }
+    }
+
+    private void onAdd(Node<K, V> node) {
+        sketch.increment(spread(node.key.hashCode()));
+        node.queue = WINDOW;
+        window.addLast(node);
+        windowWeight += node.weight;
+    }
+
+    // A node evicted or removed since the write is left alone
+    private void onUpdate(Node<K, V> node, int weight) {
+        sketch.increment(spread(node.key.hashCode()));
+        if (node.queue < 0) {
+            return;
+        }
+        addWeight(node.queue, weight - node.weight);
+        node.weight = weight;
+        onAccess(node);
+    }
+
+    private void onAccess(Node<K, V> node) {
+        if (node.queue == WINDOW) {
+            window.moveToBack(node);
+        } else if (node.queue == PROBATION) {
+            // Hit again after admission: promote to protected
+            probation.remove(node);
+            probationWeight -= node.weight;
+            node.queue = PROTECTED;
+            protectedQueue.addLast(node);
+            protectedWeight += node.weight;
+
+            while (protectedWeight > protectedMaximum && protectedQueue.peekFirst() != node) {
+                Node<K, V> demoted = protectedQueue.pollFirst();
+                protectedWeight -= demoted.weight;
+                demoted.queue = PROBATION;
+                probation.addLast(demoted);
+                probationWeight += demoted.weight;
+            }
+        } else if (node.queue == PROTECTED) {
+            protectedQueue.moveToBack(node);
+        }
+    }
+
+    private void evictEntries() {
+        // Window overflow: its oldest entry becomes a candidate for main
+        while (windowWeight > windowMaximum && window.peekFirst() != null) {
+            Node<K, V> candidate = window.pollFirst();
+            windowWeight -= candidate.weight;
+            candidate.queue = PROBATION;
+            probation.addLast(candidate);
+            probationWeight += candidate.weight;
+            admit(candidate);
+        }
+
+        // Heavy entries can still leave us over budget; fall back to plain LRU
+        while (windowWeight + probationWeight + protectedWeight > maximumWeight) {
+            Node<K, V> victim = probation.peekFirst();
+            if (victim == null) victim = protectedQueue.peekFirst();
+            if (victim == null) victim = window.peekFirst();
+            if (victim == null) break;
+            evict(victim);
+        }
+    }
+
+    /**
+     * The candidate has just been appended to probation. While main is over
+     * budget it duels the probation LRU entry; the less frequently used of
+     * the two goes.
+     */
+    private void admit(Node<K, V> candidate) {
+        long mainMaximum = maximumWeight - windowMaximum;
+        while (probationWeight + protectedWeight > mainMaximum) {
+            Node<K, V> victim = probation.peekFirst();
+            if (victim == candidate) {
+                victim = protectedQueue.peekFirst();
+                if (victim == null) {
+                    return;
+                }
+            }
+            int candidateFreq = sketch.frequency(spread(candidate.key.hashCode()));
+            int victimFreq = sketch.frequency(spread(victim.key.hashCode()));
+            if (candidateFreq > victimFreq) {
+                evict(victim);
+            } else {
+                evict(candidate);
+                return;
+            }
+        }
+    }
+
+    private void evict(Node<K, V> node) {
+        map.remove(node.key, node);
+        unlink(node);
+        evictions.increment();
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (node.queue == WINDOW) {
+            window.remove(node);
+        } else if (node.queue == PROBATION) {
+            probation.remove(node);
+        } else if (node.queue == PROTECTED) {
+            protectedQueue.remove(node);
+        } else {
+            return;
+        }
+        addWeight(node.queue, -node.weight);
+        node.queue = -1;
+    }
+
+    private void addWeight(int queue, long delta) {
+        if (queue == WINDOW) {
+            windowWeight += delta;
+        } else if (queue == PROBATION) {
+            probationWeight += delta;
+        } else if (queue == PROTECTED) {
+            protectedWeight += delta;
+        }
+    }
+
+    // Spreads the bits of a hash code so similar keys land on different counters
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+    static final class Node<K, V> {
+        final K key;
+        volatile V value;
+        int weight;
+        int queue = -1; // -1 until the policy has it, and once removed
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Doubly linked list threaded through the nodes themselves, oldest at
+     * the front. Not thread safe; guarded by the eviction lock.
+     */
+    static final class AccessOrderDeque<K, V> {
+        private Node<K, V> first;
+        private Node<K, V> last;
+
+        Node<K, V> peekFirst() {
+            return first;
+        }
+
+        Node<K, V> pollFirst() {
+            Node<K, V> node = first;
+            if (node != null) {
+                remove(node);
+            }
+            return node;
+        }
+
+        void addLast(Node<K, V> node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node<K, V> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch with 4-bit counters, 16 to a long. Every counter is
+     * halved once the number of increments reaches ten times the table
+     * size, so old popularity fades.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(long expectedEntries) {
+            int capacity = (int) Math.min(Math.max(expectedEntries, 16), 1 << 26);
+            table = new long[Integer.highestOneBit(capacity - 1) << 1];
+            tableMask = table.length - 1;
+            sampleSize = 10 * capacity;
+        }
+
+        int frequency(int hash) {
+            int start = (hash & 3) << 2;
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xF);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = (start + i) << 2;
+                if (((table[index] >>> offset) & 0xF) != 0xF) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+
+        private int indexOf(int item, int i) {
+            long hash = (item + SEEDS[i]) * SEEDS[i];
+            hash += hash >>> 32;
+            return ((int) hash) & tableMask;
+        }
+    }
+}
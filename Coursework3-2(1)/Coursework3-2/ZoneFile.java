@@ -0,0 +1,315 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * ZoneFile - Reads a zone in master file format (RFC 1035 section 5)
+ *
+ * Enough of the format for the zones we serve ourselves:
+ * - $ORIGIN and $TTL
+ * - owner names relative to the origin, "@" for the origin itself, and a
+ *   blank owner meaning the same as the line before
+ * - an optional TTL and class (IN only) in either order
+ * - parentheses across lines, and ";" comments
+ * - A, NS, CNAME, MX, TXT and SOA records
+ * The zone's apex is the owner of its SOA record, which must be there.
+ */
+class ZoneFile {
+
+    static final int A = 1;
+    static final int NS = 2;
+    static final int CNAME = 5;
+    static final int SOA = 6;
+    static final int MX = 15;
+    static final int TXT = 16;
+
+    /** One resource record; names are lower case and fully qualified without the final dot. */
+    static class Record {
+        final String owner;
+        final int type;
+        final int ttl;
+        final byte[] rdata;
+
+        Record(String owner, int type, int ttl, byte[] rdata) {
+            this.owner = owner;
+            this.type = type;
+            this.ttl = ttl;
+            this.rdata = rdata;
+        }
+    }
+
+    final String apex;
+    final List<Record> records;
+    final Record soa;
+
+    private ZoneFile(String apex, List<Record> records, Record soa) {
+        this.apex = apex;
+        this.records = records;
+        this.soa = soa;
+    }
+
+    /** Negative answers are cached for the lower of the SOA's TTL and MINIMUM field (RFC 2308). */
+    int negativeTtl() {
+        return Math.min(soa.ttl, ByteBuffer.wrap(soa.rdata, soa.rdata.length - 4, 4).getInt());
+    }
+
+    static ZoneFile read(Path file) throws IOException {
+        return parse(file.toString(), Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    static ZoneFile parse(String source, List<String> lines) throws IOException {
+        String origin = "";
+        int defaultTtl = 3600;
+        String owner = null;
+        List<Record> records = new ArrayList<>();
+        Record soa = null;
+
+        for (int i = 0; i < lines.size(); i++) {
+            int lineNumber = i + 1;
+            // Join everything up to the closing parenthesis into one entry
+            StringBuilder entry = new StringBuilder(stripComment(lines.get(i)));
+            while (depth(entry) > 0 && i + 1 < lines.size()) {
+                entry.append(' ').append(stripComment(lines.get(++i)));
+            }
+            String text = entry.toString();
+            boolean blankOwner = !text.isEmpty() && Character.isWhitespace(text.charAt(0));
+            List<String> fields = tokenize(text);
+            if (fields.isEmpty()) {
+                continue;
+            }
+
+            try {
+                String first = fields.get(0);
+                if (first.equalsIgnoreCase("$ORIGIN")) {
+                    origin = absolute(fields.get(1), "");
+                    continue;
+                }
+                if (first.equalsIgnoreCase("$TTL")) {
+                    defaultTtl = Integer.parseInt(fields.get(1));
+                    continue;
+                }
+
+                int next = 0;
+                if (!blankOwner) {
+                    owner = first.equals("@") ? origin : absolute(first, origin);
+                    next = 1;
+                } else if (owner == null) {
+                    throw new IOException("no owner name");
+                }
+
+                // TTL and class may come in either order
+                int ttl = defaultTtl;
+                for (int k = 0; k < 2 && next < fields.size(); k++) {
+                    String field = fields.get(next);
+                    if (field.chars().allMatch(Character::isDigit)) {
+                        ttl = Integer.parseInt(field);
+                        next++;
+                    } else if (field.equalsIgnoreCase("IN")) {
+                        next++;
+                    }
+                }
+
+                int type = type(fields.get(next));
+                Record record = new Record(owner, type, ttl, rdata(type, fields.subList(next + 1, fields.size()),
+                        origin));
+                if (type == SOA) {
+                    if (soa != null) {
+                        throw new IOException("second SOA record");
+                    }
+                    soa = record;
+                }
+                records.add(record);
+            } catch (IOException | RuntimeException e) {
+                throw new IOException(source + ":" + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+
+        if (soa == null) {
+            throw new IOException(source + ": no SOA record");
+        }
+        for (Record record : records) {
+            if (!inZone(record.owner, soa.owner)) {
+                throw new IOException(source + ": " + record.owner + " is outside the zone " + soa.owner);
+            }
+        }
+        return new ZoneFile(soa.owner, records, soa);
+    }
+
+    // Whether name is apex or below it
+    static boolean inZone(String name, String apex) {
+        return apex.isEmpty() || name.equals(apex) || name.endsWith("." + apex);
+    }
+
+    /** Wire format of a name as lengths and labels, ending with the root label. */
+    static byte[] toWire(String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!name.isEmpty()) {
+            for (String label : name.split("\\.", -1)) {
+                byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+                if (bytes.length == 0 || bytes.length > 63) {
+                    throw new IOException("bad label in " + name);
+                }
+                out.write(bytes.length);
+                out.write(bytes);
+            }
+        }
+        out.write(0);
+        if (out.size() > 255) {
+            throw new IOException("name too long: " + name);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] rdata(int type, List<String> fields, String origin) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        switch (type) {
+            case A:
+                // Checked first, getByName would look a host name up
+                String dotted = single(fields);
+                if (!dotted.matches("\\d{1,3}(\\.\\d{1,3}){3}")) {
+                    throw new IOException("bad IPv4 address " + dotted);
+                }
+                out.write(InetAddress.getByName(dotted).getAddress());
+                break;
+            case NS:
+            case CNAME:
+                out.write(toWire(absolute(single(fields), origin)));
+                break;
+            case MX:
+                expect(fields, 2);
+                int preference = Integer.parseInt(fields.get(0));
+                out.write(preference >> 8);
+                out.write(preference);
+                out.write(toWire(absolute(fields.get(1), origin)));
+                break;
+            case TXT:
+                if (fields.isEmpty()) {
+                    throw new IOException("TXT needs at least one string");
+                }
+                for (String text : fields) {
+                    byte[] bytes = unquote(text).getBytes(StandardCharsets.UTF_8);
+                    if (bytes.length > 255) {
+                        throw new IOException("TXT string longer than 255 bytes");
+                    }
+                    out.write(bytes.length);
+                    out.write(bytes);
+                }
+                break;
+            case SOA:
+                expect(fields, 7);
+                out.write(toWire(absolute(fields.get(0), origin)));
+                out.write(toWire(absolute(fields.get(1), origin)));
+                ByteBuffer numbers = ByteBuffer.allocate(20);
+                for (int k = 2; k < 7; k++) {
+                    numbers.putInt((int) Long.parseLong(fields.get(k)));
+                }
+                out.write(numbers.array());
+                break;
+            default:
+                throw new IOException("unsupported type " + type);
+        }
+        return out.toByteArray();
+    }
+
+    private static int type(String name) throws IOException {
+        switch (name.toUpperCase(Locale.ROOT)) {
+            case "A": return A;
+            case "NS": return NS;
+            case "CNAME": return CNAME;
+            case "SOA": return SOA;
+            case "MX": return MX;
+            case "TXT": return TXT;
+            default: throw new IOException("unsupported record type " + name);
+        }
+    }
+
+    // Lower case and fully qualified, without the trailing dot
+    private static String absolute(String name, String origin) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".")) {
+            return lower.substring(0, lower.length() - 1);
+        }
+        return origin.isEmpty() ? lower : lower + "." + origin;
+    }
+
+    private static String single(List<String> fields) throws IOException {
+        expect(fields, 1);
+        return fields.get(0);
+    }
+
+    private static void expect(List<String> fields, int count) throws IOException {
+        if (fields.size() != count) {
+            throw new IOException("expected " + count + " fields of RDATA, found " + fields.size());
+        }
+    }
+
+    private static String unquote(String text) {
+        return text.length() >= 2 && text.startsWith("\"") && text.endsWith("\"") ?
+                text.substring(1, text.length() - 1) : text;
+    }
+
+    // Splits on whitespace and parentheses, keeping quoted strings in one piece
+    private static List<String> tokenize(String text) {
+        List<String> fields = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            if (isSeparator(text.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            if (text.charAt(i) == '"') {
+                i = text.indexOf('"', i + 1);
+                i = i < 0 ? text.length() : i + 1;
+            } else {
+                while (i < text.length() && !isSeparator(text.charAt(i))) {
+                    i++;
+                }
+            }
+            fields.add(text.substring(start, i));
+        }
+        return fields;
+    }
+
+    private static boolean isSeparator(char c) {
+        return Character.isWhitespace(c) || c == '(' || c == ')';
+    }
+
+    // The line up to a ";" that isn't inside quotes
+    private static String stripComment(String line) {
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ';' && !quoted) {
+                return line.substring(0, i);
+            }
+        }
+        return line;
+    }
+
+    // Parentheses still open in text
+    private static int depth(CharSequence text) {
+        int depth = 0;
+        boolean quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && c == '(') {
+                depth++;
+            } else if (!quoted && c == ')') {
+                depth--;
+            }
+        }
+        return depth;
+    }
+}
@@ -56,18 +56,23 @@ public class NameServer implements NameServerInterface {
             try {
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 socket.receive(packet);
-                System.out.println("Received query from " + packet.getAddress() + ":" + packet.getPort());
-
                 byte[] reqData = Arrays.copyOf(packet.getData(), packet.getLength());
                 InetAddress clientAddr = packet.getAddress();
                 int clientPort = packet.getPort();
+                // Guarded so the port isn't boxed when debug is off
+                boolean debug = AsyncLog.isEnabled(AsyncLog.Level.DEBUG);
+                if (debug) {
+                    AsyncLog.debug("Received query from {}:{}", clientAddr, clientPort);
+                }
 
                 DNSQuery query;
                 try {
                     query = DNSQuery.parse(reqData);
-                    System.out.println("Parsed query: " + query.qname + " type=" + query.qtype);
+                    if (debug) {
+                        AsyncLog.debug("Parsed query: {} type={}", query.qname, query.qtype);
+                    }
                 } catch (Exception e) {
-                    System.err.println("Malformed query from " + clientAddr + ": " + e.getMessage());
+                    AsyncLog.warn("Malformed query from {}: {}", clientAddr, e.getMessage());
                     byte[] errResp = DNSResponse.buildErrorResponse(reqData, 1); // RCODE=1 (FORMERR)
                     socket.send(new DatagramPacket(errResp, errResp.length, clientAddr, clientPort));
                     continue;
@@ -78,26 +83,26 @@ public class NameServer implements NameServerInterface {
                 if (answer != null && answer.isExpired()) {
                     cache.remove(cacheKey);
                     answer = null;
-                    System.out.println("Removed expired cache entry: " + cacheKey);
+                    AsyncLog.debug("Removed expired cache entry: {}", cacheKey);
                 }
 
                 CachedRecord neg = negativeCache.get(cacheKey);
                 if (neg != null && neg.isExpired()) {
                     negativeCache.remove(cacheKey);
                     neg = null;
-                    System.out.println("Removed expired negative cache entry: " + cacheKey);
+                    AsyncLog.debug("Removed expired negative cache entry: {}", cacheKey);
                 }
 
                 byte[] responseData = null;
 
                 if (answer != null) {
-                    System.out.println("Serving from cache: " + cacheKey);
+                    AsyncLog.debug("Serving from cache: {}", cacheKey);
                     responseData = DNSResponse.buildAnswerResponse(reqData, query, answer);
                 } else if (neg != null) {
-                    System.out.println("Serving negative cache (NXDOMAIN): " + cacheKey);
+                    AsyncLog.debug("Serving negative cache (NXDOMAIN): {}", cacheKey);
                     responseData = DNSResponse.buildErrorResponse(reqData, 3); // RCODE=3 (NXDOMAIN)
                 } else {
-                    System.out.println("Resolving query: " + cacheKey);
+                    AsyncLog.debug("Resolving query: {}", cacheKey);
                     try {
                         CachedRecord resolved = resolveAndCache(query);
                         if (resolved != null) {
@@ -105,26 +110,29 @@ public class NameServer implements NameServerInterface {
                         } else {
                             negativeCache.put(cacheKey, CachedRecord.negative(System.currentTimeMillis() + 30_000, 3));
                             responseData = DNSResponse.buildErrorResponse(reqData, 3); // RCODE=3 (NXDOMAIN)
-                            System.out.println("Cached NXDOMAIN for: " + cacheKey);
+                            AsyncLog.debug("Cached NXDOMAIN for: {}", cacheKey);
                         }
                     } catch (Exception e) {
-                        System.err.println("Resolution failed for " + cacheKey + ": " + e.getMessage());
+                        AsyncLog.warn("Resolution failed for {}: {}", cacheKey, e.getMessage());
                         responseData = DNSResponse.buildErrorResponse(reqData, 2); // RCODE=2 (SERVFAIL)
                     }
                 }
 
                 try {
                     socket.send(new DatagramPacket(responseData, responseData.length, clientAddr, clientPort));
-                    System.out.println("Sent response to " + clientAddr + ":" + clientPort);
+                    if (debug) {
+                        AsyncLog.debug("Sent response to {}:{}", clientAddr, clientPort);
+                    }
                 } catch (IOException e) {
-                    System.err.println("Failed to send response to " + clientAddr + ":" + clientPort + ": " + e.getMessage());
+                    AsyncLog.warn("Failed to send response to {}: {}",
+                            new InetSocketAddress(clientAddr, clientPort), e.getMessage());
                 }
 
             } catch (IOException e) {
-                System.err.println("IOException while handling query: " + e.getMessage());
+                AsyncLog.warn("IOException while handling query: {}", e.getMessage());
                 // Continue to keep the server running
             } catch (Exception e) {
-                System.err.println("Unexpected error: " + e.getMessage());
+                AsyncLog.warn("Unexpected error: {}", e.getMessage());
                 // Defensive: keep running
             }
         }
@@ -144,39 +152,39 @@ public class NameServer implements NameServerInterface {
                 if (addr != null) {
                     record = new CachedRecord(addr.getAddress(), now + 60_000, 1);
                     cache.put(key, record);
-                    System.out.println("Cached A record for " + query.qname);
+                    AsyncLog.debug("Cached A record for {}", query.qname);
                 }
             } else if (query.qtype == 16) { // TXT
                 String txt = resolver.iterativeResolveText(query.qname);
                 if (txt != null) {
                     record = new CachedRecord(txt.getBytes("UTF-8"), now + 60_000, 16);
                     cache.put(key, record);
-                    System.out.println("Cached TXT record for " + query.qname);
+                    AsyncLog.debug("Cached TXT record for {}", query.qname);
                 }
             } else if (query.qtype == 5) { // CNAME
                 String cname = resolver.iterativeResolveName(query.qname, 5);
                 if (cname != null) {
                     record = new CachedRecord(cname.getBytes("UTF-8"), now + 60_000, 5);
                     cache.put(key, record);
-                    System.out.println("Cached CNAME record for " + query.qname);
+                    AsyncLog.debug("Cached CNAME record for {}", query.qname);
                 }
             } else if (query.qtype == 2) { // NS
                 String ns = resolver.iterativeResolveName(query.qname, 2);
                 if (ns != null) {
                     record = new CachedRecord(ns.getBytes("UTF-8"), now + 60_000, 2);
                     cache.put(key, record);
-                    System.out.println("Cached NS record for " + query.qname);
+                    AsyncLog.debug("Cached NS record for {}", query.qname);
                 }
             } else if (query.qtype == 15) { // MX
                 String mx = resolver.iterativeResolveName(query.qname, 15);
                 if (mx != null) {
                     record = new CachedRecord(mx.getBytes("UTF-8"), now + 60_000, 15);
                     cache.put(key, record);
-                    System.out.println("Cached MX record for " + query.qname);
+                    AsyncLog.debug("Cached MX record for {}", query.qname);
                 }
             }
         } catch (Exception e) {
-            System.err.println("Failed to resolve " + query.qname + " type=" + query.qtype + ": " + e.getMessage());
+            AsyncLog.warn("Failed to resolve {}: {}", query.qname + " type=" + query.qtype, e.getMessage());
             throw e;
         }
         return record;